@@ -0,0 +1,323 @@
+package com.kilpatrickaudio.kaUpdate.bench;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import com.kilpatrickaudio.kaUpdate.moduleUpdate.ChunkEncoder;
+import com.kilpatrickaudio.kaUpdate.moduleUpdate.FlashImage;
+import com.kilpatrickaudio.kaUpdate.moduleUpdate.FlashImageLoader;
+import com.kilpatrickaudio.kaUpdate.moduleUpdate.HexParseException;
+import com.kilpatrickaudio.kaUpdate.moduleUpdate.HexParser;
+import com.kilpatrickaudio.kaUpdate.moduleUpdate.HexRecordList;
+import com.kilpatrickaudio.kaUpdate.moduleUpdate.RunLengthCodec;
+import com.kilpatrickaudio.kaUpdate.moduleUpdate.SysexEncoder;
+
+/**
+ * This class benchmarks the firmware parsing, chunking and SYSEX encoding paths.
+ *
+ * Synthetic HEX fixtures of 64KB, 512KB and 2MB of payload are generated with
+ * dense (contiguous) and sparse (randomly gapped) address layouts. Each case is
+ * warmed up and then timed, reporting throughput, bytes allocated per operation
+ * on the calling thread and the cost of encoding each chunk.
+ *
+ * The wire size of each image is also reported for the nibble, packed and
+ * run-length compressed load encodings. Firmware files given after the
+ * iteration count only get the wire size report.
+ *
+ * Usage: UpdateBenchmark [iterations] [firmware files...]
+ *
+ * @author andrew
+ *
+ */
+public class UpdateBenchmark {
+	static final int SIZES[] = { 64 * 1024, 512 * 1024, 2 * 1024 * 1024 };
+	static final int WARMUP_ITERATIONS = 5;
+	static final int CHUNK_SIZE = 64;
+	int iterations;
+	long blackhole = 0;  // results are summed here so the work is not optimized away
+	com.sun.management.ThreadMXBean threadBean;
+
+	/**
+	 * A benchmarked operation.
+	 */
+	interface Op {
+		/**
+		 * Runs the operation once.
+		 *
+		 * @return a value derived from the result so the work is not optimized away
+		 * @throws Exception if the operation fails
+		 */
+		public long run() throws Exception;
+	}
+
+	/**
+	 * Creates a new benchmark.
+	 *
+	 * @param iterations the number of timed iterations per case
+	 */
+	public UpdateBenchmark(int iterations) {
+		this.iterations = iterations;
+		threadBean = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+		threadBean.setThreadAllocatedMemoryEnabled(true);
+	}
+
+	/**
+	 * Runs all benchmark cases.
+	 *
+	 * @throws Exception if a case fails
+	 */
+	public void runAll() throws Exception {
+		System.out.println(String.format("%-36s %10s %10s %12s %14s",
+				"benchmark", "ms/op", "MB/s", "alloc KB/op", "encode ns/chunk"));
+		for(int i = 0; i < SIZES.length; i ++) {
+			runFixture(SIZES[i], false);
+			runFixture(SIZES[i], true);
+		}
+	}
+
+	/**
+	 * Runs the benchmark cases for one fixture.
+	 *
+	 * @param size the payload size in bytes
+	 * @param sparse true for a sparse address layout
+	 * @throws Exception if a case fails
+	 */
+	void runFixture(int size, boolean sparse) throws Exception {
+		final File hexFile = createFixture(size, sparse);
+		String name = (size / 1024) + "KB " + (sparse ? "sparse" : "dense");
+		try {
+			run("parseHexRecords " + name, size, new Op() {
+				public long run() {
+					return HexParser.parseHexRecords(hexFile).length;
+				}
+			});
+			// parse once so only the chunking is timed
+			final int prog[] = HexParser.parseHexRecords(hexFile);
+			run("createChunkyData " + name, size, new Op() {
+				public long run() {
+					return HexParser.createChunkyData(prog, CHUNK_SIZE).size();
+				}
+			});
+			run("parseParallel " + name, size, new Op() {
+				public long run() throws IOException, HexParseException {
+					HexRecordList records = new HexRecordList(size * 2);
+					HexParser.parseParallel(hexFile, records);
+					return records.getSize();
+				}
+			});
+			run("parseFlashImage " + name, size, new Op() {
+				public long run() {
+					return HexParser.parseFlashImage(hexFile, CHUNK_SIZE).getPageCount();
+				}
+			});
+			// encode every chunk of the image
+			final FlashImage image = HexParser.parseFlashImage(hexFile, CHUNK_SIZE);
+			double nsPerOp = run("encode " + name, size, new Op() {
+				public long run() {
+					long sum = 0;
+					for(int i = 0; i < image.getPageCount(); i ++) {
+						ByteBuffer data = image.getPageBuffer(i);
+						int msg[] = ChunkEncoder.encodeLoadMessage(0x06, image.getPageAddr(i), data);
+						sum += msg.length + ChunkEncoder.checksum(data);
+					}
+					return sum;
+				}
+			});
+			System.out.println(String.format("%-36s %10s %10s %12s %14.1f",
+					"  per chunk (" + image.getPageCount() + " chunks)", "", "", "",
+					nsPerOp / image.getPageCount()));
+			// encode every chunk into a reusable buffer
+			final SysexEncoder encoder = new SysexEncoder(SysexEncoder.getLoadLength(CHUNK_SIZE));
+			nsPerOp = run("encode flyweight " + name, size, new Op() {
+				public long run() {
+					long sum = 0;
+					for(int i = 0; i < image.getPageCount(); i ++) {
+						ByteBuffer data = image.getPageBuffer(i);
+						sum += encoder.encodeLoad(0x06, image.getPageAddr(i), data) + ChunkEncoder.checksum(data);
+					}
+					return sum;
+				}
+			});
+			System.out.println(String.format("%-36s %10s %10s %12s %14.1f",
+					"  per chunk (" + image.getPageCount() + " chunks)", "", "", "",
+					nsPerOp / image.getPageCount()));
+			reportCompression(name, image);
+		} finally {
+			hexFile.delete();
+		}
+	}
+
+	/**
+	 * Reports the wire size of an image with each load encoding. Compressed loads
+	 * are only used for chunks that get smaller, like a real transfer.
+	 *
+	 * @param name the image name
+	 * @param image the image
+	 */
+	static void reportCompression(String name, FlashImage image) {
+		long raw = 0;
+		long nibble = 0;
+		long packed = 0;
+		long rle = 0;
+		int compressedChunks = 0;
+		byte rleBuf[] = new byte[RunLengthCodec.getMaxEncodedLength(image.getPageSize())];
+		for(int i = 0; i < image.getPageCount(); i ++) {
+			ByteBuffer data = image.getPageBuffer(i);
+			int len = data.limit();
+			int packedLen = SysexEncoder.getPackedLoadLength(len);
+			int rleLen = RunLengthCodec.encode(data, rleBuf);
+			raw += len;
+			nibble += SysexEncoder.getLoadLength(len);
+			packed += packedLen;
+			if(rleLen < len) {
+				rle += SysexEncoder.getPackedLoadLength(rleLen);
+				compressedChunks ++;
+			}
+			else {
+				rle += packedLen;
+			}
+		}
+		System.out.println(String.format("%-36s %10s %10s %10s %8s %s", "wire size " + name,
+				"raw", "nibble", "packed", "rle", "ratio vs nibble / packed"));
+		System.out.println(String.format("%-36s %10d %10d %10d %8d %.3f / %.3f (%d of %d chunks compressed)", "",
+				raw, nibble, packed, rle, (double)rle / nibble, (double)rle / packed,
+				compressedChunks, image.getPageCount()));
+	}
+
+	/**
+	 * Warms up and times an operation.
+	 *
+	 * @param name the case name
+	 * @param size the payload size in bytes
+	 * @param op the operation
+	 * @return the mean time per operation in ns
+	 * @throws Exception if the operation fails
+	 */
+	double run(String name, int size, Op op) throws Exception {
+		for(int i = 0; i < WARMUP_ITERATIONS; i ++) {
+			blackhole += op.run();
+		}
+		long threadId = Thread.currentThread().getId();
+		long allocStart = threadBean.getThreadAllocatedBytes(threadId);
+		long start = System.nanoTime();
+		for(int i = 0; i < iterations; i ++) {
+			blackhole += op.run();
+		}
+		long elapsed = System.nanoTime() - start;
+		long alloc = threadBean.getThreadAllocatedBytes(threadId) - allocStart;
+		double nsPerOp = (double)elapsed / iterations;
+		System.out.println(String.format("%-36s %10.3f %10.1f %12.1f", name,
+				nsPerOp / 1e6, (double)size / (1024 * 1024) / (nsPerOp / 1e9),
+				(double)alloc / iterations / 1024));
+		return nsPerOp;
+	}
+
+	/**
+	 * Writes a synthetic PIC32 style HEX fixture.
+	 *
+	 * @param size the payload size in bytes
+	 * @param sparse true to leave random gaps between records
+	 * @return the fixture file
+	 * @throws IOException if the file cannot be written
+	 */
+	static File createFixture(int size, boolean sparse) throws IOException {
+		Random random = new Random(size + (sparse ? 1 : 0));
+		File file = File.createTempFile("kaupdate-bench", ".hex");
+		OutputStream out = new FileOutputStream(file);
+		try {
+			StringBuilder line = new StringBuilder();
+			byte data[] = new byte[16];
+			int addr = 0x1d000000;
+			int extAddr = -1;
+			for(int written = 0; written < size; written += data.length) {
+				if((addr >>> 16) != extAddr) {
+					extAddr = addr >>> 16;
+					writeRecord(out, line, 0, 4, new byte[] { (byte)(extAddr >> 8), (byte)extAddr });
+				}
+				random.nextBytes(data);
+				// pad some bytes like a real image
+				for(int i = 0; i < data.length; i ++) {
+					if(random.nextInt(4) == 0) {
+						data[i] = (byte)0xff;
+					}
+				}
+				writeRecord(out, line, addr & 0xffff, 0, data);
+				addr += data.length;
+				if(sparse && random.nextInt(16) == 0) {
+					addr += random.nextInt(4096) & ~0x0f;
+				}
+			}
+			writeRecord(out, line, 0, 1, new byte[0]);
+		} finally {
+			out.close();
+		}
+		return file;
+	}
+
+	/**
+	 * Writes one HEX record.
+	 *
+	 * @param out the stream to write to
+	 * @param line a reusable line buffer
+	 * @param addr the 16 bit record address
+	 * @param type the record type
+	 * @param data the record data
+	 * @throws IOException if the record cannot be written
+	 */
+	static void writeRecord(OutputStream out, StringBuilder line, int addr, int type, byte data[]) throws IOException {
+		line.setLength(0);
+		line.append(':');
+		int sum = data.length + (addr >> 8) + (addr & 0xff) + type;
+		appendHex(line, data.length);
+		appendHex(line, addr >> 8);
+		appendHex(line, addr);
+		appendHex(line, type);
+		for(int i = 0; i < data.length; i ++) {
+			appendHex(line, data[i]);
+			sum += data[i] & 0xff;
+		}
+		appendHex(line, -sum);
+		line.append("\r\n");
+		out.write(line.toString().getBytes("US-ASCII"));
+	}
+
+	/**
+	 * Appends a byte as two upper case hex digits.
+	 *
+	 * @param line the line buffer
+	 * @param value the byte value
+	 */
+	static void appendHex(StringBuilder line, int value) {
+		line.append(Character.toUpperCase(Character.forDigit((value >> 4) & 0x0f, 16)));
+		line.append(Character.toUpperCase(Character.forDigit(value & 0x0f, 16)));
+	}
+
+	/**
+	 * Main!
+	 *
+	 * @param args [iterations]
+	 * @throws Exception if a benchmark fails
+	 */
+	public static void main(String args[]) throws Exception {
+		int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+		if(args.length > 1) {
+			for(int i = 1; i < args.length; i ++) {
+				File file = new File(args[i]);
+				FlashImage image = FlashImageLoader.parse(file, FlashImageLoader.getFormat(file.getName()),
+						CHUNK_SIZE, FlashImageLoader.getBinBaseAddr(0));
+				if(image == null) {
+					System.out.println("could not load: " + args[i]);
+					continue;
+				}
+				reportCompression(file.getName(), image);
+			}
+			return;
+		}
+		new UpdateBenchmark(iterations).runAll();
+	}
+}
@@ -1,5 +1,8 @@
 package com.kilpatrickaudio.kaUpdate.main;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Properties;
 
 import javax.sound.midi.MidiUnavailableException;
@@ -11,9 +14,16 @@ import com.kilpatrickaudio.kaUpdate.dfuUpdate.DfuUpdateException;
 import com.kilpatrickaudio.kaUpdate.dfuUpdate.DfuUpdater;
 import com.kilpatrickaudio.kaUpdate.main.KAUpdateGUI.UpdateMode;
 import com.kilpatrickaudio.kaUpdate.midi.MIDIHandler;
+import com.kilpatrickaudio.kaUpdate.moduleUpdate.FirmwareSource;
 import com.kilpatrickaudio.kaUpdate.moduleUpdate.ModuleUpdateException;
-import com.kilpatrickaudio.kaUpdate.moduleUpdatePIC18.ModuleUpdatePIC18;
-import com.kilpatrickaudio.kaUpdate.moduleUpdatePIC32.ModuleUpdatePIC32;
+import com.kilpatrickaudio.kaUpdate.station.BroadcastUpdate;
+import com.kilpatrickaudio.kaUpdate.station.HotPlugStation;
+import com.kilpatrickaudio.kaUpdate.station.PortDiscovery;
+import com.kilpatrickaudio.kaUpdate.station.PortWatcher;
+import com.kilpatrickaudio.kaUpdate.station.UpdateDaemon;
+import com.kilpatrickaudio.kaUpdate.station.UpdateSession;
+import com.kilpatrickaudio.kaUpdate.station.UpdateStation;
+import com.kilpatrickaudio.kaUpdate.station.UpdateTarget;
 
 /**
  * This class implements the top level of the KAUpdate program.
@@ -75,13 +85,19 @@ public class KAUpdate implements UpdateControlHandler {
             	if(mode.equals("MIDI")) {
             		if(args.length < 4) {
             			throw new IllegalArgumentException("MIDI command line args invalid - " +
-        					"usage: MIDI midiInPort midiOutPort updateFilename");
+        					"usage: MIDI midiInPort midiOutPort updateFilename [archiveEntry]");
             		}
             		logger.info("command line set mode to: MIDI");
             		gui.setUpdateMode(UpdateMode.MIDI);
             		gui.setMidiInPort(args[1]);
             		gui.setMidiOutPort(args[2]);
-            		gui.setUpdateFilename(args[3]);
+            		if(args.length > 4) {
+            			// update file inside a zip archive
+            			gui.setUpdateFilename(args[3] + FirmwareSource.ENTRY_SEPARATOR + args[4]);
+            		}
+            		else {
+            			gui.setUpdateFilename(args[3]);
+            		}
             	}
             	// DFU mode
             	else if(mode.equals("DFU")) {
@@ -156,50 +172,18 @@ public class KAUpdate implements UpdateControlHandler {
 	private void updateMIDI() throws ModuleUpdateException {
 		gui.setControlsEnabled(false);
 		updateState = UpdateState.UPDATING_MIDI;        				
-		if(updateFilename.length() < 6) {
-			throw new ModuleUpdateException("hex filename is invalid: " + updateFilename);
-		}
-		String suffix = updateFilename.substring(updateFilename.length() - 6, updateFilename.length());
-		suffix = suffix.toUpperCase();
-		logger.debug("suffix: " + suffix);
-		if(!suffix.startsWith("HEX")) {
-			throw new ModuleUpdateException("hex filename is invalid: " + updateFilename);
-		}
-		int devID = Integer.parseInt(suffix.substring(3, 5), 16);
-		logger.info("deviceID: " + Integer.toHexString(devID));
-		String chipType = suffix.substring(5, 6);
-		if(chipType.equals("A")) {
-			logger.info("chip type: PIC18F4520");
-			ModuleUpdatePIC18 mu = new ModuleUpdatePIC18(midi, midiInDevName, midiOutDevName, 
-					updateFilename, devID);
-			try {
-				mu.updateModule(gui);
-			} catch (ModuleUpdateException e) {
-				logger.error(e.getMessage());
-				logger.error("updated FAILED!");
-				gui.setPercentComplete(0);
-				midi.closeMIDIPorts();  // for good measure
-			}
-			updateState = UpdateState.DONE;
-		}
-		else if(chipType.equals("B") || chipType.equals("C")) {
-			logger.info("chip type: PIC32MX");
-			updateState = UpdateState.DONE;
-			ModuleUpdatePIC32 mu = new ModuleUpdatePIC32(midi, midiInDevName, midiOutDevName, 
-					updateFilename, devID);
-			try {
-				mu.updateModule(gui);
-			} catch(ModuleUpdateException e) {
-				logger.error(e.getMessage());
-				logger.error("update FAILED!");
-				gui.setPercentComplete(0);
-				midi.closeMIDIPorts();  // for good measure
-			}
-			updateState = UpdateState.DONE;
+		UpdateTarget target = new UpdateTarget(updateFilename);
+		logger.info("deviceID: " + Integer.toHexString(target.getDevID()));
+		logger.info("chip type: " + target.getChipName());
+		try {
+			target.createUpdater(midi, midiInDevName, midiOutDevName, null).updateModule(gui);
+		} catch (ModuleUpdateException e) {
+			logger.error(e.getMessage());
+			logger.error("update FAILED!");
+			gui.setPercentComplete(0);
+			midi.closeMIDIPorts();  // for good measure
 		}
-		else {
-			throw new ModuleUpdateException("unknown chip type: " + chipType);
-		}		
+		updateState = UpdateState.DONE;
 	}
 	
 	/**
@@ -237,12 +221,188 @@ public class KAUpdate implements UpdateControlHandler {
 		running = false;
 	}
 	
+	/**
+	 * Flashes one update file on several MIDI port pairs at the same time without
+	 * the GUI.
+	 * 
+	 * @param args STATION updateFilename midiInPort midiOutPort [midiInPort midiOutPort ...]
+	 * @return the exit code - 0 if every module was updated
+	 */
+	static int runStation(String args[]) {
+		BasicConfigurator.configure();
+		Logger logger = Logger.getLogger(KAUpdate.class);
+		if(args.length < 4 || (args.length % 2) != 0) {
+			logger.error("STATION command line args invalid - " +
+					"usage: STATION updateFilename midiInPort midiOutPort [midiInPort midiOutPort ...]");
+			return 2;
+		}
+		List<String> inDevNames = new ArrayList<String>();
+		List<String> outDevNames = new ArrayList<String>();
+		for(int i = 2; i < args.length; i += 2) {
+			inDevNames.add(args[i]);
+			outDevNames.add(args[i + 1]);
+		}
+		UpdateStation station = UpdateStation.fromSystemProperties(outDevNames.size());
+		try {
+			List<UpdateSession> sessions = station.flash(args[1], inDevNames, outDevNames, null);
+			for(UpdateSession s : sessions) {
+				if(s.getState() != UpdateSession.State.DONE) {
+					return 1;
+				}
+			}
+			return 0;
+		} catch (ModuleUpdateException e) {
+			logger.error(e.getMessage());
+			return 1;
+		} finally {
+			station.shutdown();
+		}
+	}
+
+	/**
+	 * Flashes one update file on identical modules that share a MIDI output
+	 * without the GUI. Each module answers on its own MIDI input port.
+	 * 
+	 * @param args BROADCAST updateFilename midiOutPort midiInPort [midiInPort ...]
+	 * @return the exit code - 0 if every module was updated
+	 */
+	static int runBroadcast(String args[]) {
+		BasicConfigurator.configure();
+		Logger logger = Logger.getLogger(KAUpdate.class);
+		if(args.length < 4) {
+			logger.error("BROADCAST command line args invalid - " +
+					"usage: BROADCAST updateFilename midiOutPort midiInPort [midiInPort ...]");
+			return 2;
+		}
+		List<String> inDevNames = new ArrayList<String>();
+		for(int i = 3; i < args.length; i ++) {
+			inDevNames.add(args[i]);
+		}
+		long start = System.currentTimeMillis();
+		try {
+			BroadcastUpdate update = new BroadcastUpdate(new UpdateTarget(args[1]), args[2], inDevNames, null);
+			int updated = update.updateModules(new ProgressIndicator() {
+				public void setPercentComplete(int percent) {
+				}
+			});
+			logger.info("broadcast took: " + (System.currentTimeMillis() - start) + " ms");
+			return updated == inDevNames.size() ? 0 : 1;
+		} catch (ModuleUpdateException e) {
+			logger.error(e.getMessage());
+			return 1;
+		}
+	}
+
+	/**
+	 * Runs an unattended station that flashes each module as its MIDI interface
+	 * is attached, without the GUI. This runs until the program is stopped.
+	 * 
+	 * @param args HOTPLUG updateFilename [updateFilename ...] - one file per device ID
+	 * @return the exit code - 0 unless the update files can't be used
+	 */
+	static int runHotPlug(String args[]) {
+		BasicConfigurator.configure();
+		Logger logger = Logger.getLogger(KAUpdate.class);
+		if(args.length < 2) {
+			logger.error("HOTPLUG command line args invalid - " +
+					"usage: HOTPLUG updateFilename [updateFilename ...]");
+			return 2;
+		}
+		List<String> updateFilenames = new ArrayList<String>();
+		for(int i = 1; i < args.length; i ++) {
+			updateFilenames.add(args[i]);
+		}
+		UpdateStation station = UpdateStation.fromSystemProperties(Integer.MAX_VALUE);
+		try {
+			new HotPlugStation(updateFilenames, station, new PortWatcher()).run();
+			return 0;
+		} catch (ModuleUpdateException e) {
+			logger.error(e.getMessage());
+			return 1;
+		} finally {
+			station.shutdown();
+		}
+	}
+
+	/**
+	 * Finds the MIDI ports a module is connected to and updates it without the GUI.
+	 * 
+	 * @param args DISCOVER updateFilename
+	 * @return the exit code - 0 if the module was found and updated
+	 */
+	static int runDiscover(String args[]) {
+		BasicConfigurator.configure();
+		Logger logger = Logger.getLogger(KAUpdate.class);
+		if(args.length < 2) {
+			logger.error("DISCOVER command line args invalid - " +
+					"usage: DISCOVER updateFilename");
+			return 2;
+		}
+		try {
+			UpdateSession session = PortDiscovery.forAllPorts().discover(new UpdateTarget(args[1]), null, null);
+			session.call();
+			return session.getState() == UpdateSession.State.DONE ? 0 : 1;
+		} catch (ModuleUpdateException e) {
+			logger.error(e.getMessage());
+			return 1;
+		} catch (MidiUnavailableException e) {
+			logger.error(e.getMessage());
+			return 1;
+		}
+	}
+
+	/**
+	 * Runs a local daemon that takes update jobs over HTTP, without the GUI.
+	 * This runs until the program is stopped.
+	 * 
+	 * @param args DAEMON
+	 * @return the exit code - 0 unless the API port can't be opened
+	 */
+	static int runDaemon(String args[]) {
+		BasicConfigurator.configure();
+		Logger logger = Logger.getLogger(KAUpdate.class);
+		final UpdateDaemon daemon = UpdateDaemon.fromSystemProperties();
+		try {
+			daemon.start();
+		} catch (IOException e) {
+			logger.error("could not start daemon: " + e.getMessage());
+			return 1;
+		}
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			public void run() {
+				daemon.stop();
+			}
+		});
+		try {
+			daemon.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		return 0;
+	}
+
 	/**
 	 * Main!
 	 * 
 	 * @param args
 	 */
 	public static void main(String args[]) {
+		// station mode runs without the GUI
+		if(args.length > 0 && args[0].toUpperCase().equals("STATION")) {
+			System.exit(runStation(args));
+		}
+		if(args.length > 0 && args[0].toUpperCase().equals("BROADCAST")) {
+			System.exit(runBroadcast(args));
+		}
+		if(args.length > 0 && args[0].toUpperCase().equals("HOTPLUG")) {
+			System.exit(runHotPlug(args));
+		}
+		if(args.length > 0 && args[0].toUpperCase().equals("DISCOVER")) {
+			System.exit(runDiscover(args));
+		}
+		if(args.length > 0 && args[0].toUpperCase().equals("DAEMON")) {
+			System.exit(runDaemon(args));
+		}
 		try {
 			new KAUpdate(args);
 		} catch (MidiUnavailableException e) {
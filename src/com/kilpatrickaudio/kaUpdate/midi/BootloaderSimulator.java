@@ -0,0 +1,356 @@
+package com.kilpatrickaudio.kaUpdate.midi;
+
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.Receiver;
+import javax.sound.midi.SysexMessage;
+
+import com.kilpatrickaudio.kaUpdate.moduleUpdate.BootloaderProtocol;
+import com.kilpatrickaudio.kaUpdate.moduleUpdate.FlashImage;
+import com.kilpatrickaudio.kaUpdate.moduleUpdate.RunLengthCodec;
+import com.kilpatrickaudio.kaUpdate.moduleUpdate.SysexDecoder;
+import com.kilpatrickaudio.kaUpdate.moduleUpdate.SysexEncoder;
+
+import org.apache.log4j.Logger;
+
+/**
+ * This class simulates a Kilpatrick Audio bootloader on the other end of a MIDI
+ * link so updates can be tried without hardware. It answers reset, blank and
+ * capability messages and decodes plain, packed and compressed chunk loads for
+ * both PIC18 and PIC32 targets into a flash image.
+ *
+ * The simulator is configured with system properties:
+ * - kaupdate.sim.baud: the link speed used to delay messages in bits per second,
+ *   or 0 for no delay (default: 31250 - DIN MIDI)
+ * - kaupdate.sim.packed: true if the simulated bootloader takes packed loads
+ *   (default: true)
+ * - kaupdate.sim.rle: true if the simulated bootloader takes compressed loads
+ *   (default: true)
+ * - kaupdate.sim.buffer: the interface buffer size in bytes - messages that
+ *   arrive when it is full are lost (default: 0 - no limit)
+ * - kaupdate.sim.loss: the chance that a chunk load is lost from 0.0 to 1.0
+ *   (default: 0.0)
+ * 
+ * With both false the simulator acts like a bootloader without the capability query.
+ *
+ * Simulators opened on an input port only are joined to a chain that stands in
+ * for a MIDI thru or splitter. Messages sent to a simulator output port opened on
+ * its own go to every simulator on the chain, and each one replies on its own
+ * input port.
+ *
+ * @author andrew
+ *
+ */
+public class BootloaderSimulator implements Receiver {
+	public static final String PORT_NAME = "SIM";
+	static final int BITS_PER_BYTE = 10;  // start + 8 data + stop
+	static final int MAX_CHUNK_LEN = 4096;
+	static final int IDLE_TIMEOUT = 1000;  // ms before an idle simulator thread exits
+	// the simulator never keeps the application running
+	static final ThreadFactory DAEMON_THREADS = new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "bootloader-simulator");
+			t.setDaemon(true);
+			return t;
+		}
+	};
+	static final Chain CHAIN = new Chain();
+	Logger logger;
+	Receiver host = null;
+	ExecutorService device;
+	ExecutorService link;
+	int baud;
+	int bufferSize;
+	AtomicInteger buffered = new AtomicInteger(0);
+	AtomicInteger overruns = new AtomicInteger(0);
+	double loss;
+	Random random = new Random();
+	long deviceClock = 0;  // ns when the link to the device is next free
+	long linkClock = 0;  // ns when the link back to the host is next free
+	boolean packedSupported;
+	boolean rleSupported;
+	FlashImage memory;
+	int loadCount = 0;
+	SysexDecoder decoder = new SysexDecoder();
+	byte chunk[] = new byte[MAX_CHUNK_LEN];
+	byte expanded[] = new byte[MAX_CHUNK_LEN];
+
+	/**
+	 * A simulated MIDI thru chain that passes every message to the simulators on it.
+	 */
+	static class Chain implements Receiver {
+		CopyOnWriteArrayList<BootloaderSimulator> simulators = new CopyOnWriteArrayList<BootloaderSimulator>();
+
+		/**
+		 * Adds a simulator to the chain.
+		 *
+		 * @param simulator the simulator
+		 */
+		void attach(BootloaderSimulator simulator) {
+			simulators.addIfAbsent(simulator);
+		}
+
+		/**
+		 * Removes a simulator from the chain.
+		 *
+		 * @param simulator the simulator
+		 */
+		void detach(BootloaderSimulator simulator) {
+			simulators.remove(simulator);
+		}
+
+		/**
+		 * The chain stays connected when a sender closes its port.
+		 */
+		@Override
+		public void close() {
+		}
+
+		@Override
+		public void send(MidiMessage message, long timeStamp) {
+			for(BootloaderSimulator simulator : simulators) {
+				simulator.send(message, timeStamp);
+			}
+		}
+	}
+
+	/**
+	 * Creates a new bootloader simulator.
+	 */
+	public BootloaderSimulator() {
+		logger = Logger.getLogger(this.getClass());
+		baud = Integer.parseInt(System.getProperty("kaupdate.sim.baud", "31250").trim());
+		packedSupported = Boolean.parseBoolean(System.getProperty("kaupdate.sim.packed", "true").trim());
+		rleSupported = Boolean.parseBoolean(System.getProperty("kaupdate.sim.rle", "true").trim());
+		bufferSize = Integer.parseInt(System.getProperty("kaupdate.sim.buffer", "0").trim());
+		loss = Double.parseDouble(System.getProperty("kaupdate.sim.loss", "0.0").trim());
+		memory = new FlashImage(64);
+		// the device handles messages in order and replies on its own link
+		device = createSerialExecutor();
+		link = createSerialExecutor();
+	}
+
+	/**
+	 * Creates an executor that runs tasks one at a time in order. Its thread is
+	 * a daemon and exits when idle, so simulators that are never shut down don't
+	 * keep threads around.
+	 *
+	 * @return the executor
+	 */
+	static ExecutorService createSerialExecutor() {
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, IDLE_TIMEOUT, TimeUnit.MILLISECONDS,
+				new LinkedBlockingQueue<Runnable>(), DAEMON_THREADS);
+		executor.allowCoreThreadTimeOut(true);
+		return executor;
+	}
+
+	/**
+	 * Connects the simulator to the receiver that gets its replies. The flash
+	 * contents are kept while the simulator is disconnected.
+	 *
+	 * @param host the receiver for replies, or null to disconnect
+	 */
+	public synchronized void connect(Receiver host) {
+		this.host = host;
+	}
+
+	/**
+	 * Gets the simulated flash contents.
+	 *
+	 * @return the flash image
+	 */
+	public synchronized FlashImage getMemory() {
+		return memory;
+	}
+
+	/**
+	 * Gets the number of chunk loads that were received.
+	 *
+	 * @return the load count
+	 */
+	public synchronized int getLoadCount() {
+		return loadCount;
+	}
+
+	/**
+	 * Gets the number of messages lost because the interface buffer was full.
+	 *
+	 * @return the overrun count
+	 */
+	public int getOverrunCount() {
+		return overruns.get();
+	}
+
+	/**
+	 * Stops the simulator threads.
+	 */
+	public void shutdown() {
+		device.shutdownNow();
+		link.shutdownNow();
+	}
+
+	/**
+	 * Disconnects the simulator. This is called when the MIDI ports close.
+	 */
+	@Override
+	public void close() {
+		connect(null);
+	}
+
+	/**
+	 * Receives a message sent to the device.
+	 */
+	@Override
+	public void send(MidiMessage message, long timeStamp) {
+		final byte msg[] = message.getMessage();
+		final long arrival = System.nanoTime();
+		if(bufferSize > 0 && buffered.addAndGet(msg.length) > bufferSize) {
+			buffered.addAndGet(-msg.length);
+			overruns.incrementAndGet();
+			logger.debug("simulator interface buffer overrun");
+			return;
+		}
+		device.execute(new Runnable() {
+			public void run() {
+				deviceClock = wireDelay(deviceClock, arrival, msg.length);
+				buffered.addAndGet(-msg.length);
+				handleMessage(msg);
+			}
+		});
+	}
+
+	/**
+	 * Handles a message once it has arrived at the device.
+	 *
+	 * @param msg the message
+	 */
+	synchronized void handleMessage(byte msg[]) {
+		decoder.wrap(msg);
+		if(!decoder.isValid()) {
+			return;
+		}
+		SysexEncoder encoder = new SysexEncoder(BootloaderProtocol.ACK_LEN);
+		int cmd = decoder.getCommand();
+		switch(cmd) {
+		case BootloaderProtocol.CMD_RESET:
+			encoder.encodeCommand(BootloaderProtocol.CMD_ALIVE);
+			break;
+		case BootloaderProtocol.CMD_BLANK:
+			memory = new FlashImage(64);
+			encoder.encodeCommand(BootloaderProtocol.CMD_BLANK_OK);
+			break;
+		case BootloaderProtocol.CMD_QUERY_CAPS:
+			int caps = (packedSupported ? BootloaderProtocol.CAP_PACKED_LOAD : 0) |
+					(rleSupported ? BootloaderProtocol.CAP_RLE_LOAD : 0);
+			if(caps == 0) {
+				return;  // older bootloaders ignore unknown commands
+			}
+			encoder.encodeCommand(BootloaderProtocol.CMD_CAPS, caps);
+			break;
+		case BootloaderProtocol.CMD_LOAD_PIC18:
+		case BootloaderProtocol.CMD_LOAD_PIC32:
+		case BootloaderProtocol.CMD_LOAD_PIC18_PACKED:
+		case BootloaderProtocol.CMD_LOAD_PIC32_PACKED:
+		case BootloaderProtocol.CMD_LOAD_PIC18_RLE:
+		case BootloaderProtocol.CMD_LOAD_PIC32_RLE:
+			boolean compressed = cmd == BootloaderProtocol.CMD_LOAD_PIC18_RLE ||
+					cmd == BootloaderProtocol.CMD_LOAD_PIC32_RLE;
+			boolean packed = compressed || cmd == BootloaderProtocol.CMD_LOAD_PIC18_PACKED ||
+					cmd == BootloaderProtocol.CMD_LOAD_PIC32_PACKED;
+			if((compressed && !rleSupported) || (packed && !compressed && !packedSupported)) {
+				return;
+			}
+			if(loss > 0 && random.nextDouble() < loss) {
+				logger.debug("simulator lost a chunk load");
+				return;
+			}
+			int len = decoder.decodeLoad(packed, chunk);
+			byte data[] = chunk;
+			if(compressed && len >= 0) {
+				len = RunLengthCodec.decode(chunk, 0, len, expanded);
+				data = expanded;
+			}
+			if(len < 0) {
+				logger.warn("simulator got a malformed load message");
+				return;
+			}
+			memory.write(decoder.getLoadAddr(), data, 0, len);
+			loadCount ++;
+			int sum = 0;
+			for(int i = 0; i < len; i ++) {
+				sum += data[i] & 0xff;
+			}
+			boolean pic18 = cmd == BootloaderProtocol.CMD_LOAD_PIC18 ||
+					cmd == BootloaderProtocol.CMD_LOAD_PIC18_PACKED ||
+					cmd == BootloaderProtocol.CMD_LOAD_PIC18_RLE;
+			encoder.encodeCommand(pic18 ? BootloaderProtocol.CMD_LOAD_PIC18_OK : BootloaderProtocol.CMD_LOAD_PIC32_OK, sum);
+			break;
+		default:
+			return;
+		}
+		reply(encoder.getBuffer(), encoder.getLength());
+	}
+
+	/**
+	 * Sends a reply back over the link.
+	 *
+	 * @param data the reply data
+	 * @param len the reply length
+	 */
+	void reply(byte data[], int len) {
+		final SysexMessage msg;
+		final long sent = System.nanoTime();
+		try {
+			msg = new SysexMessage(data, len);
+		} catch (InvalidMidiDataException e) {
+			logger.error("simulator reply is invalid: " + e.getMessage());
+			return;
+		}
+		link.execute(new Runnable() {
+			public void run() {
+				linkClock = wireDelay(linkClock, sent, msg.getLength());
+				Receiver r;
+				synchronized(BootloaderSimulator.this) {
+					r = host;
+				}
+				if(r != null) {
+					r.send(msg, -1);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Waits for a message to cross the link. The link clock keeps messages sent
+	 * back to back at exactly the link rate even if the thread oversleeps.
+	 *
+	 * @param clock the time the link is next free in ns
+	 * @param start the time the message was ready to go in ns
+	 * @param len the message length in bytes
+	 * @return the time the link is next free after this message in ns
+	 */
+	long wireDelay(long clock, long start, int len) {
+		if(baud <= 0) {
+			return clock;
+		}
+		long now = System.nanoTime();
+		long done = Math.max(clock, start) + (long)len * BITS_PER_BYTE * 1000000000L / baud;
+		try {
+			if(done > now) {
+				TimeUnit.NANOSECONDS.sleep(done - now);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		return done;
+	}
+}
@@ -1,6 +1,13 @@
 package com.kilpatrickaudio.kaUpdate.midi;
 
+import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import javax.sound.midi.InvalidMidiDataException;
 import javax.sound.midi.MidiDevice;
@@ -13,6 +20,8 @@ import javax.sound.midi.SysexMessage;
 import javax.sound.midi.Transmitter;
 import javax.sound.midi.MidiDevice.Info;
 
+import com.kilpatrickaudio.kaUpdate.moduleUpdate.BootloaderProtocol;
+
 import uk.co.xfactorylibrarians.coremidi4j.CoreMidiDeviceProvider;
 
 import org.apache.log4j.Logger;
@@ -20,6 +29,18 @@ import org.apache.log4j.Logger;
 /**
  * This class implements MIDI input and output routines.
  * 
+ * Received SYSEX messages are delivered to pending requests by matching the
+ * response command byte, in the order the requests were made. A bootloader
+ * reply that no request is waiting for is given to the oldest request so it
+ * fails straight away instead of timing out. Other messages are kept in an
+ * inbound queue. Both are safe to use
+ * from the MIDI driver thread and waiting threads wake as soon as a message
+ * arrives.
+ * 
+ * Output can be paced to the rate of the port with a WirePacer. Delayed
+ * messages are given a device timestamp if the output port keeps time, so the
+ * driver holds them instead of the sending thread.
+ * 
  * @author andrew
  *
  */
@@ -30,14 +51,37 @@ public class MIDIHandler implements Receiver {
 	Transmitter in = null;
 	Receiver out = null;
 	MIDIReceiveHandler mrh = null;
+	BootloaderSimulator simulator = null;
+	WirePacer pacer = null;
+	boolean timestamped = false;
 
-	public static final int MIDI_CMD_DEBUG = 0x01;
-	public static final int MIDI_CMD_FIRMWARE_LOAD_CMD = 0x04;
-	public static final int MIDI_CMD_FORMWARE_LOAD_OK = 0x05;
-	public static final int MIDI_CMD_ALIVE_STATUS = 0x7f;
+	// kept for existing callers - BootloaderProtocol defines the protocol
+	public static final int MIDI_CMD_DEBUG = BootloaderProtocol.CMD_DEBUG;
+	public static final int MIDI_CMD_FIRMWARE_LOAD_CMD = BootloaderProtocol.CMD_LOAD_PIC18;
+	public static final int MIDI_CMD_FORMWARE_LOAD_OK = BootloaderProtocol.CMD_LOAD_PIC18_OK;
+	public static final int MIDI_CMD_ALIVE_STATUS = BootloaderProtocol.CMD_ALIVE;
+	public static final int MATCH_ANY = -1;  // match any SYSEX response
 
-	int retData[] = null;
-	boolean gotResponse = false;
+	LinkedBlockingQueue<byte[]> inbound = new LinkedBlockingQueue<byte[]>();
+	LinkedList<PendingResponse> pending = new LinkedList<PendingResponse>();
+
+	/**
+	 * A request waiting for a response.
+	 */
+	static class PendingResponse {
+		int responseCmd;
+		int requestLen = 0;
+		CompletableFuture<byte[]> future = new CompletableFuture<byte[]>();
+
+		PendingResponse(int responseCmd) {
+			this.responseCmd = responseCmd;
+		}
+
+		boolean matches(byte msg[]) {
+			return responseCmd == MATCH_ANY ||
+					(msg.length > BootloaderProtocol.CMD_POS && (msg[BootloaderProtocol.CMD_POS] & 0xff) == responseCmd);
+		}
+	}
 
 	/**
 	 * Creates a new MIDI handler to manage MIDI ports.
@@ -153,7 +197,11 @@ public class MIDIHandler implements Receiver {
 	}
 
 	/**
-	 * Opens MIDI input and output ports.
+	 * Opens MIDI input and output ports. Using BootloaderSimulator.PORT_NAME for
+	 * both ports connects to a simulated bootloader instead of a MIDI device.
+	 * Using it for only one port, with no name for the other, connects to the
+	 * simulated thru chain: an input port adds a simulator to the chain and an
+	 * output port sends to every simulator on it.
 	 * 
 	 * @param inDevName the input device name
 	 * @param outDevName the output device name
@@ -161,6 +209,35 @@ public class MIDIHandler implements Receiver {
 	 */
 	public void openMIDIPorts(String inDevName, String outDevName)
 			throws MidiUnavailableException {
+		boolean simIn = inDevName.trim().equalsIgnoreCase(BootloaderSimulator.PORT_NAME);
+		boolean simOut = outDevName.trim().equalsIgnoreCase(BootloaderSimulator.PORT_NAME);
+		if(simIn || simOut) {
+			if((!simIn && !inDevName.equals("")) || (!simOut && !outDevName.equals(""))) {
+				throw new MidiUnavailableException("the bootloader simulator must be used for MIDI in and out");
+			}
+			if(simIn) {
+				logger.info("opening bootloader simulator" + (simOut ? "" : " on the thru chain"));
+				if(simulator == null) {
+					simulator = new BootloaderSimulator();
+				}
+				simulator.connect(this);
+			}
+			if(simIn && simOut) {
+				out = simulator;
+			}
+			else if(simOut) {
+				logger.info("opening bootloader simulator thru chain output");
+				out = BootloaderSimulator.CHAIN;
+			}
+			else {
+				BootloaderSimulator.CHAIN.attach(simulator);
+				out = new FakeReceiver();
+			}
+			if(simOut) {
+				openPacer(outDevName);
+			}
+			return;
+		}
 		// get device by searching names
 		Info midiDevices[] = CoreMidiDeviceProvider.getMidiDeviceInfo();
 		int inputDevNum = -1;
@@ -207,16 +284,76 @@ public class MIDIHandler implements Receiver {
 			outputDevice = MidiSystem.getMidiDevice(midiDevices[outputDevNum]);
 			outputDevice.open();
 			out = outputDevice.getReceiver();
+			openPacer(midiDevices[outputDevNum].getName());
 		} else {
 			out = new FakeReceiver();
 		}
 	}
 
+	/**
+	 * Sets up output pacing for a port. Device timestamps are used if the output
+	 * device keeps time and kaupdate.midi.timestamps is not false.
+	 * 
+	 * @param outDevName the output device name
+	 */
+	void openPacer(String outDevName) {
+		pacer = WirePacer.forPort(outDevName);
+		timestamped = outputDevice != null && outputDevice.getMicrosecondPosition() >= 0 &&
+				Boolean.parseBoolean(System.getProperty("kaupdate.midi.timestamps", "true"));
+		if(pacer != null) {
+			logger.info("pacing MIDI out - rate: " + (int)pacer.getRate() + " bytes/s" +
+					" - burst: " + pacer.getBurst() + " bytes - timestamps: " + timestamped);
+		}
+	}
+
+	/**
+	 * Sends a message to the output port, waiting for the pacer first if needed.
+	 * With device timestamps only the part of the wait beyond one burst is spent
+	 * on this thread.
+	 * 
+	 * @param msg the message
+	 */
+	void transmit(MidiMessage msg) {
+		long delay = pacer == null ? 0 : pacer.reserve(msg.getLength());
+		if(delay <= 0) {
+			out.send(msg, -1);
+			return;
+		}
+		long lookahead = 0;
+		if(timestamped) {
+			lookahead = Math.min(delay, (long)(pacer.getBurst() / pacer.getRate() * 1e9));
+		}
+		try {
+			TimeUnit.NANOSECONDS.sleep(delay - lookahead);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		if(lookahead > 0) {
+			out.send(msg, outputDevice.getMicrosecondPosition() + lookahead / 1000);
+		}
+		else {
+			out.send(msg, -1);
+		}
+	}
+
+	/**
+	 * Gets the bootloader simulator if it has been opened.
+	 * 
+	 * @return the simulator, or null if it was never opened
+	 */
+	public BootloaderSimulator getSimulator() {
+		return simulator;
+	}
+
 	/**
 	 * Closes any open MIDI ports.
 	 */
 	public void closeMIDIPorts() {
 		logger.info("closing MIDI ports...");
+		cancelPendingRequests();
+		if(simulator != null) {
+			BootloaderSimulator.CHAIN.detach(simulator);
+		}
 
 		if (in != null) {
 			in.close();
@@ -242,35 +379,127 @@ public class MIDIHandler implements Receiver {
 	 * @param data the data to send
 	 * @param len the length of the data to send
 	 * @param timeout the receive timeout in ms
+	 * @return the response, or null if no response was received
 	 * @throws InvalidMidiDataException  if there is an error with the MIDI ports
 	 */
 	public int[] sendSysexMessageRxResponse(int data[], int len, int timeout) throws InvalidMidiDataException {
+		return sendSysexMessageRxResponse(data, len, MATCH_ANY, timeout);
+	}
+
+	/**
+	 * Sends SYSEX message and waits for a response with a particular command.
+	 * 
+	 * @param data the data to send
+	 * @param len the length of the data to send
+	 * @param responseCmd the response command byte to wait for, or MATCH_ANY
+	 * @param timeout the receive timeout in ms
+	 * @return the response, or null if no response was received - a bootloader
+	 *         reply of another type is returned as soon as it arrives
+	 * @throws InvalidMidiDataException  if there is an error with the MIDI ports
+	 */
+	public int[] sendSysexMessageRxResponse(int data[], int len, int responseCmd, int timeout) throws InvalidMidiDataException {
+		inbound.clear();  // flush stale messages
+		return toIntArray(getResponse(sendSysexRequest(toByteArray(data, len), len, responseCmd), timeout));
+	}
+
+	/**
+	 * Sends SYSEX message and returns a future for the response. The request is
+	 * registered before the message is sent so a fast response cannot be missed.
+	 * Responses are matched on the command byte following the SYSEX header and
+	 * requests with the same command are completed in the order they were made.
+	 * The data is sent as is so the buffer can be reused once this returns.
+	 * 
+	 * @param data the data to send
+	 * @param len the length of the data to send
+	 * @param responseCmd the response command byte to wait for, or MATCH_ANY
+	 * @return the future response - it is cancelled if the ports are closed
+	 * @throws InvalidMidiDataException  if there is an error with the MIDI ports
+	 */
+	public CompletableFuture<byte[]> sendSysexRequest(byte data[], int len, int responseCmd) throws InvalidMidiDataException {
 		if(out == null) {
 			throw new InvalidMidiDataException("output port is not enabled");
 		}
-		waitForSysexMessage(10);  // flush buffer
-		byte dataBytes[] = new byte[len];
-		for (int i = 0; i < len; i++) {
-			dataBytes[i] = (byte) data[i];
+		SysexMessage msg = new SysexMessage(data, len);
+		PendingResponse request = new PendingResponse(responseCmd);
+		request.requestLen = len;
+		synchronized(pending) {
+			pending.addLast(request);
+		}
+		try {
+			transmit(msg);
+		} catch (RuntimeException e) {
+			removePendingRequest(request.future);
+			throw e;
+		}
+		return request.future;
+	}
+
+	/**
+	 * Waits for a future response. The request is dropped if it times out.
+	 * 
+	 * @param future the future response from sendSysexRequest()
+	 * @param timeout the receive timeout in ms
+	 * @return the response, or null if no response was received
+	 */
+	public byte[] getResponse(CompletableFuture<byte[]> future, int timeout) {
+		try {
+			return future.get(timeout, TimeUnit.MILLISECONDS);
+		} catch (TimeoutException e) {
+			return null;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		} catch (ExecutionException e) {
+			return null;
+		} catch (CancellationException e) {
+			return null;
+		} finally {
+			removePendingRequest(future);
 		}
-		SysexMessage msg = new SysexMessage();
-		msg.setMessage(dataBytes, dataBytes.length);
-		out.send(msg, -1);
-		gotResponse = false;
-		retData = null;
+	}
 
-		long lastTime = System.currentTimeMillis();
-		while ((System.currentTimeMillis() - lastTime) < timeout) {
-			if(gotResponse) {
-				return retData;
+	/**
+	 * Cancels a request that is no longer waiting for a response. A response that
+	 * arrives later goes to the inbound queue. The pacer treats this as a lost
+	 * response.
+	 * 
+	 * @param future the future response from sendSysexRequest()
+	 */
+	public void cancelRequest(CompletableFuture<byte[]> future) {
+		if(pacer != null) {
+			pacer.lost();
+		}
+		removePendingRequest(future);
+		future.cancel(false);
+	}
+
+	/**
+	 * Removes a request that is no longer waiting for a response.
+	 * 
+	 * @param future the future response
+	 */
+	void removePendingRequest(CompletableFuture<byte[]> future) {
+		synchronized(pending) {
+			Iterator<PendingResponse> it = pending.iterator();
+			while(it.hasNext()) {
+				if(it.next().future == future) {
+					it.remove();
+					break;
+				}
 			}
-			try {
-				Thread.sleep(5);
-			} catch (InterruptedException e) {
-				e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Cancels all requests waiting for a response.
+	 */
+	void cancelPendingRequests() {
+		synchronized(pending) {
+			while(!pending.isEmpty()) {
+				pending.removeFirst().future.cancel(false);
 			}
 		}
-		return null;
+		inbound.clear();
 	}
 
 	/**
@@ -282,17 +511,24 @@ public class MIDIHandler implements Receiver {
 	 */
 	public void sendSysexMessage(int data[], int len)
 			throws InvalidMidiDataException {
+		sendSysex(toByteArray(data, len), len);
+	}
+
+	/**
+	 * Sends SYSEX message and returns immediately. Any received messages that
+	 * are still queued are discarded first. The data is sent as is so the buffer
+	 * can be reused once this returns.
+	 * 
+	 * @param data the data to send
+	 * @param len the length of data to send
+	 * @throws InvalidMidiDataException if there was an error
+	 */
+	public void sendSysex(byte data[], int len) throws InvalidMidiDataException {
 		if(out == null) {
 			throw new InvalidMidiDataException("output port is not enabled");
 		}
-		waitForSysexMessage(10);  // flush buffer
-		byte dataBytes[] = new byte[len];
-		for (int i = 0; i < len; i++) {
-			dataBytes[i] = (byte) data[i];
-		}
-		SysexMessage msg = new SysexMessage();
-		msg.setMessage(dataBytes, dataBytes.length);
-		out.send(msg, -1);
+		inbound.clear();  // flush stale messages
+		transmit(new SysexMessage(data, len));
 	}
 
 	/**
@@ -305,21 +541,72 @@ public class MIDIHandler implements Receiver {
 	 */
 	public int[] waitForSysexMessage(int timeout)
 			throws InvalidMidiDataException {
-		gotResponse = false;
-		retData = null;
+		return toIntArray(waitForSysex(timeout));
+	}
 
-		long now = System.currentTimeMillis();
-		while ((System.currentTimeMillis() - now) < timeout) {
-			if (gotResponse) {
-				return retData;
-			}
-			try {
-				Thread.sleep(10);
-			} catch (InterruptedException e) {
-				e.printStackTrace();
-			}
+	/**
+	 * Wait for a SYSEX message without sending something first.
+	 * 
+	 * @param timeout the receive timeout in ms
+	 * @return the received message, or null if no message was received
+	 */
+	public byte[] waitForSysex(int timeout) {
+		try {
+			return inbound.poll(timeout, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
 		}
-		return null;
+	}
+
+	/**
+	 * Gets a received SYSEX message that no request was waiting for.
+	 * 
+	 * @return an array containing the received data, or null if there are none
+	 */
+	public int[] pollSysexMessage() {
+		return toIntArray(pollSysex());
+	}
+
+	/**
+	 * Gets a received SYSEX message that no request was waiting for.
+	 * 
+	 * @return the message, or null if there are none
+	 */
+	public byte[] pollSysex() {
+		return inbound.poll();
+	}
+
+	/**
+	 * Converts message data to bytes.
+	 * 
+	 * @param data the data
+	 * @param len the length of the data
+	 * @return the bytes
+	 */
+	static byte[] toByteArray(int data[], int len) {
+		byte dataBytes[] = new byte[len];
+		for (int i = 0; i < len; i++) {
+			dataBytes[i] = (byte) data[i];
+		}
+		return dataBytes;
+	}
+
+	/**
+	 * Converts message bytes to unsigned ints.
+	 * 
+	 * @param data the bytes, or null
+	 * @return the data, or null if the bytes were null
+	 */
+	static int[] toIntArray(byte data[]) {
+		if(data == null) {
+			return null;
+		}
+		int retData[] = new int[data.length];
+		for(int i = 0; i < data.length; i++) {
+			retData[i] = (data[i] & 0xff);
+		}
+		return retData;
 	}
 
 	/**
@@ -334,7 +621,7 @@ public class MIDIHandler implements Receiver {
 		}
 		ShortMessage msg = new ShortMessage();
 		msg.setMessage(status);
-		out.send(msg, -1);
+		transmit(msg);
 	}
 
 	/**
@@ -350,7 +637,7 @@ public class MIDIHandler implements Receiver {
 		}
 		ShortMessage msg = new ShortMessage();
 		msg.setMessage(status, data0, 0);
-		out.send(msg, -1);
+		transmit(msg);
 	}
 
 	/**
@@ -368,7 +655,7 @@ public class MIDIHandler implements Receiver {
 		}
 		ShortMessage msg = new ShortMessage();
 		msg.setMessage(status, data0, data1);
-		out.send(msg, -1);
+		transmit(msg);
 	}
 	
 	@Override
@@ -390,13 +677,7 @@ public class MIDIHandler implements Receiver {
 	 */
 	@Override
 	public void send(MidiMessage message, long timeStamp) {
-		byte msgData[] = message.getMessage();
-		if(msgData.length > 0) {
-			retData = new int[msgData.length];
-			for(int i = 0; i < msgData.length; i++) {
-				retData[i] = (msgData[i] & 0xff);
-			}
-		}
+		byte msgData[] = message.getMessage();  // this is already a copy
 		// sysex messages
 		if (message.getStatus() == 0xf0) {
 			if (message.getLength() < 3) {
@@ -404,14 +685,61 @@ public class MIDIHandler implements Receiver {
 						+ message.getLength());
 				return;
 			}
-			gotResponse = true;
+			deliverSysexMessage(msgData);
 			if (mrh != null) {
-				mrh.sysexMessageReceived(retData);
+				mrh.sysexMessageReceived(toIntArray(msgData));
 			}
 		} else {
-			gotResponse = true;
 			if (mrh != null)
-				mrh.messageReceived(retData);
+				mrh.messageReceived(toIntArray(msgData));
+		}
+	}
+
+	/**
+	 * Delivers a received SYSEX message to the first request waiting for it, or
+	 * to the inbound queue if no request matches.
+	 * 
+	 * @param msg the message
+	 */
+	void deliverSysexMessage(byte msg[]) {
+		PendingResponse request = null;
+		boolean matched = false;
+		synchronized(pending) {
+			Iterator<PendingResponse> it = pending.iterator();
+			while(it.hasNext()) {
+				PendingResponse p = it.next();
+				if(p.matches(msg)) {
+					it.remove();
+					request = p;
+					matched = true;
+					break;
+				}
+			}
+			// a reply of the wrong type fails the oldest request
+			if(request == null && !pending.isEmpty() && isBootloaderReply(msg)) {
+				request = pending.removeFirst();
+			}
+		}
+		if(request == null || !request.future.complete(msg)) {
+			inbound.offer(msg);
 		}
+		else if(matched && pacer != null) {
+			pacer.acknowledged(request.requestLen);
+		}
+	}
+
+	/**
+	 * Checks if a message is a reply from a bootloader. Debug messages can
+	 * arrive at any time so they are not replies.
+	 * 
+	 * @param msg the message
+	 * @return true if the message is a bootloader reply
+	 */
+	static boolean isBootloaderReply(byte msg[]) {
+		return msg.length > BootloaderProtocol.CMD_POS &&
+				(msg[1] & 0xff) == BootloaderProtocol.MANUFACTURER_ID_0 &&
+				(msg[2] & 0xff) == BootloaderProtocol.MANUFACTURER_ID_1 &&
+				(msg[3] & 0xff) == BootloaderProtocol.MANUFACTURER_ID_2 &&
+				(msg[BootloaderProtocol.CMD_POS] & 0xff) != BootloaderProtocol.CMD_DEBUG;
 	}
 }
@@ -0,0 +1,168 @@
+package com.kilpatrickaudio.kaUpdate.midi;
+
+/**
+ * This class paces MIDI output to the rate a port can really carry using a
+ * token bucket. Tokens are bytes and refill at the port rate up to the burst
+ * size, which should be about what the interface can buffer. A message that
+ * needs more tokens than are left puts the bucket into debt and is delayed
+ * until the debt is paid back, so back to back messages leave the host at the
+ * link rate instead of piling up in the interface.
+ *
+ * The rate is either configured or measured. A measured pacer starts at the
+ * DIN MIDI rate, which no MIDI link is slower than, and then paces slightly
+ * faster than the rate responses arrive at so it keeps probing for more
+ * capacity. Once a response is lost probing stops and the pacer settles at the
+ * rate responses were arriving at.
+ *
+ * @author andrew
+ *
+ */
+public class WirePacer {
+	public static final double DIN_RATE = 3125.0;  // 31250 baud / 10 bits per byte
+	static final int DEFAULT_BURST = 256;  // bytes
+	static final int SAMPLE_COUNT = 8;  // responses per rate measurement
+	static final long IDLE_GAP = 1000000000L;  // ns without a response that restarts a measurement
+	static final double PROBE_GAIN = 1.25;
+	static final double MEASURE_WEIGHT = 0.25;
+	double rate;
+	boolean measured;
+	int burst;
+	double tokens;
+	long lastRefill;
+	// rate measurement
+	long sampleStart = 0;
+	long lastSample = 0;
+	long sampleBytes = 0;
+	int samples = 0;
+	double measuredRate = 0;
+	boolean probing = true;
+
+	/**
+	 * Creates a new pacer.
+	 *
+	 * @param rate the port rate in bytes per second, or 0 to measure it
+	 * @param burst the number of bytes that can be sent back to back
+	 */
+	public WirePacer(double rate, int burst) {
+		if(rate < 0 || burst <= 0) {
+			throw new IllegalArgumentException("pacer rate or burst is invalid: " + rate + " / " + burst);
+		}
+		this.rate = rate;
+		this.burst = burst;
+		measured = rate == 0;
+		tokens = burst;
+		lastRefill = System.nanoTime();
+	}
+
+	/**
+	 * Creates the pacer for a port from system properties.
+	 * - kaupdate.midi.rate.PORT or kaupdate.midi.rate: the port rate in bytes per
+	 *   second, din for 31250 baud, auto to measure it, or off (default: off)
+	 * - kaupdate.midi.burst: the burst size in bytes (default: 256)
+	 *
+	 * @param portName the output port name
+	 * @return the pacer, or null if the port is not paced
+	 */
+	public static WirePacer forPort(String portName) {
+		String rate = System.getProperty("kaupdate.midi.rate." + portName.trim(),
+				System.getProperty("kaupdate.midi.rate", "off")).trim();
+		int burst = Integer.parseInt(System.getProperty("kaupdate.midi.burst",
+				Integer.toString(DEFAULT_BURST)).trim());
+		if(rate.equalsIgnoreCase("off") || rate.length() == 0) {
+			return null;
+		}
+		if(rate.equalsIgnoreCase("din")) {
+			return new WirePacer(DIN_RATE, burst);
+		}
+		if(rate.equalsIgnoreCase("auto")) {
+			return new WirePacer(0, burst);
+		}
+		return new WirePacer(Double.parseDouble(rate), burst);
+	}
+
+	/**
+	 * Reserves the link for a message.
+	 *
+	 * @param bytes the message length
+	 * @return the time to wait before the message is sent in ns
+	 */
+	public synchronized long reserve(int bytes) {
+		long now = System.nanoTime();
+		double r = getRate();
+		tokens = Math.min(burst, tokens + (now - lastRefill) * r / 1e9);
+		lastRefill = now;
+		tokens -= bytes;
+		if(tokens >= 0) {
+			return 0;
+		}
+		return (long)(-tokens / r * 1e9);
+	}
+
+	/**
+	 * Records that the device answered a message. Only measured pacers use this.
+	 *
+	 * @param bytes the length of the message that was answered
+	 */
+	public synchronized void acknowledged(int bytes) {
+		if(!measured) {
+			return;
+		}
+		long now = System.nanoTime();
+		if(samples == 0 || now - lastSample > IDLE_GAP) {
+			// the rate is measured from the first response so its bytes don't count
+			sampleStart = now;
+			sampleBytes = 0;
+			samples = 0;
+		}
+		else {
+			sampleBytes += bytes;
+		}
+		samples ++;
+		lastSample = now;
+		if(samples > SAMPLE_COUNT) {
+			double sample = sampleBytes / ((now - sampleStart) / 1e9);
+			if(probing) {
+				// grow as fast as the responses allow
+				measuredRate = Math.max(measuredRate, sample);
+			}
+			else {
+				measuredRate = measuredRate + (sample - measuredRate) * MEASURE_WEIGHT;
+			}
+			sampleStart = now;
+			sampleBytes = 0;
+			samples = 1;
+		}
+	}
+
+	/**
+	 * Records that a response was lost, which means the link was overrun or the
+	 * device could not keep up. Measured pacers stop probing for more capacity.
+	 */
+	public synchronized void lost() {
+		if(measured && probing) {
+			probing = false;
+			tokens = Math.min(tokens, 0);
+		}
+	}
+
+	/**
+	 * Gets the rate messages are paced at.
+	 *
+	 * @return the rate in bytes per second
+	 */
+	public synchronized double getRate() {
+		if(measured) {
+			return Math.max(DIN_RATE, probing ? measuredRate * PROBE_GAIN : measuredRate);
+		}
+		return rate;
+	}
+
+	/**
+	 * Gets the burst size.
+	 *
+	 * @return the number of bytes that can be sent back to back
+	 */
+	public int getBurst() {
+		return burst;
+	}
+}
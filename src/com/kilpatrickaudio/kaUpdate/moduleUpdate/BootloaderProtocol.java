@@ -0,0 +1,59 @@
+package com.kilpatrickaudio.kaUpdate.moduleUpdate;
+
+/**
+ * This class defines the SYSEX protocol spoken by the Kilpatrick Audio bootloaders.
+ * 
+ * Every message is framed as F0 00 01 72 cmd [payload...] F7. Chunk loads carry
+ * the address and data as 4 bit nibbles, most significant nibble first, and are
+ * acknowledged with the 7 bit sum of the chunk data.
+ * 
+ * Bootloaders that report the CAP_PACKED_LOAD capability also accept packed
+ * loads, where the big endian address and the data are packed 7 bytes into 8:
+ * each group starts with a byte holding the top bits of the following bytes
+ * (bit 0 for the first byte) and then the bytes with their top bit cleared. The
+ * last group may be short. Packed loads are acknowledged the same way.
+ * 
+ * Bootloaders that report the CAP_RLE_LOAD capability also accept compressed
+ * loads. These are packed loads where the data is run-length encoded with
+ * RunLengthCodec. The acknowledgement is the sum of the decompressed data.
+ * 
+ * @author andrew
+ *
+ */
+public class BootloaderProtocol {
+	public static final int SYSEX_START = 0xf0;
+	public static final int SYSEX_END = 0xf7;
+	public static final int MANUFACTURER_ID_0 = 0x00;
+	public static final int MANUFACTURER_ID_1 = 0x01;
+	public static final int MANUFACTURER_ID_2 = 0x72;
+	public static final int HEADER_LEN = 4;  // F0 + manufacturer ID
+	public static final int CMD_POS = 4;
+	public static final int PAYLOAD_POS = 5;
+
+	public static final int CMD_DEBUG = 0x01;
+	public static final int CMD_LOAD_PIC18 = 0x04;
+	public static final int CMD_LOAD_PIC18_OK = 0x05;
+	public static final int CMD_LOAD_PIC32 = 0x06;
+	public static final int CMD_LOAD_PIC32_OK = 0x07;
+	public static final int CMD_BLANK = 0x08;
+	public static final int CMD_BLANK_OK = 0x09;
+	public static final int CMD_QUERY_CAPS = 0x0a;
+	public static final int CMD_CAPS = 0x0b;
+	public static final int CMD_LOAD_PIC18_PACKED = 0x0c;
+	public static final int CMD_LOAD_PIC32_PACKED = 0x0e;
+	public static final int CMD_LOAD_PIC18_RLE = 0x10;
+	public static final int CMD_LOAD_PIC32_RLE = 0x12;
+	public static final int CMD_RESET = 0x7e;
+	public static final int CMD_ALIVE = 0x7f;
+
+	static final byte RESET_KEY[] = { 'K', 'I', 'L', 'L' };
+	public static final int RESET_LEN = 11;
+	public static final int COMMAND_LEN = 6;
+	public static final int ACK_LEN = 7;
+	static final int LOAD_ADDR_NIBBLES = 8;
+	static final int LOAD_ADDR_BYTES = 4;
+
+	// capability bits returned in the CMD_CAPS payload
+	public static final int CAP_PACKED_LOAD = 0x01;
+	public static final int CAP_RLE_LOAD = 0x02;
+}
@@ -0,0 +1,509 @@
+package com.kilpatrickaudio.kaUpdate.moduleUpdate;
+
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+import java.util.LinkedList;
+import java.util.List;
+
+import javax.sound.midi.InvalidMidiDataException;
+
+import com.kilpatrickaudio.kaUpdate.main.ProgressIndicator;
+import com.kilpatrickaudio.kaUpdate.midi.MIDIHandler;
+
+import org.apache.log4j.Logger;
+
+/**
+ * This class loads the chunks of a plan into several identical devices that all
+ * listen to one MIDI output, such as modules on a thru chain or splitter. Each
+ * chunk is sent once and every device acknowledges it on its own MIDI input, so
+ * loading N devices takes about as long as loading one.
+ *
+ * Acknowledgements are tracked per device. A device that misses an
+ * acknowledgement or answers with the wrong checksum stops being tracked for the
+ * chunks already in flight, the link is drained and the transfer continues
+ * stop-and-wait, the same as ChunkTransfer does. In stop-and-wait only a late
+ * acknowledgement can still be on its way, so the link just has to stay quiet
+ * for the retry backoff. Each device's input is cleared before a chunk is sent
+ * to it with nothing else in flight, so stray messages are never taken as its
+ * acknowledgement.
+ *
+ * Once every chunk has been sent, repair rounds send only the chunks that some
+ * device is still missing. A repaired chunk goes to every device on the output,
+ * so repair rounds are only used for targets that can load a chunk again, like
+ * the PIC18. Targets whose flash is erased before loading, like the PIC32, can't
+ * be programmed twice without blanking, so a device that fails a chunk is dropped
+ * and has to be updated again. A device that runs out of retries or does not
+ * answer at all is also dropped so it can't hold up the others.
+ *
+ * The retry limits are the same system properties ChunkTransfer uses:
+ * kaupdate.retry.count limits the repair rounds, kaupdate.retry.budget limits
+ * the failed chunks per device and kaupdate.retry.backoff is the quiet time
+ * after a failure in stop-and-wait.
+ *
+ * @author andrew
+ *
+ */
+public class BroadcastTransfer {
+	static final int DRAIN_TIMEOUT = 200;  // ms of silence before resuming after a fallback
+	static final int CAPS_TIMEOUT = 250;  // ms to wait for capability replies
+	static final int MAX_SILENT_CHUNKS = 4;  // chunks in a row without an answer before a device is dropped
+	Logger logger;
+	MIDIHandler out;
+	Device devices[];
+	TargetProfile profile;
+	SysexEncoder encoder;
+	SysexDecoder decoder;
+	boolean packed = false;
+	boolean rle = false;
+	byte rleBuf[];
+	ByteBuffer rleData;
+	long wireBytes = 0;
+	int resentCount = 0;
+	int maxRetries;
+	int errorBudget;
+	int backoffBase;
+
+	/**
+	 * A device on the shared output with its own input port.
+	 */
+	static class Device {
+		String name;
+		MIDIHandler midi;
+		RttEstimator rtt;
+		BitSet missing;  // chunks not yet acknowledged
+		int errors = 0;
+		int silent = 0;  // chunks in a row without an answer
+		boolean desync = false;  // waiting for the link to drain
+		String error = null;  // set once the device is dropped
+	}
+
+	/**
+	 * A chunk waiting for its acknowledgements.
+	 */
+	static class InFlight {
+		int index;
+		int addr;
+		int checksum;
+		long sentTime;  // ns
+		boolean resent;
+		boolean tracked[];  // devices expected to answer
+	}
+
+	/**
+	 * Creates a new broadcast transfer.
+	 *
+	 * @param out the MIDI handler with the shared output port open
+	 * @param inputs the MIDI handlers with each device input port open
+	 * @param names the device names used in log messages, in the same order
+	 * @param profile the target profile
+	 */
+	public BroadcastTransfer(MIDIHandler out, List<MIDIHandler> inputs, List<String> names, TargetProfile profile) {
+		logger = Logger.getLogger(this.getClass());
+		this.out = out;
+		this.profile = profile;
+		devices = new Device[inputs.size()];
+		for(int i = 0; i < devices.length; i ++) {
+			devices[i] = new Device();
+			devices[i].name = names.get(i);
+			devices[i].midi = inputs.get(i);
+			devices[i].rtt = RttEstimator.fromSystemProperties();
+		}
+		// the nibble encoding is the larger of the two
+		encoder = new SysexEncoder(SysexEncoder.getLoadLength(profile.getEffectiveChunkSize()));
+		decoder = new SysexDecoder();
+		rleBuf = new byte[RunLengthCodec.getMaxEncodedLength(profile.getEffectiveChunkSize())];
+		rleData = ByteBuffer.wrap(rleBuf);
+		maxRetries = Integer.parseInt(System.getProperty("kaupdate.retry.count",
+				Integer.toString(ChunkTransfer.DEFAULT_MAX_RETRIES)).trim());
+		errorBudget = Integer.parseInt(System.getProperty("kaupdate.retry.budget",
+				Integer.toString(ChunkTransfer.DEFAULT_ERROR_BUDGET)).trim());
+		backoffBase = Integer.parseInt(System.getProperty("kaupdate.retry.backoff",
+				Integer.toString(ChunkTransfer.DEFAULT_BACKOFF)).trim());
+	}
+
+	/**
+	 * Loads all chunks of a plan into every device.
+	 *
+	 * @param plan the chunk plan
+	 * @param pi the progress indicator to send updates to
+	 * @throws ModuleUpdateException if no device could be loaded
+	 */
+	public void run(ChunkPlan plan, ProgressIndicator pi) throws ModuleUpdateException {
+		int chunksTotal = plan.getChunkCount();
+		for(Device d : devices) {
+			d.missing = new BitSet(chunksTotal);
+			d.missing.set(0, chunksTotal);
+		}
+		int caps = 0;
+		if(profile.isPackedEnabled() || profile.isRleEnabled()) {
+			caps = queryCapabilities();
+		}
+		packed = profile.isPackedEnabled() && (caps & BootloaderProtocol.CAP_PACKED_LOAD) != 0;
+		rle = profile.isRleEnabled() && (caps & BootloaderProtocol.CAP_RLE_LOAD) != 0;
+		int window = Math.max(1, profile.getWindowSize());
+		logger.info("broadcasting chunks: " + chunksTotal + " total - devices: " + devices.length +
+				" - window: " + window + " - encoding: " + (packed ? "packed" : "nibble") + (rle ? " + rle" : ""));
+		pi.setPercentComplete(0);
+		for(int round = 0; ; round ++) {
+			BitSet send = new BitSet(chunksTotal);
+			for(Device d : devices) {
+				if(d.error == null) {
+					send.or(d.missing);
+				}
+			}
+			if(send.isEmpty()) {
+				break;
+			}
+			if(round > 0 && profile.isErasedBeforeLoad()) {
+				// a repair would load the chunk again into the devices that have it
+				for(Device d : devices) {
+					if(d.error == null && !d.missing.isEmpty()) {
+						drop(d, "chunks missing: " + d.missing.cardinality() + " - flash must be blanked again!");
+					}
+				}
+				break;
+			}
+			if(round > maxRetries) {
+				for(Device d : devices) {
+					if(d.error == null && !d.missing.isEmpty()) {
+						drop(d, "chunks still missing after " + maxRetries + " retries: " + d.missing.cardinality());
+					}
+				}
+				break;
+			}
+			if(round > 0) {
+				StringBuilder names = new StringBuilder();
+				for(Device d : devices) {
+					if(d.error == null && !d.missing.isEmpty()) {
+						names.append(names.length() == 0 ? "" : ", ");
+						names.append(d.name + " x" + d.missing.cardinality());
+					}
+				}
+				logger.info("repair round " + round + " - resending chunks: " + send.cardinality() +
+						" - for devices: " + names);
+				resentCount += send.cardinality();
+			}
+			window = sendRound(plan, send, round > 0, window, pi);
+		}
+		int loaded = 0;
+		for(Device d : devices) {
+			if(d.error == null) {
+				loaded ++;
+			}
+		}
+		logger.info("broadcast done - devices loaded: " + loaded + " of " + devices.length +
+				" - wire bytes: " + wireBytes + " - chunks resent: " + resentCount);
+		if(loaded == 0) {
+			throw new ModuleUpdateException("broadcast FAILED - no device was loaded");
+		}
+	}
+
+	/**
+	 * Sends a set of chunks once, collecting the acknowledgements of each device.
+	 *
+	 * @param plan the chunk plan
+	 * @param send the indexes of the chunks to send
+	 * @param resent true if the chunks were sent before
+	 * @param window the number of chunks that can be in flight
+	 * @param pi the progress indicator to send updates to
+	 * @return the window to use from now on
+	 * @throws ModuleUpdateException if a chunk could not be sent
+	 */
+	int sendRound(ChunkPlan plan, BitSet send, boolean resent, int window, ProgressIndicator pi)
+			throws ModuleUpdateException {
+		LinkedList<InFlight> outstanding = new LinkedList<InFlight>();
+		int next = send.nextSetBit(0);
+		while((next >= 0 || !outstanding.isEmpty()) && isLoading()) {
+			// fill the window unless a device needs to drain first
+			while(next >= 0 && outstanding.size() < window && !isDesync()) {
+				clearInbound(outstanding);
+				outstanding.addLast(send(plan, next, resent));
+				next = send.nextSetBit(next + 1);
+			}
+			if(outstanding.isEmpty()) {
+				drain(window);
+				window = 1;
+				continue;
+			}
+			collect(outstanding.removeFirst());
+			pi.setPercentComplete(getPercentComplete(plan.getChunkCount()));
+		}
+		if(isDesync()) {
+			drain(window);
+			window = 1;
+		}
+		return window;
+	}
+
+	/**
+	 * Sends a chunk load message to all devices.
+	 *
+	 * @param plan the chunk plan
+	 * @param index the chunk index in the plan
+	 * @param resent true if the chunk was sent before
+	 * @return the chunk waiting for its acknowledgements
+	 * @throws ModuleUpdateException if the message could not be sent
+	 */
+	InFlight send(ChunkPlan plan, int index, boolean resent) throws ModuleUpdateException {
+		InFlight chunk = new InFlight();
+		chunk.index = index;
+		chunk.resent = resent;
+		chunk.addr = plan.getChunkAddr(index);
+		chunk.tracked = new boolean[devices.length];
+		for(int i = 0; i < devices.length; i ++) {
+			chunk.tracked[i] = devices[i].error == null;
+		}
+		ByteBuffer data = plan.getChunkBuffer(index);
+		chunk.checksum = ChunkEncoder.checksum(data);
+		logger.debug("loading chunk addr: 0x" + Integer.toHexString(chunk.addr) + " -> to devices");
+		int rleLen = rle ? RunLengthCodec.encode(data, rleBuf) : Integer.MAX_VALUE;
+		if(rleLen < data.limit()) {
+			rleData.clear();
+			rleData.limit(rleLen);
+			encoder.encodePackedLoad(profile.getRleLoadCmd(), chunk.addr, rleData);
+		}
+		else if(packed) {
+			encoder.encodePackedLoad(profile.getPackedLoadCmd(), chunk.addr, data);
+		}
+		else {
+			encoder.encodeLoad(profile.getLoadCmd(), chunk.addr, data);
+		}
+		try {
+			out.sendSysex(encoder.getBuffer(), encoder.getLength());
+			chunk.sentTime = System.nanoTime();
+			wireBytes += encoder.getLength();
+		} catch (InvalidMidiDataException e) {
+			throw new ModuleUpdateException(e.getMessage());
+		}
+		return chunk;
+	}
+
+	/**
+	 * Collects the acknowledgements for a chunk from each device that is still
+	 * in step with the transfer.
+	 *
+	 * @param chunk the chunk
+	 */
+	void collect(InFlight chunk) {
+		for(int i = 0; i < devices.length; i ++) {
+			Device d = devices[i];
+			if(!chunk.tracked[i] || d.desync || d.error != null) {
+				continue;
+			}
+			long waited = (System.nanoTime() - chunk.sentTime) / 1000000;
+			decoder.wrap(d.midi.waitForSysex((int)Math.max(1, d.rtt.getTimeout() - waited)));
+			String error = null;
+			if(decoder.getLength() == 0) {
+				error = " NO RESPONSE after " + d.rtt.getTimeout() + " ms";
+				d.rtt.backoff();
+				d.silent ++;
+			}
+			else if(!decoder.isAck(profile.getAckCmd())) {
+				error = " INVALID RESPONSE - cmd: 0x" + Integer.toHexString(decoder.getCommand());
+				d.silent = 0;
+			}
+			else if(decoder.getAckChecksum() != chunk.checksum) {
+				error = " BAD CHECKSUM: " + Integer.toHexString(decoder.getAckChecksum()) +
+						" vs. " + Integer.toHexString(chunk.checksum);
+				d.silent = 0;
+			}
+			if(error != null) {
+				logger.warn("device: " + d.name + " - chunk addr: 0x" + Integer.toHexString(chunk.addr) + error);
+				d.desync = true;
+				d.errors ++;
+				if(profile.isErasedBeforeLoad()) {
+					drop(d, "chunk load failed - flash must be blanked again!");
+				}
+				else if(d.silent >= MAX_SILENT_CHUNKS) {
+					drop(d, "no response to " + d.silent + " chunks in a row");
+				}
+				else if(d.errors > errorBudget) {
+					drop(d, "error budget of " + errorBudget + " retries used up");
+				}
+				continue;
+			}
+			d.silent = 0;
+			if(!chunk.resent) {
+				d.rtt.sample((System.nanoTime() - chunk.sentTime) / 1e6);
+			}
+			d.missing.clear(chunk.index);
+		}
+	}
+
+	/**
+	 * Discards the messages waiting on the input of each device that has no
+	 * chunks in flight.
+	 *
+	 * @param outstanding the chunks waiting for their acknowledgements
+	 */
+	void clearInbound(List<InFlight> outstanding) {
+		for(int i = 0; i < devices.length; i ++) {
+			Device d = devices[i];
+			if(d.error != null || isTracked(outstanding, i)) {
+				continue;
+			}
+			int count = 0;
+			while(d.midi.pollSysex() != null) {
+				count ++;
+			}
+			if(count > 0) {
+				logger.debug("device: " + d.name + " - discarded stray messages: " + count);
+			}
+		}
+	}
+
+	/**
+	 * Checks if any chunk in flight is waiting for a device.
+	 *
+	 * @param outstanding the chunks waiting for their acknowledgements
+	 * @param device the device index
+	 * @return true if the device has chunks in flight
+	 */
+	static boolean isTracked(List<InFlight> outstanding, int device) {
+		for(InFlight chunk : outstanding) {
+			if(chunk.tracked[device]) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Waits for the devices that fell out of step to go quiet so late
+	 * acknowledgements are not matched to chunks sent afterwards.
+	 *
+	 * @param window the number of chunks that were in flight
+	 */
+	void drain(int window) {
+		int quiet = window > 1 ? DRAIN_TIMEOUT : Math.max(1, backoffBase);
+		for(Device d : devices) {
+			if(!d.desync) {
+				continue;
+			}
+			int count = 0;
+			while(d.midi.waitForSysex(quiet) != null) {
+				count ++;
+			}
+			logger.debug("device: " + d.name + " - drained late messages: " + count);
+			d.desync = false;
+		}
+	}
+
+	/**
+	 * Asks the bootloaders which load encodings they accept. An encoding is only
+	 * used if every device accepts it.
+	 *
+	 * @return the capability bits all devices share, or 0 if any did not answer
+	 * @throws ModuleUpdateException if the query could not be sent
+	 */
+	int queryCapabilities() throws ModuleUpdateException {
+		encoder.encodeCommand(BootloaderProtocol.CMD_QUERY_CAPS);
+		try {
+			out.sendSysex(encoder.getBuffer(), encoder.getLength());
+		} catch (InvalidMidiDataException e) {
+			throw new ModuleUpdateException(e.getMessage());
+		}
+		long deadline = System.currentTimeMillis() + CAPS_TIMEOUT;
+		int caps = -1;
+		for(Device d : devices) {
+			int deviceCaps = 0;
+			long remaining;
+			while((remaining = deadline - System.currentTimeMillis()) > 0) {
+				decoder.wrap(d.midi.waitForSysex((int)remaining));
+				if(decoder.getCommand() == BootloaderProtocol.CMD_CAPS &&
+						decoder.getLength() > BootloaderProtocol.COMMAND_LEN) {
+					deviceCaps = decoder.get(BootloaderProtocol.PAYLOAD_POS);
+					break;
+				}
+			}
+			logger.info("device: " + d.name + " - bootloader capabilities: 0x" + Integer.toHexString(deviceCaps));
+			caps &= deviceCaps;
+		}
+		return caps;
+	}
+
+	/**
+	 * Drops a device from the transfer.
+	 *
+	 * @param d the device
+	 * @param error the reason
+	 */
+	void drop(Device d, String error) {
+		d.error = error;
+		logger.error("device: " + d.name + " - dropped from broadcast - " + error);
+	}
+
+	/**
+	 * Checks if any device is still being loaded.
+	 *
+	 * @return true if a device has not been dropped
+	 */
+	boolean isLoading() {
+		for(Device d : devices) {
+			if(d.error == null) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Checks if any device is waiting for the link to drain.
+	 *
+	 * @return true if a device fell out of step
+	 */
+	boolean isDesync() {
+		for(Device d : devices) {
+			if(d.desync && d.error == null) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Gets the progress over the devices still being loaded.
+	 *
+	 * @param chunksTotal the chunks in the plan
+	 * @return the percent complete
+	 */
+	int getPercentComplete(int chunksTotal) {
+		long total = 0;
+		long done = 0;
+		for(Device d : devices) {
+			if(d.error == null) {
+				total += chunksTotal;
+				done += chunksTotal - d.missing.cardinality();
+			}
+		}
+		return total == 0 ? 0 : (int)(done * 100 / total);
+	}
+
+	/**
+	 * Gets the reason a device was dropped.
+	 *
+	 * @param device the device index
+	 * @return the error message, or null if the device was loaded
+	 */
+	public String getError(int device) {
+		return devices[device].error;
+	}
+
+	/**
+	 * Gets the number of chunk loads sent again in repair rounds.
+	 *
+	 * @return the resent chunk count
+	 */
+	public int getResentCount() {
+		return resentCount;
+	}
+
+	/**
+	 * Gets the number of chunk load bytes sent so far, including any resent chunks.
+	 *
+	 * @return the byte count
+	 */
+	public long getWireBytes() {
+		return wireBytes;
+	}
+}
@@ -0,0 +1,68 @@
+package com.kilpatrickaudio.kaUpdate.moduleUpdate;
+
+import java.nio.ByteBuffer;
+
+/**
+ * This class encodes flash chunks into bootloader load messages. The send path
+ * uses SysexEncoder directly - the int array form here is for callers that use
+ * the int array MIDIHandler methods.
+ *
+ * @author andrew
+ *
+ */
+public class ChunkEncoder {
+
+	/**
+	 * Encodes a chunk load SYSEX message. The address and data are sent
+	 * 4 bits per word, most significant nibble first.
+	 *
+	 * @param cmd the load command
+	 * @param addr the chunk start address
+	 * @param data the chunk data from position 0 to limit
+	 * @return the message
+	 */
+	public static int[] encodeLoadMessage(int cmd, int addr, ByteBuffer data) {
+		SysexEncoder encoder = new SysexEncoder(SysexEncoder.getLoadLength(data.limit()));
+		int len = encoder.encodeLoad(cmd, addr, data);
+		byte buf[] = encoder.getBuffer();
+		int msg[] = new int[len];
+		for(int i = 0; i < len; i ++) {
+			msg[i] = buf[i] & 0xff;
+		}
+		return msg;
+	}
+
+	/**
+	 * Gets the length of a chunk load SYSEX message.
+	 *
+	 * @param dataLen the chunk data length
+	 * @return the message length in bytes
+	 */
+	public static int getLoadMessageLength(int dataLen) {
+		return SysexEncoder.getLoadLength(dataLen);
+	}
+
+	/**
+	 * Gets the largest chunk that fits in a load SYSEX message.
+	 *
+	 * @param maxMessageLen the largest message length in bytes
+	 * @return the largest chunk data length
+	 */
+	public static int getMaxLoadDataLength(int maxMessageLen) {
+		return (maxMessageLen - 6) / 2 - 4;
+	}
+
+	/**
+	 * Computes the 7 bit checksum the bootloader returns for a loaded chunk.
+	 *
+	 * @param data the chunk data from position 0 to limit
+	 * @return the checksum
+	 */
+	public static int checksum(ByteBuffer data) {
+		int chksum = 0;
+		for(int i = 0; i < data.limit(); i ++) {
+			chksum += data.get(i) & 0xff;
+		}
+		return chksum & 0x7f;
+	}
+}
@@ -0,0 +1,308 @@
+package com.kilpatrickaudio.kaUpdate.moduleUpdate;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * This class plans the chunks of a flash image that are sent to a device. The
+ * image is cut into chunks following the target profile: chunks start on the
+ * profile alignment, are at most the chunk size, never cross a flash row and are
+ * split further if they would not fit in the largest SYSEX message. Data outside
+ * the programmable range is dropped and gaps inside a chunk are sent erased.
+ * 
+ * If the device was bulk erased before loading, chunks that are entirely in the
+ * erased state (0xff) are already correct and are dropped from the plan. If the
+ * contents of the device are known from a previous update, only the chunks that
+ * differ are sent.
+ * 
+ * @author andrew
+ *
+ */
+public class ChunkPlan {
+	FlashImage image;
+	int chunkAddrs[];
+	int chunkLens[];
+	int chunkCount;
+	int skippedCount;
+	long skippedWireBytes;
+	int outOfRangeCount;
+
+	/**
+	 * Plans the chunks to send for an image.
+	 * 
+	 * @param image the flash image
+	 * @param profile the target profile
+	 */
+	public ChunkPlan(FlashImage image, TargetProfile profile) {
+		this(image, profile, null);
+	}
+
+	/**
+	 * Plans the chunks to send for an image, skipping chunks that are already on
+	 * the device.
+	 * 
+	 * @param image the flash image
+	 * @param profile the target profile
+	 * @param previous the image known to be on the device, or null if unknown -
+	 *        chunks not entirely in it are always sent
+	 */
+	public ChunkPlan(FlashImage image, TargetProfile profile, FlashImage previous) {
+		this.image = image;
+		chunkAddrs = new int[Math.max(image.getPageCount(), 16)];
+		chunkLens = new int[chunkAddrs.length];
+		chunkCount = 0;
+		skippedCount = 0;
+		skippedWireBytes = 0;
+		outOfRangeCount = 0;
+		int chunkSize = profile.getEffectiveChunkSize();
+		long alignment = profile.getAlignment();
+		long rowSize = profile.getRowSize();
+		long wordSize = profile.getWordSize();
+		long rangeEnd = profile.getMaxAddr() + 1;
+		long pageSize = image.getPageSize();
+		int pageCount = image.getPageCount();
+		long spanStart = 0;
+		long spanEnd = 0;
+		int page = 0;
+		while(page < pageCount) {
+			// find the next run of contiguous pages
+			long runStart = image.getPageAddr(page) & 0xffffffffL;
+			long runEnd = runStart + pageSize;
+			page ++;
+			while(page < pageCount && (image.getPageAddr(page) & 0xffffffffL) == runEnd) {
+				runEnd += pageSize;
+				page ++;
+			}
+			long start = Math.max(runStart, profile.getMinAddr());
+			long end = Math.min(runEnd, rangeEnd);
+			if(start >= end) {
+				outOfRangeCount += (int)((runEnd - runStart) / pageSize);
+				continue;
+			}
+			outOfRangeCount += (int)((start - runStart) / pageSize + (runEnd - end) / pageSize);
+			start -= start % alignment;
+			// round the end up to a whole word
+			end = Math.min(end + (wordSize - end % wordSize) % wordSize, rangeEnd);
+			// a run that starts in the last aligned block of the previous run is
+			// merged into it so the chunks stay aligned - the gap is sent erased
+			if(start < spanEnd) {
+				spanEnd = Math.max(spanEnd, end);
+				continue;
+			}
+			addSpan(spanStart, spanEnd, chunkSize, rowSize, profile, previous);
+			spanStart = start;
+			spanEnd = end;
+		}
+		addSpan(spanStart, spanEnd, chunkSize, rowSize, profile, previous);
+	}
+
+	/**
+	 * Cuts an aligned span into chunks and adds them to the plan. Chunks with
+	 * no image data are left out.
+	 * 
+	 * @param start the span start address
+	 * @param end the span end address
+	 * @param chunkSize the largest chunk in bytes
+	 * @param rowSize the flash row size that chunks must not cross, or 0 for none
+	 * @param profile the target profile
+	 * @param previous the image known to be on the device, or null if unknown
+	 */
+	void addSpan(long start, long end, int chunkSize, long rowSize, TargetProfile profile, FlashImage previous) {
+		while(start < end) {
+			long chunkEnd = Math.min(start + chunkSize, end);
+			if(rowSize > 0) {
+				chunkEnd = Math.min(chunkEnd, start - start % rowSize + rowSize);
+			}
+			if(hasData(image, (int)start, (int)(chunkEnd - start))) {
+				addChunk((int)start, (int)(chunkEnd - start), profile, previous);
+			}
+			start = chunkEnd;
+		}
+	}
+
+	/**
+	 * Adds a chunk to the plan unless it is already on the device.
+	 * 
+	 * @param addr the chunk address
+	 * @param len the chunk length
+	 * @param profile the target profile
+	 * @param previous the image known to be on the device, or null if unknown
+	 */
+	void addChunk(int addr, int len, TargetProfile profile, FlashImage previous) {
+		ByteBuffer data = readChunk(image, addr, len);
+		if((profile.isErasedBeforeLoad() && isErased(data)) ||
+				(previous != null && contains(previous, addr, len) && data.equals(readChunk(previous, addr, len)))) {
+			skippedCount ++;
+			skippedWireBytes += ChunkEncoder.getLoadMessageLength(len);
+			return;
+		}
+		if(chunkCount == chunkAddrs.length) {
+			chunkAddrs = Arrays.copyOf(chunkAddrs, chunkCount * 2);
+			chunkLens = Arrays.copyOf(chunkLens, chunkCount * 2);
+		}
+		chunkAddrs[chunkCount] = addr;
+		chunkLens[chunkCount] = len;
+		chunkCount ++;
+	}
+
+	/**
+	 * Checks if an image has every page of a chunk.
+	 * 
+	 * @param image the image
+	 * @param addr the chunk address
+	 * @param len the chunk length
+	 * @return true if all the pages exist
+	 */
+	static boolean contains(FlashImage image, int addr, int len) {
+		int pageSize = image.getPageSize();
+		long end = (addr & 0xffffffffL) + len;
+		for(long pageAddr = (addr & 0xffffffffL) & ~(long)(pageSize - 1); pageAddr < end; pageAddr += pageSize) {
+			if(image.findPageBuffer((int)pageAddr) == null) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Checks if an image has any page of a chunk.
+	 * 
+	 * @param image the image
+	 * @param addr the chunk address
+	 * @param len the chunk length
+	 * @return true if at least one page exists
+	 */
+	static boolean hasData(FlashImage image, int addr, int len) {
+		int pageSize = image.getPageSize();
+		long end = (addr & 0xffffffffL) + len;
+		for(long pageAddr = (addr & 0xffffffffL) & ~(long)(pageSize - 1); pageAddr < end; pageAddr += pageSize) {
+			if(image.findPageBuffer((int)pageAddr) != null) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Reads a chunk from an image. Chunks that are exactly one page are not copied.
+	 * 
+	 * @param image the image
+	 * @param addr the chunk address
+	 * @param len the chunk length
+	 * @return the chunk data from position 0 to limit
+	 */
+	static ByteBuffer readChunk(FlashImage image, int addr, int len) {
+		if(len == image.getPageSize() && (addr & (len - 1)) == 0) {
+			ByteBuffer page = image.findPageBuffer(addr);
+			if(page != null) {
+				return page;
+			}
+		}
+		byte data[] = new byte[len];
+		image.read(addr, data, 0, len);
+		return ByteBuffer.wrap(data).asReadOnlyBuffer();
+	}
+
+	/**
+	 * Checks if a chunk is entirely in the erased state.
+	 * 
+	 * @param data the chunk data from position 0 to limit
+	 * @return true if every byte is erased
+	 */
+	public static boolean isErased(ByteBuffer data) {
+		int i = 0;
+		int len = data.limit();
+		// compare 8 bytes at a time
+		for(; i + 8 <= len; i += 8) {
+			if(data.getLong(i) != -1L) {
+				return false;
+			}
+		}
+		for(; i < len; i ++) {
+			if((data.get(i) & 0xff) != FlashImage.ERASED) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Gets the number of chunks to send.
+	 * 
+	 * @return the number of chunks
+	 */
+	public int getChunkCount() {
+		return chunkCount;
+	}
+
+	/**
+	 * Gets the address of a chunk to send.
+	 * 
+	 * @param index the chunk index in the plan
+	 * @return the chunk address
+	 */
+	public int getChunkAddr(int index) {
+		checkIndex(index);
+		return chunkAddrs[index];
+	}
+
+	/**
+	 * Gets the length of a chunk to send.
+	 * 
+	 * @param index the chunk index in the plan
+	 * @return the chunk length in bytes
+	 */
+	public int getChunkLength(int index) {
+		checkIndex(index);
+		return chunkLens[index];
+	}
+
+	/**
+	 * Gets the data of a chunk to send.
+	 * 
+	 * @param index the chunk index in the plan
+	 * @return a read-only buffer of the chunk data from position 0 to limit
+	 */
+	public ByteBuffer getChunkBuffer(int index) {
+		checkIndex(index);
+		return readChunk(image, chunkAddrs[index], chunkLens[index]);
+	}
+
+	/**
+	 * Checks a chunk index.
+	 * 
+	 * @param index the chunk index in the plan
+	 */
+	void checkIndex(int index) {
+		if(index < 0 || index >= chunkCount) {
+			throw new IndexOutOfBoundsException("chunk index: " + index);
+		}
+	}
+
+	/**
+	 * Gets the number of chunks that were skipped because they were already on the device.
+	 * 
+	 * @return the number of skipped chunks
+	 */
+	public int getSkippedCount() {
+		return skippedCount;
+	}
+
+	/**
+	 * Gets the number of MIDI bytes saved by skipping chunks.
+	 * 
+	 * @return the number of bytes not sent
+	 */
+	public long getSkippedWireBytes() {
+		return skippedWireBytes;
+	}
+
+	/**
+	 * Gets the number of image pages that were outside the programmable range.
+	 * 
+	 * @return the number of pages not sent
+	 */
+	public int getOutOfRangeCount() {
+		return outOfRangeCount;
+	}
+}
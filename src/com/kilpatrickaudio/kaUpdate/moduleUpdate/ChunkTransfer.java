@@ -0,0 +1,461 @@
+package com.kilpatrickaudio.kaUpdate.moduleUpdate;
+
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+
+import javax.sound.midi.InvalidMidiDataException;
+
+import com.kilpatrickaudio.kaUpdate.main.ProgressIndicator;
+import com.kilpatrickaudio.kaUpdate.midi.MIDIHandler;
+
+import org.apache.log4j.Logger;
+
+/**
+ * This class loads the chunks of a plan into a device. Up to the profile window
+ * size of chunks are sent before waiting for their acknowledgements, which must
+ * come back in order with the expected checksum. If anything goes wrong with more
+ * than one chunk in flight the transfer drains the link and falls back to
+ * stop-and-wait from the first unacknowledged chunk. Chunks that fail are sent
+ * again after a short randomized backoff. The update only fails if a chunk runs
+ * out of retries or the session uses up its error budget. The time to wait for
+ * each acknowledgement comes from an RttEstimator fed with the latency of
+ * earlier chunks.
+ *
+ * Targets that are erased before loading can't have a chunk written twice, so
+ * only chunks that got no reply at all are sent again. A bad reply, or a late
+ * reply during the backoff or drain, fails the update and the target must be
+ * blanked again.
+ *
+ * Chunks that are already on the device, such as those recorded in a
+ * TransferJournal before an interrupted update, can be skipped. A listener can
+ * be told about each acknowledged chunk.
+ *
+ * The retries can be set with system properties:
+ * - kaupdate.retry.count: the retries allowed per chunk (default: 3)
+ * - kaupdate.retry.budget: the retries allowed per transfer (default: 32)
+ * - kaupdate.retry.backoff: the first backoff in ms, doubling for each retry of
+ *   a chunk (default: 20)
+ *
+ * If the profile enables packed or compressed loads the bootloader capabilities
+ * are queried first. Each encoding is only used if the bootloader answers with
+ * its capability. Chunks that do not get smaller with compression are sent
+ * without it.
+ *
+ * @author andrew
+ *
+ */
+public class ChunkTransfer {
+	static final int DRAIN_TIMEOUT = 200;  // ms of silence before resuming after a fallback
+	static final int CAPS_TIMEOUT = 250;  // ms to wait for a capability reply
+	static final int DEFAULT_MAX_RETRIES = 3;
+	static final int DEFAULT_ERROR_BUDGET = 32;
+	static final int DEFAULT_BACKOFF = 20;  // ms
+	Logger logger;
+	MIDIHandler midi;
+	TargetProfile profile;
+	SysexEncoder encoder;
+	SysexDecoder decoder;
+	boolean packed = false;
+	boolean rle = false;
+	byte rleBuf[];
+	ByteBuffer rleData;
+	long wireBytes = 0;
+	RttEstimator rtt;
+	int sentHigh = 0;  // one past the highest chunk index sent
+	int maxRetries;
+	int errorBudget;
+	int backoffBase;
+	int retryCount = 0;
+	Map<Integer, Integer> retriedAddrs = new LinkedHashMap<Integer, Integer>();
+	Random random = new Random();
+	AckListener ackListener = null;
+
+	/**
+	 * A listener for acknowledged chunks.
+	 */
+	public interface AckListener {
+		/**
+		 * Called when a chunk is acknowledged by the device.
+		 *
+		 * @param index the chunk index in the plan
+		 */
+		public void chunkAcknowledged(int index);
+	}
+
+	/**
+	 * A chunk waiting for its acknowledgement.
+	 */
+	static class InFlight {
+		int index;
+		int pos;  // position in the list of chunks to send
+		int addr;
+		int checksum;
+		long sentTime;  // ns
+		boolean resent;
+		CompletableFuture<byte[]> response;
+	}
+
+	/**
+	 * Creates a new chunk transfer.
+	 *
+	 * @param midi the MIDI handler with the ports open
+	 * @param profile the target profile
+	 */
+	public ChunkTransfer(MIDIHandler midi, TargetProfile profile) {
+		logger = Logger.getLogger(this.getClass());
+		this.midi = midi;
+		this.profile = profile;
+		// the nibble encoding is the larger of the two
+		encoder = new SysexEncoder(SysexEncoder.getLoadLength(profile.getEffectiveChunkSize()));
+		decoder = new SysexDecoder();
+		rleBuf = new byte[RunLengthCodec.getMaxEncodedLength(profile.getEffectiveChunkSize())];
+		rleData = ByteBuffer.wrap(rleBuf);
+		rtt = RttEstimator.fromSystemProperties();
+		maxRetries = Integer.parseInt(System.getProperty("kaupdate.retry.count",
+				Integer.toString(DEFAULT_MAX_RETRIES)).trim());
+		errorBudget = Integer.parseInt(System.getProperty("kaupdate.retry.budget",
+				Integer.toString(DEFAULT_ERROR_BUDGET)).trim());
+		backoffBase = Integer.parseInt(System.getProperty("kaupdate.retry.backoff",
+				Integer.toString(DEFAULT_BACKOFF)).trim());
+	}
+
+	/**
+	 * Sets the retry limits.
+	 *
+	 * @param maxRetries the retries allowed per chunk
+	 * @param errorBudget the retries allowed per transfer
+	 */
+	public void setRetryLimits(int maxRetries, int errorBudget) {
+		this.maxRetries = maxRetries;
+		this.errorBudget = errorBudget;
+	}
+
+	/**
+	 * Sets the listener that is told about each acknowledged chunk.
+	 *
+	 * @param ackListener the listener, or null for none
+	 */
+	public void setAckListener(AckListener ackListener) {
+		this.ackListener = ackListener;
+	}
+
+	/**
+	 * Gets the number of chunk retries so far.
+	 *
+	 * @return the retry count
+	 */
+	public int getRetryCount() {
+		return retryCount;
+	}
+
+	/**
+	 * Gets the addresses of chunks that were retried.
+	 *
+	 * @return a map of chunk address to retry count in the order they first failed
+	 */
+	public Map<Integer, Integer> getRetriedAddrs() {
+		return retriedAddrs;
+	}
+
+	/**
+	 * Sets the estimator used for acknowledgement timeouts. Sharing one lets later
+	 * transfers to the same device start with what was learned.
+	 *
+	 * @param rtt the RTT estimator
+	 */
+	public void setRttEstimator(RttEstimator rtt) {
+		this.rtt = rtt;
+	}
+
+	/**
+	 * Gets the estimator used for acknowledgement timeouts.
+	 *
+	 * @return the RTT estimator
+	 */
+	public RttEstimator getRttEstimator() {
+		return rtt;
+	}
+
+	/**
+	 * Loads all chunks of a plan.
+	 *
+	 * @param plan the chunk plan
+	 * @param pi the progress indicator to send updates to
+	 * @throws ModuleUpdateException if a chunk could not be loaded
+	 */
+	public void run(ChunkPlan plan, ProgressIndicator pi) throws ModuleUpdateException {
+		run(plan, pi, null);
+	}
+
+	/**
+	 * Loads the chunks of a plan that are not already on the device.
+	 *
+	 * @param plan the chunk plan
+	 * @param pi the progress indicator to send updates to
+	 * @param done the indexes of chunks already on the device, or null to load all chunks
+	 * @throws ModuleUpdateException if a chunk could not be loaded
+	 */
+	public void run(ChunkPlan plan, ProgressIndicator pi, BitSet done) throws ModuleUpdateException {
+		int chunksTotal = plan.getChunkCount();
+		int window = Math.max(1, profile.getWindowSize());
+		LinkedList<InFlight> outstanding = new LinkedList<InFlight>();
+		// the chunks still to send
+		int todo[] = new int[chunksTotal];
+		int todoCount = 0;
+		for(int i = 0; i < chunksTotal; i ++) {
+			if(done == null || !done.get(i)) {
+				todo[todoCount ++] = i;
+			}
+		}
+		int next = 0;
+		int chunksCompleted = chunksTotal - todoCount;
+		pi.setPercentComplete((int)((double)chunksCompleted / (double)Math.max(1, chunksTotal) * 100));
+		int caps = 0;
+		if(profile.isPackedEnabled() || profile.isRleEnabled()) {
+			caps = queryCapabilities();
+		}
+		packed = profile.isPackedEnabled() && (caps & BootloaderProtocol.CAP_PACKED_LOAD) != 0;
+		rle = profile.isRleEnabled() && (caps & BootloaderProtocol.CAP_RLE_LOAD) != 0;
+		logger.info("loading chunks: " + chunksTotal + " total - window: " + window +
+				" - encoding: " + (packed ? "packed" : "nibble") + (rle ? " + rle" : ""));
+		while(chunksCompleted < chunksTotal) {
+			// fill the window
+			while(outstanding.size() < window && next < todoCount) {
+				InFlight chunk = send(plan, todo[next]);
+				chunk.pos = next ++;
+				outstanding.addLast(chunk);
+			}
+			InFlight chunk = outstanding.removeFirst();
+			long waited = (System.nanoTime() - chunk.sentTime) / 1000000;
+			decoder.wrap(midi.getResponse(chunk.response, (int)Math.max(1, rtt.getTimeout() - waited)));
+			String error = null;
+			boolean answered = true;
+			if(decoder.getLength() == 0) {
+				// see if some other message came back instead
+				byte other[] = midi.pollSysex();
+				if(other != null) {
+					logRxMessage(decoder.wrap(other));
+					error = " INVALID RESPONSE";
+				}
+				else {
+					error = " NO RESPONSE after " + rtt.getTimeout() + " ms";
+					answered = false;
+					rtt.backoff();
+				}
+			}
+			else if(!decoder.isAck(profile.getAckCmd())) {
+				logRxMessage(decoder);
+				error = " INVALID RESPONSE";
+			}
+			else if(decoder.getAckChecksum() != chunk.checksum) {
+				error = " BAD CHECKSUM: " + Integer.toHexString(decoder.getAckChecksum()) +
+						" vs. " + Integer.toHexString(chunk.checksum);
+			}
+			if(error != null) {
+				// the chunk was written - loading it again over flash that is not erased can't fix it
+				if(answered && profile.isErasedBeforeLoad()) {
+					throw new ModuleUpdateException("flashed chunk addr: 0x" +
+							Integer.toHexString(chunk.addr) + error + " - FAILED - flash must be blanked again!");
+				}
+				Integer attempts = retriedAddrs.get(chunk.addr);
+				attempts = attempts == null ? 1 : attempts + 1;
+				if(attempts > maxRetries) {
+					throw new ModuleUpdateException("flashed chunk addr: 0x" +
+							Integer.toHexString(chunk.addr) + error + " - FAILED after " + maxRetries + " retries!");
+				}
+				if(retryCount >= errorBudget) {
+					throw new ModuleUpdateException("flashed chunk addr: 0x" +
+							Integer.toHexString(chunk.addr) + error + " - FAILED - error budget of " +
+							errorBudget + " retries used up!");
+				}
+				retriedAddrs.put(chunk.addr, attempts);
+				retryCount ++;
+				logger.warn("flashed chunk addr: 0x" + Integer.toHexString(chunk.addr) + error +
+						" - retry " + attempts + (window > 1 ? " - falling back to stop-and-wait" : ""));
+				outstanding.addFirst(chunk);
+				for(InFlight f : outstanding) {
+					midi.cancelRequest(f.response);
+				}
+				int late = window > 1 ? drain() : backoff(attempts);
+				// a late ack means a chunk that would be sent again was written
+				if(late > 0 && profile.isErasedBeforeLoad()) {
+					throw new ModuleUpdateException("flashed chunk addr: 0x" +
+							Integer.toHexString(chunk.addr) + error +
+							" - FAILED - late ack - flash must be blanked again!");
+				}
+				next = chunk.pos;
+				outstanding.clear();
+				window = 1;
+				continue;
+			}
+			if(!chunk.resent) {
+				rtt.sample((System.nanoTime() - chunk.sentTime) / 1e6);
+			}
+			logger.info("flashed chunk addr: 0x" +
+					Integer.toHexString(chunk.addr) + " CHECKSUM OK");
+			if(ackListener != null) {
+				ackListener.chunkAcknowledged(chunk.index);
+			}
+			chunksCompleted ++;
+			pi.setPercentComplete((int)((double)chunksCompleted / (double)chunksTotal * 100));
+		}
+		logger.info("chunks loaded - wire bytes: " + wireBytes +
+				String.format(" - ack latency: %.1f ms +/- %.1f ms - timeout: %d ms",
+				rtt.getSmoothedRtt(), rtt.getRttVariation(), rtt.getTimeout()));
+		if(retryCount > 0) {
+			StringBuilder addrs = new StringBuilder();
+			for(Map.Entry<Integer, Integer> e : retriedAddrs.entrySet()) {
+				addrs.append(addrs.length() == 0 ? "" : ", ");
+				addrs.append("0x" + Integer.toHexString(e.getKey()) + " x" + e.getValue());
+			}
+			logger.warn("chunk retries: " + retryCount + " - addrs: " + addrs);
+		}
+	}
+
+	/**
+	 * Sends a chunk load message.
+	 *
+	 * @param plan the chunk plan
+	 * @param index the chunk index in the plan
+	 * @return the chunk waiting for its acknowledgement
+	 * @throws ModuleUpdateException if the message could not be sent
+	 */
+	InFlight send(ChunkPlan plan, int index) throws ModuleUpdateException {
+		InFlight chunk = new InFlight();
+		chunk.index = index;
+		chunk.resent = index < sentHigh;
+		sentHigh = Math.max(sentHigh, index + 1);
+		chunk.addr = plan.getChunkAddr(index);
+		ByteBuffer data = plan.getChunkBuffer(index);
+		chunk.checksum = ChunkEncoder.checksum(data);
+		logger.info("loading chunk addr: 0x" + Integer.toHexString(chunk.addr) + " -> to device");
+		int rleLen = rle ? RunLengthCodec.encode(data, rleBuf) : Integer.MAX_VALUE;
+		if(rleLen < data.limit()) {
+			rleData.clear();
+			rleData.limit(rleLen);
+			encoder.encodePackedLoad(profile.getRleLoadCmd(), chunk.addr, rleData);
+		}
+		else if(packed) {
+			encoder.encodePackedLoad(profile.getPackedLoadCmd(), chunk.addr, data);
+		}
+		else {
+			encoder.encodeLoad(profile.getLoadCmd(), chunk.addr, data);
+		}
+		try {
+			chunk.response = midi.sendSysexRequest(encoder.getBuffer(), encoder.getLength(), profile.getAckCmd());
+			chunk.sentTime = System.nanoTime();
+			wireBytes += encoder.getLength();
+		} catch (InvalidMidiDataException e) {
+			throw new ModuleUpdateException(e.getMessage());
+		}
+		return chunk;
+	}
+
+	/**
+	 * Asks the bootloader which load encodings it accepts. Bootloaders that
+	 * predate the capability query ignore it.
+	 *
+	 * @return the capability bits, or 0 if the bootloader did not answer
+	 * @throws ModuleUpdateException if the query could not be sent
+	 */
+	int queryCapabilities() throws ModuleUpdateException {
+		encoder.encodeCommand(BootloaderProtocol.CMD_QUERY_CAPS);
+		CompletableFuture<byte[]> response;
+		try {
+			response = midi.sendSysexRequest(encoder.getBuffer(), encoder.getLength(), BootloaderProtocol.CMD_CAPS);
+		} catch (InvalidMidiDataException e) {
+			throw new ModuleUpdateException(e.getMessage());
+		}
+		decoder.wrap(midi.getResponse(response, CAPS_TIMEOUT));
+		if(decoder.getLength() <= BootloaderProtocol.COMMAND_LEN ||
+				decoder.getCommand() != BootloaderProtocol.CMD_CAPS) {
+			logger.info("bootloader did not report capabilities - using nibble loads");
+			return 0;
+		}
+		int caps = decoder.get(BootloaderProtocol.PAYLOAD_POS);
+		logger.info("bootloader capabilities: 0x" + Integer.toHexString(caps));
+		return caps;
+	}
+
+	/**
+	 * Checks if chunks are being sent with the packed encoding.
+	 *
+	 * @return true if packed loads are used
+	 */
+	public boolean isPacked() {
+		return packed;
+	}
+
+	/**
+	 * Checks if chunks are being sent with compression when it helps.
+	 *
+	 * @return true if compressed loads are used
+	 */
+	public boolean isRle() {
+		return rle;
+	}
+
+	/**
+	 * Gets the number of chunk load bytes sent so far, including any resent chunks.
+	 *
+	 * @return the byte count
+	 */
+	public long getWireBytes() {
+		return wireBytes;
+	}
+
+	/**
+	 * Waits before a chunk is sent again. The wait doubles with each retry of the
+	 * chunk and is randomized so retries don't fall into step with a periodic
+	 * glitch. Anything that arrives meanwhile is a late reply and is discarded.
+	 *
+	 * @param attempt the retry number of the chunk starting at 1
+	 * @return the number of late messages discarded
+	 */
+	int backoff(int attempt) {
+		long delay = (long)backoffBase << Math.min(attempt - 1, 10);
+		delay += (long)(random.nextDouble() * delay);
+		long deadline = System.currentTimeMillis() + delay;
+		int count = 0;
+		long remaining;
+		while((remaining = deadline - System.currentTimeMillis()) > 0) {
+			if(midi.waitForSysex((int)remaining) != null) {
+				count ++;
+			}
+		}
+		logger.debug("retry backoff: " + delay + " ms - discarded late messages: " + count);
+		return count;
+	}
+
+	/**
+	 * Waits for the link to go quiet so late acknowledgements are not matched to
+	 * chunks sent after a fallback.
+	 *
+	 * @return the number of late messages discarded
+	 */
+	int drain() {
+		int count = 0;
+		while(midi.waitForSysex(DRAIN_TIMEOUT) != null) {
+			count ++;
+		}
+		logger.debug("drained late messages: " + count);
+		return count;
+	}
+
+	/**
+	 * Logs a received message that was not expected.
+	 *
+	 * @param msg the message
+	 */
+	void logRxMessage(SysexDecoder msg) {
+		logger.error("rx message:");
+		for(int i = 0; i < msg.getLength(); i ++) {
+			logger.error("rx[" + i + "]: " + Integer.toHexString(msg.get(i)));
+		}
+	}
+}
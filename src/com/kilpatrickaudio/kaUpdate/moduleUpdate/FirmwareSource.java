@@ -0,0 +1,172 @@
+package com.kilpatrickaudio.kaUpdate.moduleUpdate;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * This class represents where an update file is read from. This can be a plain
+ * file, a gzip compressed file (.gz) or an entry inside a zip archive. Archive
+ * entries are named as archive!entry on the command line and in the GUI.
+ *
+ * @author andrew
+ *
+ */
+public class FirmwareSource {
+	public static final String ENTRY_SEPARATOR = "!";
+	File file;
+	String entryName;
+
+	/**
+	 * Creates a source for a plain or gzip compressed file.
+	 *
+	 * @param file the file
+	 */
+	public FirmwareSource(File file) {
+		this.file = file;
+		this.entryName = null;
+	}
+
+	/**
+	 * Creates a source for an entry inside a zip archive.
+	 *
+	 * @param archive the zip archive
+	 * @param entryName the name of the entry inside the archive
+	 */
+	public FirmwareSource(File archive, String entryName) {
+		this.file = archive;
+		this.entryName = entryName;
+	}
+
+	/**
+	 * Creates a source from a filename that may name an archive entry as archive!entry.
+	 * The filename is only split if the part before a separator is an existing
+	 * file, so plain paths that contain the separator are left alone.
+	 *
+	 * @param filename the filename
+	 * @return the source
+	 */
+	public static FirmwareSource fromFilename(String filename) {
+		File file = new File(filename);
+		if(file.exists()) {
+			return new FirmwareSource(file);
+		}
+		int sep = filename.indexOf(ENTRY_SEPARATOR);
+		while(sep > 0 && sep < filename.length() - 1) {
+			File archive = new File(filename.substring(0, sep));
+			if(archive.isFile()) {
+				return new FirmwareSource(archive, filename.substring(sep + 1));
+			}
+			sep = filename.indexOf(ENTRY_SEPARATOR, sep + 1);
+		}
+		return new FirmwareSource(file);
+	}
+
+	/**
+	 * Gets the name of the firmware with any archive path and .gz suffix removed.
+	 * The name is used to work out the file format, device ID and chip type.
+	 *
+	 * @return the name
+	 */
+	public String getName() {
+		String name = entryName != null ? entryName : file.getName();
+		name = name.substring(name.lastIndexOf('/') + 1);
+		if(isGzip(name)) {
+			name = name.substring(0, name.length() - 3);
+		}
+		return name;
+	}
+
+	/**
+	 * Gets the file on disk. For archive entries this is the archive.
+	 *
+	 * @return the file
+	 */
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Checks if the firmware can be read straight from an uncompressed file on disk.
+	 *
+	 * @return true if the source is a plain file
+	 */
+	public boolean isPlainFile() {
+		return entryName == null && !isGzip(file.getName());
+	}
+
+	/**
+	 * Checks if the source can be read.
+	 *
+	 * @return true if the file or archive is readable
+	 */
+	public boolean canRead() {
+		return file.canRead();
+	}
+
+	/**
+	 * Opens a stream of the uncompressed firmware.
+	 *
+	 * @return the stream - the caller must close it
+	 * @throws IOException if the source cannot be opened or the archive entry does not exist
+	 */
+	public InputStream openStream() throws IOException {
+		InputStream in;
+		String name;
+		if(entryName == null) {
+			in = new FileInputStream(file);
+			name = file.getName();
+		}
+		else {
+			final ZipFile zip = new ZipFile(file);
+			ZipEntry entry = zip.getEntry(entryName);
+			if(entry == null) {
+				zip.close();
+				throw new IOException("archive entry not found: " + this);
+			}
+			// close the archive along with the entry stream
+			in = new FilterInputStream(zip.getInputStream(entry)) {
+				public void close() throws IOException {
+					try {
+						super.close();
+					} finally {
+						zip.close();
+					}
+				}
+			};
+			name = entryName;
+		}
+		if(isGzip(name)) {
+			try {
+				in = new GZIPInputStream(in, 64 * 1024);
+			} catch (IOException e) {
+				in.close();
+				throw e;
+			}
+		}
+		return in;
+	}
+
+	/**
+	 * Checks if a name has a gzip suffix.
+	 *
+	 * @param name the name
+	 * @return true if the name ends in .gz
+	 */
+	static boolean isGzip(String name) {
+		return name.toLowerCase().endsWith(".gz");
+	}
+
+	@Override
+	public String toString() {
+		if(entryName != null) {
+			return file.getAbsolutePath() + ENTRY_SEPARATOR + entryName;
+		}
+		return file.getAbsolutePath();
+	}
+}
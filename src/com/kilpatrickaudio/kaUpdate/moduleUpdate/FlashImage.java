@@ -0,0 +1,359 @@
+package com.kilpatrickaudio.kaUpdate.moduleUpdate;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * This class holds a sparse flash image as a set of fixed size pages. Pages are
+ * found through a primitive open addressing index and stored byte-packed in a
+ * growable off-heap buffer, with unwritten bytes left in the erased (0xff) state.
+ * Later writes overwrite earlier ones and writes that straddle a page boundary are
+ * merged into both pages. Pages can be sliced out for transmission without copying.
+ *
+ * @author andrew
+ *
+ */
+public class FlashImage implements HexRecordHandler {
+	public static final int ERASED = 0xff;
+	static final int INITIAL_PAGES = 64;
+	int pageSize;
+	int pageShift;
+	int pageMask;
+	// page index - open addressing with linear probing
+	int indexKeys[];  // page address
+	int indexSlots[];  // page slot or -1 if empty
+	int indexMask;
+	// page storage in slot order
+	int pageCount = 0;
+	int pageAddrs[];
+	ByteBuffer pages;
+	ByteBuffer writeView;  // positioned view used for bulk writes
+	byte erasedPage[];
+	// slots in address order - rebuilt when pages are added
+	int orderedSlots[] = null;
+	boolean readOnly = false;
+
+	/**
+	 * Creates a new empty flash image.
+	 *
+	 * @param pageSize the page size in bytes - must be a power of two
+	 */
+	public FlashImage(int pageSize) {
+		if(pageSize <= 0 || (pageSize & (pageSize - 1)) != 0) {
+			throw new IllegalArgumentException("page size must be a power of two: " + pageSize);
+		}
+		this.pageSize = pageSize;
+		pageShift = Integer.numberOfTrailingZeros(pageSize);
+		pageMask = pageSize - 1;
+		indexKeys = new int[INITIAL_PAGES * 2];
+		indexSlots = new int[INITIAL_PAGES * 2];
+		Arrays.fill(indexSlots, -1);
+		indexMask = indexSlots.length - 1;
+		pageAddrs = new int[INITIAL_PAGES];
+		pages = ByteBuffer.allocateDirect(INITIAL_PAGES * pageSize);
+		writeView = pages.duplicate();
+		erasedPage = new byte[pageSize];
+		Arrays.fill(erasedPage, (byte)ERASED);
+	}
+
+	/**
+	 * Creates a read-only flash image over existing page storage.
+	 *
+	 * @param pageSize the page size in bytes - must be a power of two
+	 * @param addrs the page addresses in ascending address order
+	 * @param storage the page contents in the same order as the addresses
+	 */
+	FlashImage(int pageSize, int addrs[], ByteBuffer storage) {
+		this(pageSize);
+		pageCount = addrs.length;
+		pageAddrs = addrs;
+		pages = storage;
+		writeView = null;
+		readOnly = true;
+		orderedSlots = new int[pageCount];
+		for(int i = 0; i < pageCount; i ++) {
+			orderedSlots[i] = i;
+		}
+		rehash(Math.max(Integer.highestOneBit(pageCount) * 4, INITIAL_PAGES * 2));
+	}
+
+	@Override
+	public void dataRecord(int addr, byte data[], int offset, int len) {
+		write(addr, data, offset, len);
+	}
+
+	/**
+	 * Makes the image read-only so it can be shared between threads. The page
+	 * order is built first so later reads never change the image.
+	 */
+	public void setReadOnly() {
+		getOrderedSlots();
+		readOnly = true;
+	}
+
+	/**
+	 * Checks if the image is read-only.
+	 *
+	 * @return true if the image can't be written
+	 */
+	public boolean isReadOnly() {
+		return readOnly;
+	}
+
+	/**
+	 * Writes data into the image.
+	 *
+	 * @param addr the start address
+	 * @param data the data buffer
+	 * @param offset the offset of the first byte in the buffer
+	 * @param len the number of bytes to write
+	 */
+	public void write(int addr, byte data[], int offset, int len) {
+		if(readOnly) {
+			throw new IllegalStateException("flash image is read-only");
+		}
+		while(len > 0) {
+			int pageOffset = addr & pageMask;
+			int count = Math.min(len, pageSize - pageOffset);
+			int slot = getOrCreateSlot(addr & ~pageMask);
+			writeView.position((slot << pageShift) + pageOffset);
+			writeView.put(data, offset, count);
+			addr += count;
+			offset += count;
+			len -= count;
+		}
+	}
+
+	/**
+	 * Writes data into the image straight from a buffer such as a mapped file.
+	 *
+	 * @param addr the start address
+	 * @param data the data to write - written from position to limit
+	 */
+	public void write(int addr, ByteBuffer data) {
+		if(readOnly) {
+			throw new IllegalStateException("flash image is read-only");
+		}
+		ByteBuffer src = data.duplicate();
+		int end = src.limit();
+		while(src.position() < end) {
+			int pageOffset = addr & pageMask;
+			int count = Math.min(end - src.position(), pageSize - pageOffset);
+			int slot = getOrCreateSlot(addr & ~pageMask);
+			writeView.position((slot << pageShift) + pageOffset);
+			src.limit(src.position() + count);
+			writeView.put(src);
+			src.limit(end);
+			addr += count;
+		}
+	}
+
+	/**
+	 * Reads data from the image. Unwritten bytes read as erased.
+	 *
+	 * @param addr the start address
+	 * @param data the buffer to read into
+	 * @param offset the offset of the first byte in the buffer
+	 * @param len the number of bytes to read
+	 */
+	public void read(int addr, byte data[], int offset, int len) {
+		ByteBuffer view = pages.duplicate();
+		while(len > 0) {
+			int pageOffset = addr & pageMask;
+			int count = Math.min(len, pageSize - pageOffset);
+			int slot = findSlot(addr & ~pageMask);
+			if(slot == -1) {
+				Arrays.fill(data, offset, offset + count, (byte)ERASED);
+			}
+			else {
+				view.position((slot << pageShift) + pageOffset);
+				view.get(data, offset, count);
+			}
+			addr += count;
+			offset += count;
+			len -= count;
+		}
+	}
+
+	/**
+	 * Gets the page size.
+	 *
+	 * @return the page size in bytes
+	 */
+	public int getPageSize() {
+		return pageSize;
+	}
+
+	/**
+	 * Gets the number of pages that contain data.
+	 *
+	 * @return the number of pages
+	 */
+	public int getPageCount() {
+		return pageCount;
+	}
+
+	/**
+	 * Gets the start address of a page in address order.
+	 *
+	 * @param index the page index from 0 to getPageCount() - 1
+	 * @return the page start address
+	 */
+	public int getPageAddr(int index) {
+		return pageAddrs[getOrderedSlots()[index]];
+	}
+
+	/**
+	 * Copies the contents of a page in address order.
+	 *
+	 * @param index the page index from 0 to getPageCount() - 1
+	 * @param data the buffer to copy into
+	 * @param offset the offset in the buffer
+	 */
+	public void getPageData(int index, byte data[], int offset) {
+		ByteBuffer view = pages.duplicate();
+		view.position(getOrderedSlots()[index] << pageShift);
+		view.get(data, offset, pageSize);
+	}
+
+	/**
+	 * Gets a read-only view of a page in address order without copying it.
+	 *
+	 * @param index the page index from 0 to getPageCount() - 1
+	 * @return the page contents from position 0 to limit getPageSize()
+	 */
+	public ByteBuffer getPageBuffer(int index) {
+		ByteBuffer view = pages.asReadOnlyBuffer();
+		int start = getOrderedSlots()[index] << pageShift;
+		view.limit(start + pageSize);
+		view.position(start);
+		return view.slice();
+	}
+
+	/**
+	 * Gets a read-only view of the page containing an address without copying it.
+	 *
+	 * @param addr an address in the page
+	 * @return the page contents from position 0 to limit getPageSize(), or null if the page does not exist
+	 */
+	public ByteBuffer findPageBuffer(int addr) {
+		int slot = findSlot(addr & ~pageMask);
+		if(slot == -1) {
+			return null;
+		}
+		ByteBuffer view = pages.asReadOnlyBuffer();
+		view.limit((slot << pageShift) + pageSize);
+		view.position(slot << pageShift);
+		return view.slice();
+	}
+
+	/**
+	 * Gets the slot of a page.
+	 *
+	 * @param pageAddr the page address
+	 * @return the slot or -1 if the page does not exist
+	 */
+	int findSlot(int pageAddr) {
+		int pos = hash(pageAddr);
+		while(indexSlots[pos] != -1) {
+			if(indexKeys[pos] == pageAddr) {
+				return indexSlots[pos];
+			}
+			pos = (pos + 1) & indexMask;
+		}
+		return -1;
+	}
+
+	/**
+	 * Gets the slot of a page, creating an erased page if it does not exist.
+	 *
+	 * @param pageAddr the page address
+	 * @return the slot
+	 */
+	int getOrCreateSlot(int pageAddr) {
+		int pos = hash(pageAddr);
+		while(indexSlots[pos] != -1) {
+			if(indexKeys[pos] == pageAddr) {
+				return indexSlots[pos];
+			}
+			pos = (pos + 1) & indexMask;
+		}
+		// add a new page
+		int slot = pageCount ++;
+		if(slot == pageAddrs.length) {
+			pageAddrs = Arrays.copyOf(pageAddrs, slot * 2);
+			ByteBuffer newPages = ByteBuffer.allocateDirect((slot * 2) << pageShift);
+			ByteBuffer oldPages = pages.duplicate();
+			oldPages.clear();
+			newPages.put(oldPages);
+			newPages.clear();
+			pages = newPages;
+			writeView = pages.duplicate();
+		}
+		pageAddrs[slot] = pageAddr;
+		writeView.position(slot << pageShift);
+		writeView.put(erasedPage);
+		indexKeys[pos] = pageAddr;
+		indexSlots[pos] = slot;
+		orderedSlots = null;
+		// keep the index at most half full
+		if(pageCount * 2 > indexSlots.length) {
+			rehash(indexSlots.length * 2);
+		}
+		return slot;
+	}
+
+	/**
+	 * Rebuilds the index at a new size.
+	 *
+	 * @param size the new index size - must be a power of two
+	 */
+	void rehash(int size) {
+		indexKeys = new int[size];
+		indexSlots = new int[size];
+		Arrays.fill(indexSlots, -1);
+		indexMask = size - 1;
+		for(int slot = 0; slot < pageCount; slot ++) {
+			int pos = hash(pageAddrs[slot]);
+			while(indexSlots[pos] != -1) {
+				pos = (pos + 1) & indexMask;
+			}
+			indexKeys[pos] = pageAddrs[slot];
+			indexSlots[pos] = slot;
+		}
+	}
+
+	/**
+	 * Hashes a page address into the index.
+	 *
+	 * @param pageAddr the page address
+	 * @return the index position
+	 */
+	int hash(int pageAddr) {
+		int h = (pageAddr >>> pageShift) * 0x9e3779b9;
+		return (h ^ (h >>> 16)) & indexMask;
+	}
+
+	/**
+	 * Gets the page slots sorted by unsigned page address.
+	 *
+	 * @return the slots in address order
+	 */
+	int[] getOrderedSlots() {
+		if(orderedSlots == null) {
+			// sort on (page address << 32 | slot) so the slots come along for free - 
+			// flipping the sign bit makes the signed sort order unsigned
+			long keys[] = new long[pageCount];
+			for(int slot = 0; slot < pageCount; slot ++) {
+				keys[slot] = ((long)(pageAddrs[slot] ^ 0x80000000) << 32) | slot;
+			}
+			Arrays.sort(keys);
+			int slots[] = new int[pageCount];
+			for(int i = 0; i < pageCount; i ++) {
+				slots[i] = (int)keys[i];
+			}
+			orderedSlots = slots;
+		}
+		return orderedSlots;
+	}
+}
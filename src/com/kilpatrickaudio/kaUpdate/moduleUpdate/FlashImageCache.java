@@ -0,0 +1,327 @@
+package com.kilpatrickaudio.kaUpdate.moduleUpdate;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import org.apache.log4j.Logger;
+
+/**
+ * This class implements a local cache of parsed flash images. Images are stored
+ * in a compact binary sidecar file keyed by the content hash of the source file,
+ * its format and the page size, and are memory-mapped back in on a hit so repeat
+ * updates skip parsing entirely. The cache is kept within a size budget by
+ * evicting the least recently used entries.
+ *
+ * Sidecar format (big endian):
+ * - int: magic "KAFI"
+ * - int: format version
+ * - int: page size
+ * - int: page count
+ * - int[page count]: page addresses in ascending order
+ * - byte[page count * page size]: page contents in the same order
+ *
+ * @author andrew
+ *
+ */
+public class FlashImageCache {
+	static final int MAGIC = 0x4b414649;  // "KAFI"
+	static final int VERSION = 1;
+	static final int HEADER_LEN = 16;
+	static final String SUFFIX = ".kafi";
+	static FlashImageCache defaultCache = null;
+	Logger logger;
+	File cacheDir;
+	long maxSize;
+
+	/**
+	 * Creates a new flash image cache.
+	 *
+	 * @param cacheDir the directory to store cached images in
+	 * @param maxSize the cache size budget in bytes
+	 */
+	public FlashImageCache(File cacheDir, long maxSize) {
+		logger = Logger.getLogger(this.getClass());
+		this.cacheDir = cacheDir;
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * Gets the default cache configured by system properties. The cache writes
+	 * files to the user's home directory so it is off unless it is enabled.
+	 * - kaupdate.cache.enabled: true to enable the cache (default: false)
+	 * - kaupdate.cache.dir: the cache directory (default: ~/.kaupdate/cache)
+	 * - kaupdate.cache.size: the size budget in MB (default: 64)
+	 *
+	 * @return the default cache, or null if caching is disabled
+	 */
+	public static synchronized FlashImageCache getDefault() {
+		if(!Boolean.parseBoolean(System.getProperty("kaupdate.cache.enabled", "false"))) {
+			return null;
+		}
+		if(defaultCache == null) {
+			File dir = new File(System.getProperty("kaupdate.cache.dir",
+					System.getProperty("user.home") + File.separator + ".kaupdate" + File.separator + "cache"));
+			long size = Long.parseLong(System.getProperty("kaupdate.cache.size", "64")) * 1024 * 1024;
+			defaultCache = new FlashImageCache(dir, size);
+		}
+		return defaultCache;
+	}
+
+	/**
+	 * Loads a flash image from an update file. The cached copy is used if the file
+	 * contents have been seen before, otherwise the file is parsed and cached.
+	 *
+	 * @param source the update file source
+	 * @param format the file format
+	 * @param pageSize the page size in bytes - must be a power of two
+	 * @param baseAddr the load address for raw binary files
+	 * @return the flash image, or null if there was an error parsing the file
+	 */
+	public synchronized FlashImage load(FirmwareSource source, String format, int pageSize, int baseAddr) {
+		format = format.toUpperCase();
+		String key = format + "-" + pageSize;
+		if(format.equals(FlashImageLoader.FORMAT_BIN)) {
+			key += "-" + Integer.toHexString(baseAddr);
+		}
+		File entry;
+		try {
+			entry = new File(cacheDir, hashSource(source) + "-" + key + SUFFIX);
+		} catch (IOException e) {
+			logger.warn("could not hash file for cache: " + e.getMessage());
+			return FlashImageLoader.parse(source, format, pageSize, baseAddr);
+		}
+		// cache hit
+		if(entry.exists()) {
+			try {
+				FlashImage image = readEntry(entry, pageSize);
+				entry.setLastModified(System.currentTimeMillis());
+				logger.info("using cached image: " + entry.getName() + " - pages: " + image.getPageCount());
+				return image;
+			} catch (IOException e) {
+				logger.warn("cached image is invalid - reparsing: " + e.getMessage());
+				entry.delete();
+			}
+		}
+		// cache miss
+		FlashImage image = FlashImageLoader.parse(source, format, pageSize, baseAddr);
+		if(image == null) {
+			return null;
+		}
+		try {
+			writeEntry(entry, image);
+			evict(entry);
+		} catch (IOException e) {
+			logger.warn("could not write cached image: " + e.getMessage());
+		}
+		return image;
+	}
+
+	/**
+	 * Computes the SHA-256 content hash of the uncompressed firmware.
+	 *
+	 * @param source the update file source
+	 * @return the hash as a hex string
+	 * @throws IOException if the file cannot be read
+	 */
+	static String hashSource(FirmwareSource source) throws IOException {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException(e.getMessage());
+		}
+		InputStream in = source.openStream();
+		try {
+			ReadableByteChannel channel = Channels.newChannel(in);
+			ByteBuffer buf = ByteBuffer.allocateDirect(64 * 1024);
+			while(channel.read(buf) >= 0) {
+				buf.flip();
+				digest.update(buf);
+				buf.clear();
+			}
+		} finally {
+			in.close();
+		}
+		byte hash[] = digest.digest();
+		StringBuilder str = new StringBuilder(hash.length * 2);
+		for(int i = 0; i < hash.length; i ++) {
+			str.append(Character.forDigit((hash[i] >> 4) & 0x0f, 16));
+			str.append(Character.forDigit(hash[i] & 0x0f, 16));
+		}
+		return str.toString();
+	}
+
+	/**
+	 * Maps a cache entry into memory as a read-only flash image.
+	 *
+	 * @param entry the cache entry file
+	 * @param pageSize the expected page size
+	 * @return the flash image
+	 * @throws IOException if the entry cannot be read or is invalid
+	 */
+	static FlashImage readEntry(File entry, int pageSize) throws IOException {
+		return readEntry(entry, pageSize, false);
+	}
+
+	/**
+	 * Reads a cache entry as a read-only flash image. Some systems can't delete or
+	 * replace a file while it is mapped, so entries that will be replaced are
+	 * copied into memory instead of being mapped.
+	 *
+	 * @param entry the cache entry file
+	 * @param pageSize the expected page size
+	 * @param copy true to copy the entry into memory, false to map it
+	 * @return the flash image
+	 * @throws IOException if the entry cannot be read or is invalid
+	 */
+	static FlashImage readEntry(File entry, int pageSize, boolean copy) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(entry, "r");
+		try {
+			FileChannel channel = file.getChannel();
+			ByteBuffer data;
+			if(copy) {
+				if(channel.size() > Integer.MAX_VALUE) {
+					throw new IOException("too large: " + entry.getName());
+				}
+				data = ByteBuffer.allocateDirect((int)channel.size());
+				while(data.hasRemaining() && channel.read(data) >= 0);
+				data.flip();
+			}
+			else {
+				MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+				data = mapped;
+			}
+			if(data.limit() < HEADER_LEN || data.getInt(0) != MAGIC ||
+					data.getInt(4) != VERSION || data.getInt(8) != pageSize) {
+				throw new IOException("bad header: " + entry.getName());
+			}
+			int pageCount = data.getInt(12);
+			long dataStart = HEADER_LEN + (long)pageCount * 4;
+			if(pageCount < 0 || data.limit() != dataStart + (long)pageCount * pageSize) {
+				throw new IOException("bad length: " + entry.getName());
+			}
+			int addrs[] = new int[pageCount];
+			for(int i = 0; i < pageCount; i ++) {
+				addrs[i] = data.getInt(HEADER_LEN + i * 4);
+			}
+			data.position((int)dataStart);
+			return new FlashImage(pageSize, addrs, data.slice());
+		} finally {
+			file.close();  // a mapping stays valid after the file is closed
+		}
+	}
+
+	/**
+	 * Writes a flash image to a cache entry. The entry is written to a temporary
+	 * file first so a partially written entry is never seen.
+	 *
+	 * @param entry the cache entry file
+	 * @param image the flash image
+	 * @throws IOException if the entry cannot be written
+	 */
+	void writeEntry(File entry, FlashImage image) throws IOException {
+		if(!cacheDir.isDirectory() && !cacheDir.mkdirs()) {
+			throw new IOException("could not create cache dir: " + cacheDir.getAbsolutePath());
+		}
+		writeImage(entry, image);
+	}
+
+	/**
+	 * Writes a flash image in the sidecar format. The image is written to a temporary
+	 * file next to the destination first and then moved into place, replacing any
+	 * existing file.
+	 *
+	 * @param entry the file to write
+	 * @param image the flash image
+	 * @throws IOException if the file cannot be written
+	 */
+	static void writeImage(File entry, FlashImage image) throws IOException {
+		int pageCount = image.getPageCount();
+		File temp = new File(entry.getParentFile(), entry.getName() + ".tmp");
+		FileOutputStream out = new FileOutputStream(temp);
+		try {
+			FileChannel channel = out.getChannel();
+			ByteBuffer header = ByteBuffer.allocate(HEADER_LEN + pageCount * 4);
+			header.putInt(MAGIC);
+			header.putInt(VERSION);
+			header.putInt(image.getPageSize());
+			header.putInt(pageCount);
+			for(int i = 0; i < pageCount; i ++) {
+				header.putInt(image.getPageAddr(i));
+			}
+			header.flip();
+			while(header.hasRemaining()) {
+				channel.write(header);
+			}
+			for(int i = 0; i < pageCount; i ++) {
+				ByteBuffer page = image.getPageBuffer(i);
+				while(page.hasRemaining()) {
+					channel.write(page);
+				}
+			}
+		} finally {
+			out.close();
+		}
+		try {
+			Files.move(temp.toPath(), entry.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			temp.delete();
+			throw new IOException("could not replace entry: " + entry.getName() + " - " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Deletes the least recently used entries until the cache is within budget.
+	 *
+	 * @param keep an entry that should not be deleted
+	 */
+	void evict(File keep) {
+		File entries[] = cacheDir.listFiles();
+		if(entries == null) {
+			return;
+		}
+		long total = 0;
+		for(int i = 0; i < entries.length; i ++) {
+			if(entries[i].getName().endsWith(SUFFIX)) {
+				total += entries[i].length();
+			}
+		}
+		while(total > maxSize) {
+			File oldest = null;
+			for(int i = 0; i < entries.length; i ++) {
+				File f = entries[i];
+				if(f == null || !f.getName().endsWith(SUFFIX) || f.equals(keep)) continue;
+				if(oldest == null || f.lastModified() < oldest.lastModified()) {
+					oldest = f;
+				}
+			}
+			if(oldest == null) {
+				break;
+			}
+			long len = oldest.length();
+			logger.debug("evicting cached image: " + oldest.getName());
+			if(!oldest.delete()) {
+				logger.warn("could not evict cached image: " + oldest.getName());
+			}
+			total -= len;
+			for(int i = 0; i < entries.length; i ++) {
+				if(oldest.equals(entries[i])) {
+					entries[i] = null;
+				}
+			}
+		}
+	}
+}
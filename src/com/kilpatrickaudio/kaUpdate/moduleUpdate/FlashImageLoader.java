@@ -0,0 +1,281 @@
+package com.kilpatrickaudio.kaUpdate.moduleUpdate;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+import org.apache.log4j.Logger;
+
+/**
+ * This class loads firmware files of the supported formats into flash images.
+ *
+ * Formats are named by the first three characters of the update file suffix
+ * (for example file.HEX12A is Intel HEX for device 0x12, chip type A). Files
+ * can also be read from gzip files and zip archive entries (see FirmwareSource).
+ * - HEX: Intel HEX
+ * - S19, S28, S37: Motorola S-record
+ * - BIN: raw binary loaded at a base address
+ * - ELF: ELF executable - PT_LOAD segments are loaded at their physical address
+ *
+ * @author andrew
+ *
+ */
+public class FlashImageLoader {
+	public static final String FORMAT_HEX = "HEX";
+	public static final String FORMAT_S19 = "S19";
+	public static final String FORMAT_S28 = "S28";
+	public static final String FORMAT_S37 = "S37";
+	public static final String FORMAT_BIN = "BIN";
+	public static final String FORMAT_ELF = "ELF";
+	static final int ELF_PT_LOAD = 1;
+	static final int ELF_EM_MIPS = 8;
+
+	/**
+	 * Checks if a format is supported.
+	 *
+	 * @param format the format name
+	 * @return true if the format is supported
+	 */
+	public static boolean isSupportedFormat(String format) {
+		format = format.toUpperCase();
+		return format.equals(FORMAT_HEX) || format.equals(FORMAT_S19) || format.equals(FORMAT_S28) ||
+				format.equals(FORMAT_S37) || format.equals(FORMAT_BIN) || format.equals(FORMAT_ELF);
+	}
+
+	/**
+	 * Gets the format of an update file from its suffix.
+	 *
+	 * @param filename the update filename
+	 * @return the format name - files without a known format suffix are treated as HEX
+	 */
+	public static String getFormat(String filename) {
+		if(filename.length() >= 6) {
+			String format = filename.substring(filename.length() - 6, filename.length() - 3).toUpperCase();
+			if(isSupportedFormat(format)) {
+				return format;
+			}
+		}
+		return FORMAT_HEX;
+	}
+
+	/**
+	 * Gets the base address to load raw binary files at.
+	 * This can be overridden with the kaupdate.bin.base system property.
+	 *
+	 * @param defaultBaseAddr the default base address for the target
+	 * @return the base address
+	 */
+	public static int getBinBaseAddr(int defaultBaseAddr) {
+		String base = System.getProperty("kaupdate.bin.base");
+		if(base == null) {
+			return defaultBaseAddr;
+		}
+		base = base.trim().toLowerCase();
+		if(base.startsWith("0x")) {
+			return (int)Long.parseLong(base.substring(2), 16);
+		}
+		return (int)Long.parseLong(base);
+	}
+
+	/**
+	 * Loads an update file into a flash image, using the default cache if it is enabled.
+	 *
+	 * @param source the update file source
+	 * @param format the file format
+	 * @param pageSize the page size in bytes - must be a power of two
+	 * @param baseAddr the load address for raw binary files
+	 * @return the flash image, or null if there was an error parsing the file
+	 */
+	public static FlashImage load(FirmwareSource source, String format, int pageSize, int baseAddr) {
+		FlashImageCache cache = FlashImageCache.getDefault();
+		if(cache == null) {
+			return parse(source, format, pageSize, baseAddr);
+		}
+		return cache.load(source, format, pageSize, baseAddr);
+	}
+
+	/**
+	 * Parses an update file into a flash image.
+	 *
+	 * @param file the update file
+	 * @param format the file format
+	 * @param pageSize the page size in bytes - must be a power of two
+	 * @param baseAddr the load address for raw binary files
+	 * @return the flash image, or null if there was an error parsing the file
+	 */
+	public static FlashImage parse(File file, String format, int pageSize, int baseAddr) {
+		return parse(new FirmwareSource(file), format, pageSize, baseAddr);
+	}
+
+	/**
+	 * Parses an update file into a flash image. Plain files are memory-mapped while
+	 * compressed files and archive entries are parsed incrementally from a stream.
+	 *
+	 * @param source the update file source
+	 * @param format the file format
+	 * @param pageSize the page size in bytes - must be a power of two
+	 * @param baseAddr the load address for raw binary files
+	 * @return the flash image, or null if there was an error parsing the file
+	 */
+	public static FlashImage parse(FirmwareSource source, String format, int pageSize, int baseAddr) {
+		Logger logger = Logger.getLogger(FlashImageLoader.class);
+		format = format.toUpperCase();
+		if(format.equals(FORMAT_HEX) && source.isPlainFile()) {
+			return HexParser.parseFlashImage(source.getFile(), pageSize);
+		}
+		FlashImage image = new FlashImage(pageSize);
+		try {
+			logger.info("starting to parse " + format + " file...");
+			if(format.equals(FORMAT_ELF) && source.isPlainFile()) {
+				parseElf(source.getFile(), image);
+			}
+			else {
+				InputStream in = source.openStream();
+				try {
+					parse(in, format, baseAddr, image);
+				} finally {
+					in.close();
+				}
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			return null;
+		} catch (HexParseException e) {
+			e.printStackTrace();
+			return null;
+		}
+		logger.info("parsing done - pages: " + image.getPageCount());
+		return image;
+	}
+
+	/**
+	 * Parses an update file from a stream into a flash image.
+	 *
+	 * @param in the stream to read
+	 * @param format the file format
+	 * @param baseAddr the load address for raw binary files
+	 * @param image the image to load into
+	 * @throws IOException if there is a problem reading the stream
+	 * @throws HexParseException if the data is invalid
+	 */
+	public static void parse(InputStream in, String format, int baseAddr, FlashImage image) throws IOException, HexParseException {
+		format = format.toUpperCase();
+		if(format.equals(FORMAT_HEX)) {
+			new HexRecordReader(in).parse(image);
+		}
+		else if(format.equals(FORMAT_S19) || format.equals(FORMAT_S28) || format.equals(FORMAT_S37)) {
+			new SRecordReader(in).parse(image);
+		}
+		else if(format.equals(FORMAT_BIN)) {
+			parseBin(in, baseAddr, image);
+		}
+		else if(format.equals(FORMAT_ELF)) {
+			// ELF needs random access to the program headers
+			ByteArrayOutputStream out = new ByteArrayOutputStream(256 * 1024);
+			byte buf[] = new byte[64 * 1024];
+			int len;
+			while((len = in.read(buf)) > 0) {
+				out.write(buf, 0, len);
+			}
+			parseElf(ByteBuffer.wrap(out.toByteArray()), image);
+		}
+		else {
+			throw new HexParseException("unsupported file format: " + format);
+		}
+	}
+
+	/**
+	 * Loads a raw binary stream into a flash image.
+	 *
+	 * @param in the binary stream
+	 * @param baseAddr the address of the first byte
+	 * @param image the image to load into
+	 * @throws IOException if there is a problem reading the stream
+	 */
+	static void parseBin(InputStream in, int baseAddr, FlashImage image) throws IOException {
+		byte buf[] = new byte[64 * 1024];
+		int addr = baseAddr;
+		int len;
+		while((len = in.read(buf)) > 0) {
+			image.write(addr, buf, 0, len);
+			addr += len;
+		}
+	}
+
+	/**
+	 * Loads the PT_LOAD segments of a 32 bit ELF file into a flash image. The segment
+	 * contents are copied straight from the mapped file.
+	 *
+	 * @param file the ELF file
+	 * @param image the image to load into
+	 * @throws IOException if there is a problem reading the file
+	 * @throws HexParseException if the file is not a supported ELF file
+	 */
+	static void parseElf(File file, FlashImage image) throws IOException, HexParseException {
+		FileInputStream in = new FileInputStream(file);
+		try {
+			FileChannel channel = in.getChannel();
+			parseElf(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), image);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Loads the PT_LOAD segments of a 32 bit ELF file into a flash image. MIPS (PIC32)
+	 * kernel segment addresses are converted to physical addresses to match the HEX
+	 * file layout.
+	 *
+	 * @param elf the ELF file contents
+	 * @param image the image to load into
+	 * @throws HexParseException if the file is not a supported ELF file
+	 */
+	static void parseElf(ByteBuffer elf, FlashImage image) throws HexParseException {
+		if(elf.capacity() < 52 || elf.get(0) != 0x7f || elf.get(1) != 'E' ||
+				elf.get(2) != 'L' || elf.get(3) != 'F') {
+			throw new HexParseException("not an ELF file");
+		}
+		if(elf.get(4) != 1) {
+			throw new HexParseException("only 32 bit ELF files are supported");
+		}
+		if(elf.get(5) == 1) {
+			elf.order(ByteOrder.LITTLE_ENDIAN);
+		}
+		else if(elf.get(5) == 2) {
+			elf.order(ByteOrder.BIG_ENDIAN);
+		}
+		else {
+			throw new HexParseException("bad ELF data encoding: " + elf.get(5));
+		}
+		int machine = elf.getShort(18) & 0xffff;
+		int phOff = elf.getInt(28);
+		int phEntSize = elf.getShort(42) & 0xffff;
+		int phNum = elf.getShort(44) & 0xffff;
+		if(phOff < 0 || (long)phOff + (long)phEntSize * phNum > elf.capacity() || phEntSize < 32) {
+			throw new HexParseException("bad ELF program header table");
+		}
+		for(int i = 0; i < phNum; i ++) {
+			int ph = phOff + i * phEntSize;
+			if(elf.getInt(ph) != ELF_PT_LOAD) continue;
+			int offset = elf.getInt(ph + 4);
+			int paddr = elf.getInt(ph + 12);
+			int fileSize = elf.getInt(ph + 16);
+			if(fileSize == 0) continue;  // bss
+			if(offset < 0 || fileSize < 0 || (long)offset + fileSize > elf.capacity()) {
+				throw new HexParseException("ELF segment " + i + " is past end of file");
+			}
+			if(machine == ELF_EM_MIPS) {
+				paddr &= 0x1fffffff;
+			}
+			ByteBuffer segment = elf.duplicate();
+			segment.limit(offset + fileSize);
+			segment.position(offset);
+			image.write(paddr, segment);
+		}
+	}
+}
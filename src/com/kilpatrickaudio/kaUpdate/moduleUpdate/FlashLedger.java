@@ -0,0 +1,192 @@
+package com.kilpatrickaudio.kaUpdate.moduleUpdate;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.log4j.Logger;
+
+/**
+ * This class keeps a local ledger of the image last successfully flashed to each
+ * unit so later updates can send only the chunks that changed. Units are keyed by
+ * a user-supplied serial number or by device ID and MIDI port. Entries are stored
+ * in the flash image cache sidecar format.
+ *
+ * An entry is removed before an update starts and only written back once the
+ * update completes, so an interrupted or failed update always leads to a full
+ * send next time. Entries are copied into memory when they are read so the
+ * entry file is never held open and can always be removed or replaced.
+ *
+ * @author andrew
+ *
+ */
+public class FlashLedger {
+	static final String SUFFIX = ".kafi";
+	static final String SERIAL_PREFIX = "serial-";
+	static FlashLedger defaultLedger = null;
+	Logger logger;
+	File ledgerDir;
+
+	/**
+	 * Creates a new flash ledger.
+	 *
+	 * @param ledgerDir the directory to store ledger entries in
+	 */
+	public FlashLedger(File ledgerDir) {
+		logger = Logger.getLogger(this.getClass());
+		this.ledgerDir = ledgerDir;
+	}
+
+	/**
+	 * Gets the default ledger if delta flashing is enabled by system properties.
+	 * - kaupdate.delta: true to enable delta flashing (default: false)
+	 * - kaupdate.ledger.dir: the ledger directory (default: ~/.kaupdate/ledger)
+	 *
+	 * @return the default ledger, or null if delta flashing is disabled
+	 */
+	public static synchronized FlashLedger getDefault() {
+		if(!Boolean.parseBoolean(System.getProperty("kaupdate.delta", "false"))) {
+			return null;
+		}
+		if(defaultLedger == null) {
+			File dir = new File(System.getProperty("kaupdate.ledger.dir",
+					System.getProperty("user.home") + File.separator + ".kaupdate" + File.separator + "ledger"));
+			defaultLedger = new FlashLedger(dir);
+		}
+		return defaultLedger;
+	}
+
+	/**
+	 * Gets the key of a unit. The kaupdate.serial system property is used if it is
+	 * set, otherwise the unit is identified by its device ID and MIDI port.
+	 *
+	 * @param devID the device ID
+	 * @param portName the MIDI output port name
+	 * @return the unit key
+	 */
+	public static String getUnitKey(int devID, String portName) {
+		String serial = System.getProperty("kaupdate.serial");
+		if(serial != null && serial.trim().length() > 0) {
+			return SERIAL_PREFIX + serial.trim();
+		}
+		return "dev" + Integer.toHexString(devID) + "-" + portName;
+	}
+
+	/**
+	 * Checks if a serial number is set with the kaupdate.serial system property.
+	 * The serial names a single unit, so it can't be used while several units
+	 * are updated.
+	 *
+	 * @return true if a serial number is set
+	 */
+	public static boolean hasSerial() {
+		String serial = System.getProperty("kaupdate.serial");
+		return serial != null && serial.trim().length() > 0;
+	}
+
+	/**
+	 * Checks if a unit key comes from a serial number, which identifies the
+	 * physical unit instead of the port it is connected to.
+	 *
+	 * @param unitKey the unit key
+	 * @return true for serial number keys
+	 */
+	public static boolean isSerialKey(String unitKey) {
+		return unitKey.startsWith(SERIAL_PREFIX);
+	}
+
+	/**
+	 * Checks if delta flashing should be bypassed for this session. A full send
+	 * can be forced with the kaupdate.delta.full system property.
+	 *
+	 * @return true if the whole image should be sent
+	 */
+	public static boolean isFullSendForced() {
+		return Boolean.parseBoolean(System.getProperty("kaupdate.delta.full", "false"));
+	}
+
+	/**
+	 * Gets the image last flashed to a unit.
+	 *
+	 * @param unitKey the unit key
+	 * @param pageSize the page size in bytes
+	 * @return the image, or null if there is no valid entry for the unit
+	 */
+	public synchronized FlashImage get(String unitKey, int pageSize) {
+		File entry = getEntryFile(unitKey);
+		if(!entry.exists()) {
+			return null;
+		}
+		try {
+			return FlashImageCache.readEntry(entry, pageSize, true);
+		} catch (IOException e) {
+			logger.warn("ledger entry is invalid: " + e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Removes the entry for a unit. This is done before an update starts since the
+	 * contents of the unit are unknown until the update completes.
+	 *
+	 * @param unitKey the unit key
+	 * @return true if there is no entry left, false if it could not be removed
+	 */
+	public synchronized boolean invalidate(String unitKey) {
+		File entry = getEntryFile(unitKey);
+		if(entry.exists() && !entry.delete()) {
+			logger.error("could not remove ledger entry: " + entry.getAbsolutePath());
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Records the image flashed to a unit after a successful update.
+	 *
+	 * @param unitKey the unit key
+	 * @param image the image now on the unit
+	 */
+	public synchronized void put(String unitKey, FlashImage image) {
+		if(!ledgerDir.isDirectory() && !ledgerDir.mkdirs()) {
+			logger.warn("could not create ledger dir: " + ledgerDir.getAbsolutePath());
+			return;
+		}
+		try {
+			FlashImageCache.writeImage(getEntryFile(unitKey), image);
+		} catch (IOException e) {
+			logger.warn("could not write ledger entry: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Gets the entry file for a unit.
+	 *
+	 * @param unitKey the unit key
+	 * @return the entry file
+	 */
+	File getEntryFile(String unitKey) {
+		return new File(ledgerDir, getSafeName(unitKey) + SUFFIX);
+	}
+
+	/**
+	 * Gets a filesystem safe name for a unit key.
+	 *
+	 * @param unitKey the unit key
+	 * @return the name
+	 */
+	static String getSafeName(String unitKey) {
+		StringBuilder name = new StringBuilder(unitKey.length());
+		for(int i = 0; i < unitKey.length(); i ++) {
+			char c = unitKey.charAt(i);
+			if((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') ||
+					c == '-' || c == '.') {
+				name.append(c);
+			}
+			else {
+				name.append('_');
+			}
+		}
+		// the hash keeps keys that only differ in unsafe characters apart
+		return name.toString() + "-" + Integer.toHexString(unitKey.hashCode());
+	}
+}
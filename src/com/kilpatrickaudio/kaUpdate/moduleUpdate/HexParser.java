@@ -1,11 +1,22 @@
 package com.kilpatrickaudio.kaUpdate.moduleUpdate;
 
-import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
 import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 import org.apache.log4j.Logger;
 
@@ -16,6 +27,7 @@ import org.apache.log4j.Logger;
  *
  */
 public class HexParser {
+	static final int PARALLEL_MIN_SEGMENT_SIZE = 256 * 1024;
        
 	/**
 	 * Parses the hex file and returns the parsed instruction words.
@@ -31,123 +43,16 @@ public class HexParser {
 	 */
 	public static int[] parseHexRecords(File hexFile) {
         Logger logger = Logger.getLogger(HexParser.class);
-        boolean debug = false;
-		int extAddr = 0;
-		int prog[] = new int[(1024*1024)];  // a program can be up to 1MB long
-		int progCount = 0;
+		HexRecordList records = new HexRecordList((int)Math.min(hexFile.length() / 2, Integer.MAX_VALUE));
 		
 		try {
 			logger.info("starting to parse HEX file...");
-			BufferedReader in = new BufferedReader(new FileReader(hexFile));
-			String line = "";
-			while((line = in.readLine()) != null) {
-				line = line.trim();
-				if(line.length() == 0) continue;  // skip blank lines
-				if(debug) logger.debug("line: " + line);
-				if(line.charAt(0) != ':') {
-					in.close();
-					throw new HexParseException("line didn't start with a colon: " + line);
-				}
-				line = line.substring(1);
-				if(line.length() < 10) {
-					in.close();
-					throw new HexParseException("line is too short: " + line);
-				}
-				if((line.length() & 0x01) == 1) {
-					in.close();
-					throw new HexParseException("line is an odd length: " + line);
-				}
-				int lineWords = line.length() >> 1;
-				int lineData[] = new int[lineWords];
-				for(int i = 0; i < line.length(); i += 2) {
-					int hexWord = Integer.parseInt(line.substring(i, i + 1), 16) << 4;
-					hexWord |= Integer.parseInt(line.substring(i + 1, i + 2), 16);					
-					lineData[i >> 1] = hexWord;
-				}				
-				int byteCount = lineData[0];
-				int address = (lineData[1] << 8) | lineData[2];
-				int recordType = lineData[3];
-				int data[] = new int[byteCount];
-				System.arraycopy(lineData, 4, data, 0, byteCount);
-				int checksum = lineData[lineWords - 1];
-				// print out the record
-                if(debug) logger.debug("byte count: " + byteCount);
-                if(debug) logger.debug("address: 0x" + Integer.toHexString(address));
-                if(debug) logger.debug("recordType: " + recordType);
-                if(debug) logger.debug("data:");
-                if(debug) {
-                    for(int i = 0; i < data.length; i ++) {
-                        System.out.print("0x" + data[i] + " ");
-                    }                	
-                }
-                if(debug) logger.debug("");
-                if(debug) logger.debug("checksum: 0x" + Integer.toHexString(checksum));					
-			
-				// test the checksum
-				int chk = 0;
-				for(int i = 0; i < lineData.length - 1; i ++) {
-					chk = (chk + lineData[i]) & 0xff;
-				}
-				chk = ((chk ^ 0xff) + 0x01) & 0xff;
-				if(debug) logger.debug("calculated checksum: " + Integer.toHexString(chk));
-				if(chk != checksum) {
-					in.close();
-					throw new HexParseException("checksum mismatch: 0x" + Integer.toHexString(checksum) +
-							" - 0x" + Integer.toHexString(chk) + " - \n  line: " + line); 
-				}
-				//
-				// parse the record types
-				//
-				// data record
-				if(recordType == 0) {
-					int absAddr = extAddr | address;
-					// 32 bit address - big endian
-					prog[progCount ++] = (absAddr >> 24) & 0xff;
-					prog[progCount ++] = (absAddr >> 16) & 0xff;
-					prog[progCount ++] = (absAddr >> 8) & 0xff;
-					prog[progCount ++] = absAddr & 0xff;
-					// data length - big endian
-					prog[progCount ++] = (data.length >> 8);
-					prog[progCount ++] = (data.length & 0xff);
-					// data segment
-					for(int i = 0; i < data.length; i ++) {
-						prog[progCount ++] = data[i];
-					}
-					if(debug) logger.debug("DATA - absAddr: 0x" + Integer.toHexString(absAddr) + 
-						" - data length: " + data.length);						
-				}
-				// end of file record
-				else if(recordType == 1) {
-					if(debug) logger.debug("END OF FILE");		
-				}
-				// extended segment adddress
-				else if(recordType == 2) {
-					extAddr = ((data[0] << 8 | data[1])) << 4;
-					if(debug) logger.debug("EXTENDED SEGMENT ADDRESS - addr: 0x" + Integer.toHexString(extAddr));						
-				}
-				// start segment address
-				else if(recordType == 3) {
-					in.close();
-					throw new HexParseException("START SEGMENT ADDRESS - record type not supported");
-				}
-				// extended linear address record
-				else if(recordType == 4) {
-					extAddr = ((data[0] << 8 | data[1]) << 16);
-					if(debug) logger.debug("EXTENDED LINEAR ADDRESS - addr: 0x" + Integer.toHexString(extAddr));		
-				}
-				// start linear address
-				else if(recordType == 5) {
-					in.close();
-					throw new HexParseException("START LINEAR ADDRESS - record type not supported");
-				}
-				// unknown record type
-				else {
-					in.close();
-					throw new HexParseException("BAD RECORD TYPE - record type not supported: " + recordType);					
-				}
-				if(debug) logger.debug("");
+			FileInputStream in = new FileInputStream(hexFile);
+			try {
+				new HexRecordReader(in).parse(records);
+			} finally {
+				in.close();
 			}
-			in.close();
 		} catch (FileNotFoundException e) {
 			e.printStackTrace();
 			return null;
@@ -158,10 +63,232 @@ public class HexParser {
 			e.printStackTrace();
 			return null;
 		}
-		int retData[] = new int[progCount];
-		System.arraycopy(prog, 0, retData, 0, progCount);
 		logger.info("parsing done.");
-		return retData;
+		return records.toIntArray();
+	}
+	
+	/**
+	 * Parses hex data from a stream and returns the parsed instruction words.
+	 * The stream is parsed incrementally so it can come straight from an archive
+	 * or a network connection. The stream is not closed.
+	 * 
+	 * @param in the stream to parse
+	 * @return the instruction words, address and lengths in the parseHexRecords format
+	 */
+	public static int[] parseHexRecords(InputStream in) {
+        Logger logger = Logger.getLogger(HexParser.class);
+		HexRecordList records = new HexRecordList(64 * 1024);
+		try {
+			logger.info("starting to parse HEX stream...");
+			parse(in, records);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return null;
+		} catch (HexParseException e) {
+			e.printStackTrace();
+			return null;
+		}
+		logger.info("parsing done.");
+		return records.toIntArray();
+	}
+	
+	/**
+	 * Parses hex data from a stream, passing the data records to the handler in
+	 * stream order. The stream is not closed.
+	 * 
+	 * @param in the stream to parse
+	 * @param handler the handler to receive the data records
+	 * @throws IOException if there is a problem reading the stream
+	 * @throws HexParseException if the hex data is invalid
+	 */
+	public static void parse(InputStream in, HexRecordHandler handler) throws IOException, HexParseException {
+		new HexRecordReader(in).parse(handler);
+	}
+	
+	/**
+	 * Parses hex data from a channel, passing the data records to the handler in
+	 * channel order. The channel is not closed.
+	 * 
+	 * @param channel the channel to parse
+	 * @param handler the handler to receive the data records
+	 * @throws IOException if there is a problem reading the channel
+	 * @throws HexParseException if the hex data is invalid
+	 */
+	public static void parse(ReadableByteChannel channel, HexRecordHandler handler) throws IOException, HexParseException {
+		new HexRecordReader(Channels.newInputStream(channel)).parse(handler);
+	}
+	
+	/**
+	 * Parses the hex file into a flash image.
+	 * 
+	 * @param hexFile the file to parse
+	 * @param pageSize the flash image page size in bytes - must be a power of two
+	 * @return the flash image, or null if there was an error
+	 */
+	public static FlashImage parseFlashImage(File hexFile, int pageSize) {
+        Logger logger = Logger.getLogger(HexParser.class);
+		FlashImage image = new FlashImage(pageSize);
+		try {
+			logger.info("starting to parse HEX file...");
+			parseParallel(hexFile, image);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return null;
+		} catch (HexParseException e) {
+			e.printStackTrace();
+			return null;
+		}
+		logger.info("parsing done - pages: " + image.getPageCount());
+		return image;
+	}
+	
+	/**
+	 * Parses the hex file in parallel and returns the parsed instruction words.
+	 * The result is identical to parseHexRecords().
+	 * 
+	 * @param hexFile the file to parse
+	 * @return the instruction works, address and lengths in the parseHexRecords format
+	 */
+	public static int[] parseHexRecordsParallel(File hexFile) {
+        Logger logger = Logger.getLogger(HexParser.class);
+		HexRecordList records = new HexRecordList((int)Math.min(hexFile.length() / 2, Integer.MAX_VALUE));
+		try {
+			logger.info("starting to parse HEX file in parallel...");
+			parseParallel(hexFile, records);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return null;
+		} catch (HexParseException e) {
+			e.printStackTrace();
+			return null;
+		}
+		logger.info("parsing done.");
+		return records.toIntArray();
+	}
+	
+	/**
+	 * Maps the hex file into memory, splits it at record boundaries and parses the
+	 * segments in parallel. Each segment is parsed without knowing the extended address
+	 * in effect at its start, so the records before its first extended address record
+	 * are fixed up with the state carried over from the previous segments when the
+	 * segments are merged. Data records are passed to the handler in file order.
+	 * 
+	 * @param hexFile the file to parse
+	 * @param handler the handler to receive the data records
+	 * @throws IOException if there is a problem reading the file
+	 * @throws HexParseException if the hex data is invalid
+	 */
+	public static void parseParallel(File hexFile, HexRecordHandler handler) throws IOException, HexParseException {
+		FileInputStream in = new FileInputStream(hexFile);
+		try {
+			FileChannel channel = in.getChannel();
+			long fileLen = channel.size();
+			if(fileLen > Integer.MAX_VALUE) {
+				throw new HexParseException("hex file is too large: " + fileLen + " bytes");
+			}
+			MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, fileLen);
+			int len = (int)fileLen;
+			int segmentCount = Math.max(1, Math.min(ForkJoinPool.getCommonPoolParallelism(),
+					len / PARALLEL_MIN_SEGMENT_SIZE));
+			
+			// find the segment boundaries - each segment starts on a record
+			int bounds[] = new int[segmentCount + 1];
+			int count = 0;
+			bounds[count ++] = 0;
+			for(int i = 1; i < segmentCount; i ++) {
+				int pos = Math.max((int)((long)len * i / segmentCount), bounds[count - 1]);
+				while(pos < len && !(mapped.get(pos) == ':' && 
+						(mapped.get(pos - 1) == '\n' || mapped.get(pos - 1) == '\r'))) {
+					pos ++;
+				}
+				if(pos > bounds[count - 1] && pos < len) {
+					bounds[count ++] = pos;
+				}
+			}
+			bounds[count ++] = len;
+			
+			// small file - parse straight into the handler
+			if(count == 2) {
+				new HexRecordReader(mapped).parse(handler);
+				return;
+			}
+			
+			// parse each segment
+			List<HexSegment> segments = new ArrayList<HexSegment>();
+			for(int i = 0; i < count - 1; i ++) {
+				ByteBuffer slice = mapped.duplicate();
+				slice.limit(bounds[i + 1]);
+				slice.position(bounds[i]);
+				segments.add(new HexSegment(slice.slice(), i == 0));
+			}
+			List<Future<HexSegment>> results = ForkJoinPool.commonPool().invokeAll(segments);
+			for(int i = 0; i < results.size(); i ++) {
+				try {
+					results.get(i).get();
+				} catch (InterruptedException e) {
+					throw new IOException("hex parse interrupted");
+				} catch (ExecutionException e) {
+					if(e.getCause() instanceof HexParseException) {
+						throw (HexParseException)e.getCause();
+					}
+					if(e.getCause() instanceof IOException) {
+						throw (IOException)e.getCause();
+					}
+					throw new IOException(e.getCause());
+				}
+			}
+			
+			// merge the segments in order carrying the extended address across
+			int extAddr = 0;
+			for(int i = 0; i < segments.size(); i ++) {
+				HexSegment segment = segments.get(i);
+				segment.records.applyExtAddr(0, segment.prefixEnd, extAddr);
+				if(segment.reader.hasReadExtAddr()) {
+					extAddr = segment.reader.getExtAddr();
+				}
+				segment.records.replay(handler);
+			}
+		} finally {
+			in.close();
+		}
+	}
+	
+	/**
+	 * This class parses one segment of a mapped hex file.
+	 */
+	static class HexSegment implements Callable<HexSegment>, HexRecordHandler {
+		HexRecordReader reader;
+		HexRecordList records;
+		int prefixEnd;  // end of the records read before the first extended address record
+		
+		/**
+		 * Creates a new segment.
+		 * 
+		 * @param text the hex text of the segment
+		 * @param first true if this is the first segment of the file
+		 */
+		HexSegment(ByteBuffer text, boolean first) {
+			reader = new HexRecordReader(text);
+			records = new HexRecordList(text.remaining() / 2);
+			prefixEnd = first ? 0 : -1;
+		}
+		
+		@Override
+		public HexSegment call() throws IOException, HexParseException {
+			reader.parse(this);
+			if(prefixEnd == -1) {
+				prefixEnd = records.getSize();
+			}
+			return this;
+		}
+		
+		@Override
+		public void dataRecord(int addr, byte data[], int offset, int len) {
+			if(prefixEnd == -1 && reader.hasReadExtAddr()) {
+				prefixEnd = records.getSize();
+			}
+			records.dataRecord(addr, data, offset, len);
+		}
 	}
 	
 	/**
@@ -170,8 +297,21 @@ public class HexParser {
 	 * @param prog the program data
 	 * @param chunksize the length of each desired chunk in bytes
 	 * @return a LinkedHashMap of addresses and chunks
+	 * @deprecated use {@link #createChunkyData(int[], int)}
 	 */
+	@Deprecated
 	public static LinkedHashMap<Integer,FlashChunk> creatChunkyData(int prog[], int chunkSize) {
+		return createChunkyData(prog, chunkSize);
+	}
+
+	/**
+	 * Creates data chunkified into n byte chunks.
+	 * 
+	 * @param prog the program data
+	 * @param chunksize the length of each desired chunk in bytes
+	 * @return a LinkedHashMap of addresses and chunks
+	 */
+	public static LinkedHashMap<Integer,FlashChunk> createChunkyData(int prog[], int chunkSize) {
         Logger logger = Logger.getLogger(HexParser.class);
         boolean debug = false;
 		LinkedHashMap<Integer,FlashChunk> flashMap;
@@ -207,17 +347,17 @@ public class HexParser {
 			int offset = addr & (chunkSize - 1);
 			FlashChunk chunk = null;
 			// if the chunk exists, get it
-			if(flashMap.containsKey(new Integer(chunkAddr))) {
+			chunk = flashMap.get(Integer.valueOf(chunkAddr));
+			if(chunk != null) {
 				if(debug) logger.debug("chunk exists: 0x" + Integer.toHexString(chunkAddr) +
 					" - offset: 0x" + Integer.toHexString(offset));
-				chunk = flashMap.get(new Integer(chunkAddr));
 			}
 			// create a new chunk
 			else {
 				if(debug) logger.debug("chunk is new: 0x" + Integer.toHexString(chunkAddr) +
 					" - offset: 0x" + Integer.toHexString(offset));
 				chunk = new FlashChunk(chunkAddr, chunkSize);
-				flashMap.put(new Integer(chunkAddr), chunk);
+				flashMap.put(Integer.valueOf(chunkAddr), chunk);
 			}
 			try {
 				// add the data to the chunk
@@ -228,9 +368,12 @@ public class HexParser {
 					if(debug) logger.debug("REMAIN: data remaining to add to new chunk: " + remain + " bytes");						
 					int newChunkAddr = chunkAddr + chunkSize;
 //					logger.debug("newChunkAddr: " + Integer.toHexString(newChunkAddr));
-					// create a new chunk to handle the remaining data
-					chunk = new FlashChunk(newChunkAddr, chunkSize);
-					flashMap.put(new Integer(newChunkAddr), chunk);
+					// merge into the next chunk or create a new one to handle the remaining data
+					chunk = flashMap.get(Integer.valueOf(newChunkAddr));
+					if(chunk == null) {
+						chunk = new FlashChunk(newChunkAddr, chunkSize);
+						flashMap.put(Integer.valueOf(newChunkAddr), chunk);
+					}
 					int remainData[] = new int[remain];
 					System.arraycopy(data, data.length - remain, remainData, 0, remain);
 					chunk.addData(0, remainData);
@@ -0,0 +1,22 @@
+package com.kilpatrickaudio.kaUpdate.moduleUpdate;
+
+/**
+ * This interface represents a consumer of data records decoded from an Intel HEX file.
+ *
+ * @author andrew
+ *
+ */
+public interface HexRecordHandler {
+
+	/**
+	 * A data record was decoded. The data buffer is reused by the reader
+	 * so it must be copied if it needs to be kept after this call returns.
+	 *
+	 * @param addr the absolute 32 bit address of the record
+	 * @param data the buffer containing the record data
+	 * @param offset the offset of the first data byte in the buffer
+	 * @param len the number of data bytes
+	 * @throws HexParseException if the record cannot be accepted
+	 */
+	public void dataRecord(int addr, byte data[], int offset, int len) throws HexParseException;
+}
@@ -0,0 +1,132 @@
+package com.kilpatrickaudio.kaUpdate.moduleUpdate;
+
+/**
+ * This class collects decoded HEX data records into a compact growable byte store.
+ *
+ * Record format (same layout as the parseHexRecords result):
+ * - for each record:
+ *   - byte 0-3: absolute 32 bit address
+ *   - byte 4-5: data length
+ *   - byte 6-n: data...
+ *
+ * @author andrew
+ *
+ */
+public class HexRecordList implements HexRecordHandler {
+	byte data[];
+	int size = 0;
+	int recordCount = 0;
+
+	/**
+	 * Creates a new record list.
+	 *
+	 * @param initialCapacity the initial capacity in bytes
+	 */
+	public HexRecordList(int initialCapacity) {
+		data = new byte[Math.max(initialCapacity, 64)];
+	}
+
+	@Override
+	public void dataRecord(int addr, byte src[], int offset, int len) {
+		if(size + 6 + len > data.length) {
+			byte newData[] = new byte[Math.max(data.length * 2, size + 6 + len)];
+			System.arraycopy(data, 0, newData, 0, size);
+			data = newData;
+		}
+		// 32 bit address - big endian
+		data[size ++] = (byte)(addr >> 24);
+		data[size ++] = (byte)(addr >> 16);
+		data[size ++] = (byte)(addr >> 8);
+		data[size ++] = (byte)addr;
+		// data length - big endian
+		data[size ++] = (byte)(len >> 8);
+		data[size ++] = (byte)len;
+		System.arraycopy(src, offset, data, size, len);
+		size += len;
+		recordCount ++;
+	}
+
+	/**
+	 * Gets the size of the stored records.
+	 *
+	 * @return the size in bytes
+	 */
+	public int getSize() {
+		return size;
+	}
+
+	/**
+	 * Gets the number of stored records.
+	 *
+	 * @return the number of records
+	 */
+	public int getRecordCount() {
+		return recordCount;
+	}
+
+	/**
+	 * ORs an extended address into the address of each record in a range.
+	 *
+	 * @param start the byte position of the first record
+	 * @param end the byte position after the last record
+	 * @param extAddr the extended address
+	 */
+	public void applyExtAddr(int start, int end, int extAddr) {
+		for(int i = start; i < end;) {
+			int addr = getInt(i) | extAddr;
+			data[i] = (byte)(addr >> 24);
+			data[i + 1] = (byte)(addr >> 16);
+			data[i + 2] = (byte)(addr >> 8);
+			data[i + 3] = (byte)addr;
+			i += 6 + getLen(i);
+		}
+	}
+
+	/**
+	 * Passes each stored record to a handler in order.
+	 *
+	 * @param handler the handler
+	 * @throws HexParseException if the handler rejects a record
+	 */
+	public void replay(HexRecordHandler handler) throws HexParseException {
+		for(int i = 0; i < size;) {
+			int len = getLen(i);
+			handler.dataRecord(getInt(i), data, i + 6, len);
+			i += 6 + len;
+		}
+	}
+
+	/**
+	 * Gets the records in the parseHexRecords format.
+	 *
+	 * @return the records with one byte per int
+	 */
+	public int[] toIntArray() {
+		int ret[] = new int[size];
+		for(int i = 0; i < size; i ++) {
+			ret[i] = data[i] & 0xff;
+		}
+		return ret;
+	}
+
+	/**
+	 * Gets a big endian int from the store.
+	 *
+	 * @param pos the byte position
+	 * @return the value
+	 */
+	int getInt(int pos) {
+		return ((data[pos] & 0xff) << 24) | ((data[pos + 1] & 0xff) << 16) |
+				((data[pos + 2] & 0xff) << 8) | (data[pos + 3] & 0xff);
+	}
+
+	/**
+	 * Gets the data length of the record at a position.
+	 *
+	 * @param pos the byte position of the record
+	 * @return the data length
+	 */
+	int getLen(int pos) {
+		return ((data[pos + 4] & 0xff) << 8) | (data[pos + 5] & 0xff);
+	}
+}
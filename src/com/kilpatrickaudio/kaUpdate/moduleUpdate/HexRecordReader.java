@@ -0,0 +1,269 @@
+package com.kilpatrickaudio.kaUpdate.moduleUpdate;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * This class implements a byte-level Intel HEX record reader. Hex digits are
+ * decoded straight out of a reusable byte buffer using a lookup table and the
+ * record checksum is verified in the same pass, so no objects are allocated
+ * per record.
+ *
+ * @author andrew
+ *
+ */
+public class HexRecordReader {
+	static final int BUF_SIZE = 64 * 1024;
+	static final int MAX_LINE_LEN = 1024;  // a full 255 byte record is 521 chars
+	static final byte HEX_DIGITS[] = new byte[256];
+	InputStream in = null;
+	ByteBuffer src = null;
+	byte buf[];
+	int bufPos = 0;
+	int bufLen = 0;
+	byte line[];
+	byte rec[];
+	int extAddr = 0;
+	boolean gotExtAddr = false;
+
+	static {
+		Arrays.fill(HEX_DIGITS, (byte)-1);
+		for(int i = 0; i < 10; i ++) {
+			HEX_DIGITS['0' + i] = (byte)i;
+		}
+		for(int i = 0; i < 6; i ++) {
+			HEX_DIGITS['a' + i] = (byte)(10 + i);
+			HEX_DIGITS['A' + i] = (byte)(10 + i);
+		}
+	}
+
+	/**
+	 * Creates a new HEX record reader.
+	 *
+	 * @param in the stream to read HEX text from
+	 */
+	public HexRecordReader(InputStream in) {
+		this.in = in;
+		buf = new byte[BUF_SIZE];
+		line = new byte[MAX_LINE_LEN];
+		rec = new byte[MAX_LINE_LEN >> 1];
+	}
+
+	/**
+	 * Creates a new HEX record reader over a buffer such as a mapped region of a file.
+	 *
+	 * @param src the buffer to read HEX text from - read from position to limit
+	 */
+	public HexRecordReader(ByteBuffer src) {
+		this.src = src;
+		buf = new byte[BUF_SIZE];
+		line = new byte[MAX_LINE_LEN];
+		rec = new byte[MAX_LINE_LEN >> 1];
+	}
+
+	/**
+	 * Reads all records from the stream and passes data records to the handler.
+	 *
+	 * @param handler the handler to receive the data records
+	 * @throws IOException if there is a problem reading the stream
+	 * @throws HexParseException if the HEX data is invalid
+	 */
+	public void parse(HexRecordHandler handler) throws IOException, HexParseException {
+		int lineLen;
+		while((lineLen = readLine()) >= 0) {
+			if(lineLen == 0) continue;  // skip blank lines
+			parseLine(lineLen, handler);
+		}
+	}
+
+	/**
+	 * Gets the current extended address.
+	 *
+	 * @return the extended address that will be applied to the next data record
+	 */
+	public int getExtAddr() {
+		return extAddr;
+	}
+
+	/**
+	 * Sets the extended address to apply to data records before the first
+	 * extended address record is read.
+	 *
+	 * @param extAddr the extended address
+	 */
+	public void setExtAddr(int extAddr) {
+		this.extAddr = extAddr;
+	}
+
+	/**
+	 * Checks if an extended address record has been read.
+	 *
+	 * @return true if a type 02 or 04 record has been read
+	 */
+	public boolean hasReadExtAddr() {
+		return gotExtAddr;
+	}
+
+	/**
+	 * Refills the read buffer from the stream.
+	 *
+	 * @return true if more data is available, false on end of stream
+	 * @throws IOException if there is a problem reading the stream
+	 */
+	boolean fill() throws IOException {
+		int len;
+		if(src != null) {
+			len = Math.min(src.remaining(), buf.length);
+			src.get(buf, 0, len);
+		}
+		else {
+			len = in.read(buf, 0, buf.length);
+		}
+		if(len <= 0) {
+			return false;
+		}
+		bufPos = 0;
+		bufLen = len;
+		return true;
+	}
+
+	/**
+	 * Reads the next line into the line buffer with leading and trailing whitespace removed.
+	 *
+	 * @return the length of the line, or -1 at the end of the stream
+	 * @throws IOException if there is a problem reading the stream
+	 * @throws HexParseException if the line is too long
+	 */
+	int readLine() throws IOException, HexParseException {
+		int len = 0;
+		int trimLen = 0;
+		boolean gotChars = false;
+		while(true) {
+			if(bufPos == bufLen && !fill()) {
+				return gotChars ? trimLen : -1;
+			}
+			int c = buf[bufPos ++] & 0xff;
+			gotChars = true;
+			if(c == '\n' || c == '\r') {
+				return trimLen;
+			}
+			if(c <= ' ') {
+				if(len == 0) continue;  // leading whitespace
+			}
+			if(len == line.length) {
+				throw new HexParseException("line is too long: " + lineString(0, 40) + "...");
+			}
+			line[len ++] = (byte)c;
+			if(c > ' ') {
+				trimLen = len;
+			}
+		}
+	}
+
+	/**
+	 * Decodes a line from the line buffer and handles the record.
+	 *
+	 * @param len the line length
+	 * @param handler the handler to receive data records
+	 * @throws HexParseException if the record is invalid
+	 */
+	void parseLine(int len, HexRecordHandler handler) throws HexParseException {
+		if(line[0] != ':') {
+			throw new HexParseException("line didn't start with a colon: " + lineString(0, len));
+		}
+		int chars = len - 1;
+		if(chars < 10) {
+			throw new HexParseException("line is too short: " + lineString(1, len));
+		}
+		if((chars & 0x01) == 1) {
+			throw new HexParseException("line is an odd length: " + lineString(1, len));
+		}
+		// decode the hex digits and sum the record in one pass
+		int words = chars >> 1;
+		int sum = 0;
+		for(int i = 0, pos = 1; i < words; i ++, pos += 2) {
+			int hi = HEX_DIGITS[line[pos] & 0xff];
+			int lo = HEX_DIGITS[line[pos + 1] & 0xff];
+			if((hi | lo) < 0) {
+				throw new HexParseException("line contains an invalid hex digit: " + lineString(1, len));
+			}
+			int hexWord = (hi << 4) | lo;
+			rec[i] = (byte)hexWord;
+			sum += hexWord;
+		}
+		// test the checksum - all bytes including the checksum must sum to zero
+		if((sum & 0xff) != 0) {
+			int checksum = rec[words - 1] & 0xff;
+			int chk = (((sum - checksum) & 0xff) ^ 0xff) + 0x01;
+			throw new HexParseException("checksum mismatch: 0x" + Integer.toHexString(checksum) +
+					" - 0x" + Integer.toHexString(chk & 0xff) + " - \n  line: " + lineString(1, len));
+		}
+		int byteCount = rec[0] & 0xff;
+		if(byteCount + 5 > words) {
+			throw new HexParseException("byte count is past end of line: " + lineString(1, len));
+		}
+		int address = ((rec[1] & 0xff) << 8) | (rec[2] & 0xff);
+		int recordType = rec[3] & 0xff;
+		//
+		// parse the record types
+		//
+		// data record
+		if(recordType == 0) {
+			handler.dataRecord(extAddr | address, rec, 4, byteCount);
+		}
+		// end of file record
+		else if(recordType == 1) {
+		}
+		// extended segment adddress
+		else if(recordType == 2) {
+			checkAddrRecord(byteCount, len);
+			extAddr = (((rec[4] & 0xff) << 8) | (rec[5] & 0xff)) << 4;
+			gotExtAddr = true;
+		}
+		// start segment address
+		else if(recordType == 3) {
+			throw new HexParseException("START SEGMENT ADDRESS - record type not supported");
+		}
+		// extended linear address record
+		else if(recordType == 4) {
+			checkAddrRecord(byteCount, len);
+			extAddr = (((rec[4] & 0xff) << 8) | (rec[5] & 0xff)) << 16;
+			gotExtAddr = true;
+		}
+		// start linear address
+		else if(recordType == 5) {
+			throw new HexParseException("START LINEAR ADDRESS - record type not supported");
+		}
+		// unknown record type
+		else {
+			throw new HexParseException("BAD RECORD TYPE - record type not supported: " + recordType);
+		}
+	}
+
+	/**
+	 * Checks that an extended address record carries an address.
+	 *
+	 * @param byteCount the record byte count
+	 * @param len the line length
+	 * @throws HexParseException if the record is too short
+	 */
+	void checkAddrRecord(int byteCount, int len) throws HexParseException {
+		if(byteCount < 2) {
+			throw new HexParseException("address record is too short: " + lineString(1, len));
+		}
+	}
+
+	/**
+	 * Gets part of the line buffer as a String for error messages.
+	 *
+	 * @param start the start position
+	 * @param end the end position
+	 * @return the text
+	 */
+	String lineString(int start, int end) {
+		return new String(line, start, end - start, StandardCharsets.US_ASCII);
+	}
+}
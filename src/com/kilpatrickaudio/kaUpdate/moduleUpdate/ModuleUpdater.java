@@ -10,6 +10,14 @@ import com.kilpatrickaudio.kaUpdate.main.ProgressIndicator;
  */
 public interface ModuleUpdater {
 
+	/**
+	 * Sets whether the MIDI ports are already open and the module was already
+	 * reset into its bootloader. The update then starts without another reset.
+	 * 
+	 * @param online true if the module is already online
+	 */
+	public void setOnline(boolean online);
+
 	/**
 	 * Updates a module.
 	 * 
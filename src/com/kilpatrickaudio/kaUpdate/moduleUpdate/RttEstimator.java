@@ -0,0 +1,153 @@
+package com.kilpatrickaudio.kaUpdate.moduleUpdate;
+
+/**
+ * This class estimates how long to wait for a chunk acknowledgement from the
+ * latency of earlier ones, the way TCP computes its retransmission timeout
+ * (RFC 6298). The smoothed latency and its mean deviation are updated with each
+ * sample and the timeout is the smoothed latency plus 4 deviations or a minimum
+ * margin, whichever is larger, kept between a floor and a ceiling. The margin
+ * covers scheduling jitter on links with very steady latency. The timeout
+ * doubles after each timeout until a new sample arrives.
+ *
+ * The limits can be set with system properties:
+ * - kaupdate.rto.min: the shortest timeout in ms (default: 20)
+ * - kaupdate.rto.max: the longest timeout in ms (default: 3000)
+ * - kaupdate.rto.initial: the timeout before the first sample in ms (default: 1000)
+ * - kaupdate.rto.margin: the smallest margin over the smoothed latency in ms (default: 20)
+ *
+ * @author andrew
+ *
+ */
+public class RttEstimator {
+	static final int DEFAULT_MIN_RTO = 20;  // ms
+	static final int DEFAULT_MAX_RTO = 3000;  // ms
+	static final int DEFAULT_INITIAL_RTO = 1000;  // ms
+	static final int DEFAULT_MARGIN = 20;  // ms
+	static final double ALPHA = 0.125;
+	static final double BETA = 0.25;
+	static final int K = 4;
+	int minRto;
+	int maxRto;
+	int margin = DEFAULT_MARGIN;
+	double srtt = 0;
+	double rttvar = 0;
+	int rto;
+	int sampleCount = 0;
+
+	/**
+	 * Creates a new RTT estimator.
+	 *
+	 * @param minRto the shortest timeout in ms
+	 * @param maxRto the longest timeout in ms
+	 * @param initialRto the timeout before the first sample in ms
+	 */
+	public RttEstimator(int minRto, int maxRto, int initialRto) {
+		if(minRto <= 0 || maxRto < minRto) {
+			throw new IllegalArgumentException("timeout limits are invalid: " + minRto + " - " + maxRto);
+		}
+		this.minRto = minRto;
+		this.maxRto = maxRto;
+		rto = clamp(initialRto);
+	}
+
+	/**
+	 * Creates an RTT estimator with the limits from system properties.
+	 *
+	 * @return the estimator
+	 */
+	public static RttEstimator fromSystemProperties() {
+		RttEstimator rtt = new RttEstimator(Integer.parseInt(System.getProperty("kaupdate.rto.min",
+				Integer.toString(DEFAULT_MIN_RTO)).trim()),
+				Integer.parseInt(System.getProperty("kaupdate.rto.max",
+				Integer.toString(DEFAULT_MAX_RTO)).trim()),
+				Integer.parseInt(System.getProperty("kaupdate.rto.initial",
+				Integer.toString(DEFAULT_INITIAL_RTO)).trim()));
+		rtt.setMargin(Integer.parseInt(System.getProperty("kaupdate.rto.margin",
+				Integer.toString(DEFAULT_MARGIN)).trim()));
+		return rtt;
+	}
+
+	/**
+	 * Sets the smallest margin over the smoothed latency.
+	 *
+	 * @param margin the margin in ms
+	 */
+	public synchronized void setMargin(int margin) {
+		if(margin < 0) {
+			throw new IllegalArgumentException("timeout margin is invalid: " + margin);
+		}
+		this.margin = margin;
+	}
+
+	/**
+	 * Adds a latency sample. Samples from chunks that were sent more than once
+	 * should not be added since it is unknown which send was acknowledged.
+	 *
+	 * @param rtt the time from sending a chunk to its acknowledgement in ms
+	 */
+	public synchronized void sample(double rtt) {
+		if(sampleCount == 0) {
+			srtt = rtt;
+			rttvar = rtt / 2;
+		}
+		else {
+			rttvar = (1 - BETA) * rttvar + BETA * Math.abs(srtt - rtt);
+			srtt = (1 - ALPHA) * srtt + ALPHA * rtt;
+		}
+		sampleCount ++;
+		rto = clamp((int)Math.ceil(srtt + Math.max(margin, K * rttvar)));
+	}
+
+	/**
+	 * Doubles the timeout after an acknowledgement timed out.
+	 */
+	public synchronized void backoff() {
+		rto = clamp(rto * 2);
+	}
+
+	/**
+	 * Gets the timeout to wait for an acknowledgement.
+	 *
+	 * @return the timeout in ms
+	 */
+	public synchronized int getTimeout() {
+		return rto;
+	}
+
+	/**
+	 * Gets the smoothed latency.
+	 *
+	 * @return the latency in ms, or 0 if there are no samples
+	 */
+	public synchronized double getSmoothedRtt() {
+		return srtt;
+	}
+
+	/**
+	 * Gets the mean deviation of the latency.
+	 *
+	 * @return the deviation in ms
+	 */
+	public synchronized double getRttVariation() {
+		return rttvar;
+	}
+
+	/**
+	 * Gets the number of samples added.
+	 *
+	 * @return the sample count
+	 */
+	public synchronized int getSampleCount() {
+		return sampleCount;
+	}
+
+	/**
+	 * Keeps a timeout between the floor and ceiling.
+	 *
+	 * @param timeout the timeout in ms
+	 * @return the limited timeout in ms
+	 */
+	int clamp(int timeout) {
+		return Math.max(minRto, Math.min(maxRto, timeout));
+	}
+}
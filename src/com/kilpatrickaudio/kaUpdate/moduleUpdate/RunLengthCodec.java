@@ -0,0 +1,125 @@
+package com.kilpatrickaudio.kaUpdate.moduleUpdate;
+
+import java.nio.ByteBuffer;
+
+/**
+ * This class run-length encodes chunk data for compressed loads. The stream is
+ * a series of blocks, each starting with a control byte:
+ * - 0x00 to 0x7f: a literal block - the next control + 1 bytes are copied
+ * - 0x80 to 0xff: a run block - the next byte is repeated control - 0x7d times
+ *
+ * Runs are 3 to 130 bytes long and literal blocks are 1 to 128 bytes long, so
+ * erased padding and zero filled tables shrink to 2 bytes per 130 bytes while
+ * data with no runs grows by at most 1 byte per 128 bytes.
+ *
+ * @author andrew
+ *
+ */
+public class RunLengthCodec {
+	static final int MAX_LITERAL = 128;
+	static final int MIN_RUN = 3;
+	static final int MAX_RUN = 130;
+	static final int RUN_FLAG = 0x80;
+
+	/**
+	 * Gets the largest encoded length of some data.
+	 *
+	 * @param len the data length
+	 * @return the worst case encoded length
+	 */
+	public static int getMaxEncodedLength(int len) {
+		return len + (len + MAX_LITERAL - 1) / MAX_LITERAL;
+	}
+
+	/**
+	 * Encodes data.
+	 *
+	 * @param src the data from position 0 to limit
+	 * @param dst the buffer to encode into - at least getMaxEncodedLength() long
+	 * @return the encoded length
+	 */
+	public static int encode(ByteBuffer src, byte dst[]) {
+		int len = src.limit();
+		int pos = 0;
+		int literalStart = 0;
+		int i = 0;
+		while(i < len) {
+			// measure the run at i
+			byte b = src.get(i);
+			int run = 1;
+			while(i + run < len && run < MAX_RUN && src.get(i + run) == b) {
+				run ++;
+			}
+			if(run < MIN_RUN) {
+				i += run;
+				continue;
+			}
+			pos = writeLiterals(src, literalStart, i, dst, pos);
+			dst[pos ++] = (byte)(RUN_FLAG + run - MIN_RUN);
+			dst[pos ++] = b;
+			i += run;
+			literalStart = i;
+		}
+		return writeLiterals(src, literalStart, len, dst, pos);
+	}
+
+	/**
+	 * Writes literal blocks.
+	 *
+	 * @param src the data
+	 * @param start the first literal byte
+	 * @param end the byte after the last literal byte
+	 * @param dst the encode buffer
+	 * @param pos the position in the encode buffer
+	 * @return the new position in the encode buffer
+	 */
+	static int writeLiterals(ByteBuffer src, int start, int end, byte dst[], int pos) {
+		while(start < end) {
+			int count = Math.min(MAX_LITERAL, end - start);
+			dst[pos ++] = (byte)(count - 1);
+			for(int i = 0; i < count; i ++) {
+				dst[pos ++] = src.get(start + i);
+			}
+			start += count;
+		}
+		return pos;
+	}
+
+	/**
+	 * Decodes data.
+	 *
+	 * @param src the encoded data
+	 * @param offset the offset of the encoded data in src
+	 * @param len the encoded length
+	 * @param dst the buffer to decode into
+	 * @return the decoded length, or -1 if the data is malformed or does not fit
+	 */
+	public static int decode(byte src[], int offset, int len, byte dst[]) {
+		int end = offset + len;
+		int pos = 0;
+		int i = offset;
+		while(i < end) {
+			int control = src[i ++] & 0xff;
+			if(control >= RUN_FLAG) {
+				int run = control - RUN_FLAG + MIN_RUN;
+				if(i >= end || pos + run > dst.length) {
+					return -1;
+				}
+				byte b = src[i ++];
+				for(int j = 0; j < run; j ++) {
+					dst[pos ++] = b;
+				}
+			}
+			else {
+				int count = control + 1;
+				if(i + count > end || pos + count > dst.length) {
+					return -1;
+				}
+				System.arraycopy(src, i, dst, pos, count);
+				i += count;
+				pos += count;
+			}
+		}
+		return pos;
+	}
+}
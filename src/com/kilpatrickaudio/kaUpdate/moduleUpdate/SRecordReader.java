@@ -0,0 +1,115 @@
+package com.kilpatrickaudio.kaUpdate.moduleUpdate;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * This class implements a byte-level Motorola S-record reader for S19, S28 and
+ * S37 files. It shares the buffered line reading of the HEX record reader and
+ * passes data records to a HexRecordHandler without allocating per record.
+ *
+ * @author andrew
+ *
+ */
+public class SRecordReader extends HexRecordReader {
+
+	/**
+	 * Creates a new S-record reader.
+	 *
+	 * @param in the stream to read S-record text from
+	 */
+	public SRecordReader(InputStream in) {
+		super(in);
+	}
+
+	/**
+	 * Creates a new S-record reader over a buffer.
+	 *
+	 * @param src the buffer to read S-record text from - read from position to limit
+	 */
+	public SRecordReader(ByteBuffer src) {
+		super(src);
+	}
+
+	/**
+	 * Decodes a line from the line buffer and handles the record.
+	 *
+	 * @param len the line length
+	 * @param handler the handler to receive data records
+	 * @throws HexParseException if the record is invalid
+	 */
+	@Override
+	void parseLine(int len, HexRecordHandler handler) throws HexParseException {
+		if(line[0] != 'S' && line[0] != 's') {
+			throw new HexParseException("line didn't start with an S: " + lineString(0, len));
+		}
+		int chars = len - 2;
+		if(chars < 8) {
+			throw new HexParseException("line is too short: " + lineString(0, len));
+		}
+		if((chars & 0x01) == 1) {
+			throw new HexParseException("line is an odd length: " + lineString(0, len));
+		}
+		int recordType = line[1] - '0';
+		// decode the hex digits and sum the record in one pass
+		int words = chars >> 1;
+		int sum = 0;
+		for(int i = 0, pos = 2; i < words; i ++, pos += 2) {
+			int hi = HEX_DIGITS[line[pos] & 0xff];
+			int lo = HEX_DIGITS[line[pos + 1] & 0xff];
+			if((hi | lo) < 0) {
+				throw new HexParseException("line contains an invalid hex digit: " + lineString(0, len));
+			}
+			int hexWord = (hi << 4) | lo;
+			rec[i] = (byte)hexWord;
+			sum += hexWord;
+		}
+		// the byte count covers the address, data and checksum
+		int byteCount = rec[0] & 0xff;
+		if(byteCount + 1 != words) {
+			throw new HexParseException("byte count does not match line length: " + lineString(0, len));
+		}
+		// test the checksum - all bytes including the checksum must sum to 0xff
+		if((sum & 0xff) != 0xff) {
+			int checksum = rec[words - 1] & 0xff;
+			int chk = ((sum - checksum) & 0xff) ^ 0xff;
+			throw new HexParseException("checksum mismatch: 0x" + Integer.toHexString(checksum) +
+					" - 0x" + Integer.toHexString(chk) + " - \n  line: " + lineString(0, len));
+		}
+		int addrLen;
+		switch(recordType) {
+		// header record
+		case 0:
+			return;
+		// data records with 16, 24 and 32 bit addresses
+		case 1:
+			addrLen = 2;
+			break;
+		case 2:
+			addrLen = 3;
+			break;
+		case 3:
+			addrLen = 4;
+			break;
+		// record count and start address records
+		case 5:
+		case 6:
+		case 7:
+		case 8:
+		case 9:
+			return;
+		// unknown record type
+		default:
+			throw new HexParseException("BAD RECORD TYPE - record type not supported: S" + (char)line[1]);
+		}
+		int dataLen = byteCount - addrLen - 1;
+		if(dataLen < 0) {
+			throw new HexParseException("record is too short for its address: " + lineString(0, len));
+		}
+		int address = 0;
+		for(int i = 1; i <= addrLen; i ++) {
+			address = (address << 8) | (rec[i] & 0xff);
+		}
+		handler.dataRecord(address, rec, 1 + addrLen, dataLen);
+	}
+}
@@ -0,0 +1,170 @@
+package com.kilpatrickaudio.kaUpdate.moduleUpdate;
+
+/**
+ * This class is a flyweight decoder that reads bootloader SYSEX messages in
+ * place from a received byte buffer.
+ * 
+ * @author andrew
+ *
+ */
+public class SysexDecoder {
+	byte buf[] = null;
+	int len = 0;
+	int loadAddr = 0;
+
+	/**
+	 * Points the decoder at a received message.
+	 * 
+	 * @param msg the message, or null
+	 * @return this decoder
+	 */
+	public SysexDecoder wrap(byte msg[]) {
+		buf = msg;
+		len = msg != null ? msg.length : 0;
+		return this;
+	}
+
+	/**
+	 * Checks if the message is a bootloader message with a command.
+	 * 
+	 * @return true if the framing and header are correct
+	 */
+	public boolean isValid() {
+		return len > BootloaderProtocol.CMD_POS + 1 &&
+				(buf[0] & 0xff) == BootloaderProtocol.SYSEX_START &&
+				buf[1] == BootloaderProtocol.MANUFACTURER_ID_0 &&
+				buf[2] == BootloaderProtocol.MANUFACTURER_ID_1 &&
+				buf[3] == BootloaderProtocol.MANUFACTURER_ID_2 &&
+				(buf[len - 1] & 0xff) == BootloaderProtocol.SYSEX_END;
+	}
+
+	/**
+	 * Gets the message length.
+	 * 
+	 * @return the length in bytes
+	 */
+	public int getLength() {
+		return len;
+	}
+
+	/**
+	 * Gets the message command.
+	 * 
+	 * @return the command, or -1 if the message is not a valid bootloader message
+	 */
+	public int getCommand() {
+		if(!isValid()) {
+			return -1;
+		}
+		return buf[BootloaderProtocol.CMD_POS] & 0xff;
+	}
+
+	/**
+	 * Checks if the message is a command with no payload, such as the alive
+	 * status or the blank acknowledgement.
+	 * 
+	 * @param cmd the command
+	 * @return true if the message is exactly the command
+	 */
+	public boolean isCommand(int cmd) {
+		return len == BootloaderProtocol.COMMAND_LEN && getCommand() == cmd;
+	}
+
+	/**
+	 * Checks if the message is a chunk load acknowledgement.
+	 * 
+	 * @param ackCmd the acknowledge command
+	 * @return true if the message is an acknowledgement
+	 */
+	public boolean isAck(int ackCmd) {
+		return len >= BootloaderProtocol.ACK_LEN && getCommand() == ackCmd;
+	}
+
+	/**
+	 * Gets the checksum of a chunk load acknowledgement.
+	 * 
+	 * @return the 7 bit checksum
+	 */
+	public int getAckChecksum() {
+		return buf[BootloaderProtocol.PAYLOAD_POS] & 0x7f;
+	}
+
+	/**
+	 * Decodes a chunk load message.
+	 * 
+	 * @param packed true if the message uses the packed load encoding
+	 * @param data the buffer to decode the chunk data into
+	 * @return the chunk data length, or -1 if the message is malformed
+	 */
+	public int decodeLoad(boolean packed, byte data[]) {
+		if(!isValid()) {
+			return -1;
+		}
+		int start = BootloaderProtocol.PAYLOAD_POS;
+		int payloadLen = len - start - 1;
+		loadAddr = 0;
+		if(!packed) {
+			if(payloadLen < BootloaderProtocol.LOAD_ADDR_NIBBLES || (payloadLen & 0x01) != 0) {
+				return -1;
+			}
+			for(int i = 0; i < BootloaderProtocol.LOAD_ADDR_NIBBLES; i ++) {
+				loadAddr = (loadAddr << 4) | (buf[start + i] & 0x0f);
+			}
+			int dataLen = (payloadLen - BootloaderProtocol.LOAD_ADDR_NIBBLES) / 2;
+			if(dataLen > data.length) {
+				return -1;
+			}
+			int pos = start + BootloaderProtocol.LOAD_ADDR_NIBBLES;
+			for(int i = 0; i < dataLen; i ++) {
+				data[i] = (byte)(((buf[pos] & 0x0f) << 4) | (buf[pos + 1] & 0x0f));
+				pos += 2;
+			}
+			return dataLen;
+		}
+		// packed 7 bytes into 8
+		int rem = payloadLen % 8;
+		if(rem == 1) {
+			return -1;  // a group can't be just the top bits
+		}
+		int unpackedLen = (payloadLen / 8) * 7 + (rem > 0 ? rem - 1 : 0);
+		int dataLen = unpackedLen - BootloaderProtocol.LOAD_ADDR_BYTES;
+		if(dataLen < 0 || dataLen > data.length) {
+			return -1;
+		}
+		int pos = start;
+		for(int group = 0; group < unpackedLen; group += 7) {
+			int groupLen = Math.min(7, unpackedLen - group);
+			int msbs = buf[pos ++];
+			for(int i = 0; i < groupLen; i ++) {
+				int b = (buf[pos ++] & 0x7f) | (((msbs >> i) & 0x01) << 7);
+				int k = group + i;
+				if(k < BootloaderProtocol.LOAD_ADDR_BYTES) {
+					loadAddr = (loadAddr << 8) | b;
+				}
+				else {
+					data[k - BootloaderProtocol.LOAD_ADDR_BYTES] = (byte)b;
+				}
+			}
+		}
+		return dataLen;
+	}
+
+	/**
+	 * Gets the address of the last decoded chunk load message.
+	 * 
+	 * @return the chunk address
+	 */
+	public int getLoadAddr() {
+		return loadAddr;
+	}
+
+	/**
+	 * Gets a byte of the message.
+	 * 
+	 * @param index the byte index
+	 * @return the unsigned byte value
+	 */
+	public int get(int index) {
+		return buf[index] & 0xff;
+	}
+}
@@ -0,0 +1,216 @@
+package com.kilpatrickaudio.kaUpdate.moduleUpdate;
+
+import java.nio.ByteBuffer;
+
+/**
+ * This class is a flyweight encoder that writes bootloader SYSEX messages
+ * directly into a reusable byte buffer. Nothing is allocated per message.
+ * 
+ * @author andrew
+ *
+ */
+public class SysexEncoder {
+	byte buf[];
+	int len = 0;
+
+	/**
+	 * Creates an encoder with its own buffer.
+	 * 
+	 * @param capacity the largest message to encode in bytes
+	 */
+	public SysexEncoder(int capacity) {
+		buf = new byte[capacity];
+	}
+
+	/**
+	 * Creates an encoder that writes into a buffer.
+	 * 
+	 * @param buf the buffer
+	 */
+	public SysexEncoder(byte buf[]) {
+		this.buf = buf;
+	}
+
+	/**
+	 * Gets the buffer the message is encoded into.
+	 * 
+	 * @return the buffer
+	 */
+	public byte[] getBuffer() {
+		return buf;
+	}
+
+	/**
+	 * Gets the length of the last encoded message.
+	 * 
+	 * @return the length in bytes
+	 */
+	public int getLength() {
+		return len;
+	}
+
+	/**
+	 * Gets the length of a chunk load message.
+	 * 
+	 * @param dataLen the chunk data length
+	 * @return the message length in bytes
+	 */
+	public static int getLoadLength(int dataLen) {
+		return BootloaderProtocol.PAYLOAD_POS + BootloaderProtocol.LOAD_ADDR_NIBBLES + dataLen * 2 + 1;
+	}
+
+	/**
+	 * Encodes a chunk load message. The address and data are sent 4 bits per
+	 * byte, most significant nibble first.
+	 * 
+	 * @param cmd the load command
+	 * @param addr the chunk start address
+	 * @param data the chunk data from position 0 to limit
+	 * @return the message length
+	 */
+	public int encodeLoad(int cmd, int addr, ByteBuffer data) {
+		int dataLen = data.limit();
+		ensureCapacity(getLoadLength(dataLen));
+		int pos = header(cmd);
+		for(int shift = 28; shift >= 0; shift -= 4) {
+			buf[pos ++] = (byte)((addr >> shift) & 0x0f);
+		}
+		for(int i = 0; i < dataLen; i ++) {
+			int b = data.get(i);
+			buf[pos ++] = (byte)((b >> 4) & 0x0f);
+			buf[pos ++] = (byte)(b & 0x0f);
+		}
+		buf[pos ++] = (byte)BootloaderProtocol.SYSEX_END;
+		len = pos;
+		return len;
+	}
+
+	/**
+	 * Gets the length of a packed chunk load message.
+	 * 
+	 * @param dataLen the chunk data length
+	 * @return the message length in bytes
+	 */
+	public static int getPackedLoadLength(int dataLen) {
+		return BootloaderProtocol.PAYLOAD_POS + getPackedLength(BootloaderProtocol.LOAD_ADDR_BYTES + dataLen) + 1;
+	}
+
+	/**
+	 * Gets the length of data once it is packed 7 bytes into 8.
+	 * 
+	 * @param len the unpacked length
+	 * @return the packed length
+	 */
+	public static int getPackedLength(int len) {
+		int rem = len % 7;
+		return (len / 7) * 8 + (rem > 0 ? rem + 1 : 0);
+	}
+
+	/**
+	 * Encodes a packed chunk load message. The big endian address followed by the
+	 * data are packed 7 bytes into 8.
+	 * 
+	 * @param cmd the packed load command
+	 * @param addr the chunk start address
+	 * @param data the chunk data from position 0 to limit
+	 * @return the message length
+	 */
+	public int encodePackedLoad(int cmd, int addr, ByteBuffer data) {
+		int dataLen = data.limit();
+		int unpackedLen = BootloaderProtocol.LOAD_ADDR_BYTES + dataLen;
+		ensureCapacity(getPackedLoadLength(dataLen));
+		int pos = header(cmd);
+		for(int group = 0; group < unpackedLen; group += 7) {
+			int groupLen = Math.min(7, unpackedLen - group);
+			int msbPos = pos ++;
+			int msbs = 0;
+			for(int i = 0; i < groupLen; i ++) {
+				int k = group + i;
+				int b = k < BootloaderProtocol.LOAD_ADDR_BYTES ?
+						addr >> (24 - k * 8) : data.get(k - BootloaderProtocol.LOAD_ADDR_BYTES);
+				msbs |= ((b >> 7) & 0x01) << i;
+				buf[pos ++] = (byte)(b & 0x7f);
+			}
+			buf[msbPos] = (byte)msbs;
+		}
+		buf[pos ++] = (byte)BootloaderProtocol.SYSEX_END;
+		len = pos;
+		return len;
+	}
+
+	/**
+	 * Encodes the reset message that restarts a device into its bootloader.
+	 * 
+	 * @param devID the device ID
+	 * @return the message length
+	 */
+	public int encodeReset(int devID) {
+		ensureCapacity(BootloaderProtocol.RESET_LEN);
+		int pos = header(BootloaderProtocol.CMD_RESET);
+		buf[pos ++] = (byte)devID;
+		for(int i = 0; i < BootloaderProtocol.RESET_KEY.length; i ++) {
+			buf[pos ++] = BootloaderProtocol.RESET_KEY[i];
+		}
+		buf[pos ++] = (byte)BootloaderProtocol.SYSEX_END;
+		len = pos;
+		return len;
+	}
+
+	/**
+	 * Encodes a message with no payload, such as the blank command.
+	 * 
+	 * @param cmd the command
+	 * @return the message length
+	 */
+	public int encodeCommand(int cmd) {
+		ensureCapacity(BootloaderProtocol.COMMAND_LEN);
+		int pos = header(cmd);
+		buf[pos ++] = (byte)BootloaderProtocol.SYSEX_END;
+		len = pos;
+		return len;
+	}
+
+	/**
+	 * Encodes a message with a single 7 bit payload byte, such as a load
+	 * acknowledgement or a capability reply.
+	 * 
+	 * @param cmd the command
+	 * @param value the payload value
+	 * @return the message length
+	 */
+	public int encodeCommand(int cmd, int value) {
+		ensureCapacity(BootloaderProtocol.ACK_LEN);
+		int pos = header(cmd);
+		buf[pos ++] = (byte)(value & 0x7f);
+		buf[pos ++] = (byte)BootloaderProtocol.SYSEX_END;
+		len = pos;
+		return len;
+	}
+
+	/**
+	 * Writes the message header.
+	 * 
+	 * @param cmd the command
+	 * @return the position after the header
+	 */
+	int header(int cmd) {
+		buf[0] = (byte)BootloaderProtocol.SYSEX_START;
+		buf[1] = (byte)BootloaderProtocol.MANUFACTURER_ID_0;
+		buf[2] = (byte)BootloaderProtocol.MANUFACTURER_ID_1;
+		buf[3] = (byte)BootloaderProtocol.MANUFACTURER_ID_2;
+		buf[4] = (byte)cmd;
+		return BootloaderProtocol.PAYLOAD_POS;
+	}
+
+	/**
+	 * Makes sure the buffer can hold a message. The buffer only grows when a
+	 * bigger message than any before is encoded.
+	 * 
+	 * @param msgLen the message length
+	 */
+	void ensureCapacity(int msgLen) {
+		if(buf.length < msgLen) {
+			buf = new byte[msgLen];
+		}
+	}
+}
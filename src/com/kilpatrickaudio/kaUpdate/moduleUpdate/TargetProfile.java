@@ -0,0 +1,422 @@
+package com.kilpatrickaudio.kaUpdate.moduleUpdate;
+
+/**
+ * This class describes how firmware is loaded into a type of target: the load
+ * commands, the chunk size and alignment, the flash row size that chunks must
+ * not cross, the programmable address range and the largest SYSEX message the
+ * MIDI interface can carry.
+ *
+ * The defaults match the original bootloaders (64 byte chunks). The chunk layout
+ * can be overridden with system properties for bootloaders and interfaces that
+ * support it:
+ * - kaupdate.chunk.size: the chunk size in bytes
+ * - kaupdate.chunk.align: the chunk start alignment in bytes
+ * - kaupdate.sysex.max: the largest SYSEX message in bytes (0 for no limit)
+ * - kaupdate.NAME.window: the number of chunks in flight for a target, for
+ *   example kaupdate.pic32.window (default: 1 - stop-and-wait)
+ * - kaupdate.NAME.packed: true to ask the bootloader if it takes packed loads
+ *   and use them if it does (default: false)
+ * - kaupdate.NAME.rle: true to ask the bootloader if it takes run-length
+ *   compressed loads and use them for chunks that compress (default: false)
+ *
+ * @author andrew
+ *
+ */
+public class TargetProfile {
+	String name;
+	int loadCmd;
+	int ackCmd;
+	int chunkSize;
+	int alignment = 1;
+	int rowSize = 0;
+	int wordSize = 1;
+	long minAddr = 0;
+	long maxAddr = 0xffffffffL;
+	boolean erasedBeforeLoad = false;
+	int maxSysexLen = 0;
+	int windowSize = 1;
+	int packedLoadCmd = 0;
+	boolean packedEnabled = false;
+	int rleLoadCmd = 0;
+	boolean rleEnabled = false;
+
+	/**
+	 * Creates a new target profile.
+	 *
+	 * @param name the target name
+	 * @param loadCmd the chunk load command
+	 * @param ackCmd the chunk load acknowledge command
+	 * @param chunkSize the largest chunk to send in one load command in bytes
+	 */
+	public TargetProfile(String name, int loadCmd, int ackCmd, int chunkSize) {
+		this.name = name;
+		this.loadCmd = loadCmd;
+		this.ackCmd = ackCmd;
+		setChunkSize(chunkSize);
+	}
+
+	/**
+	 * Gets the profile for PIC18 targets. Application code lives from 0x800 to 0x7fff
+	 * and flash is written in 64 byte blocks without a bulk erase.
+	 *
+	 * @return the profile
+	 */
+	public static TargetProfile getPIC18() {
+		TargetProfile profile = new TargetProfile("PIC18", BootloaderProtocol.CMD_LOAD_PIC18,
+				BootloaderProtocol.CMD_LOAD_PIC18_OK, 64);
+		profile.setPackedLoadCmd(BootloaderProtocol.CMD_LOAD_PIC18_PACKED);
+		profile.setRleLoadCmd(BootloaderProtocol.CMD_LOAD_PIC18_RLE);
+		profile.setAlignment(64);
+		profile.setRowSize(64);
+		profile.setAddrRange(0x800, 0x7fff);
+		profile.applySystemProperties();
+		return profile;
+	}
+
+	/**
+	 * Gets the profile for PIC32 targets. Program memory is blanked before loading
+	 * and is programmed in 32 bit words.
+	 *
+	 * @return the profile
+	 */
+	public static TargetProfile getPIC32() {
+		TargetProfile profile = new TargetProfile("PIC32", BootloaderProtocol.CMD_LOAD_PIC32,
+				BootloaderProtocol.CMD_LOAD_PIC32_OK, 64);
+		profile.setPackedLoadCmd(BootloaderProtocol.CMD_LOAD_PIC32_PACKED);
+		profile.setRleLoadCmd(BootloaderProtocol.CMD_LOAD_PIC32_RLE);
+		profile.setAlignment(64);
+		profile.setWordSize(4);
+		profile.setErasedBeforeLoad(true);
+		profile.applySystemProperties();
+		return profile;
+	}
+
+	/**
+	 * Applies the chunk layout system properties to the profile.
+	 */
+	void applySystemProperties() {
+		String size = System.getProperty("kaupdate.chunk.size");
+		if(size != null) {
+			setChunkSize(Integer.parseInt(size.trim()));
+		}
+		String align = System.getProperty("kaupdate.chunk.align");
+		if(align != null) {
+			setAlignment(Integer.parseInt(align.trim()));
+		}
+		String sysexMax = System.getProperty("kaupdate.sysex.max");
+		if(sysexMax != null) {
+			setMaxSysexLen(Integer.parseInt(sysexMax.trim()));
+		}
+		String window = System.getProperty("kaupdate." + name.toLowerCase() + ".window");
+		if(window != null) {
+			setWindowSize(Integer.parseInt(window.trim()));
+		}
+		String packed = System.getProperty("kaupdate." + name.toLowerCase() + ".packed");
+		if(packed != null) {
+			setPackedEnabled(Boolean.parseBoolean(packed.trim()));
+		}
+		String rle = System.getProperty("kaupdate." + name.toLowerCase() + ".rle");
+		if(rle != null) {
+			setRleEnabled(Boolean.parseBoolean(rle.trim()));
+		}
+	}
+
+	/**
+	 * Gets the payload size of each chunk that is sent. This is the chunk size
+	 * reduced to fit in the largest SYSEX message if needed, so oversized chunks
+	 * are split into several load commands.
+	 *
+	 * @return the chunk payload size in bytes
+	 */
+	public int getEffectiveChunkSize() {
+		int size = chunkSize;
+		if(maxSysexLen > 0) {
+			int maxPayload = ChunkEncoder.getMaxLoadDataLength(maxSysexLen);
+			if(maxPayload < size) {
+				size = maxPayload - (maxPayload % wordSize);
+			}
+		}
+		if(size < wordSize) {
+			throw new IllegalArgumentException("SYSEX limit is too small for " + name +
+					" chunks: " + maxSysexLen);
+		}
+		return size;
+	}
+
+	/**
+	 * Gets the target name.
+	 *
+	 * @return the name
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Gets the chunk load command.
+	 *
+	 * @return the command
+	 */
+	public int getLoadCmd() {
+		return loadCmd;
+	}
+
+	/**
+	 * Gets the chunk load acknowledge command.
+	 *
+	 * @return the command
+	 */
+	public int getAckCmd() {
+		return ackCmd;
+	}
+
+	/**
+	 * Gets the largest chunk to send in one load command.
+	 *
+	 * @return the chunk size in bytes
+	 */
+	public int getChunkSize() {
+		return chunkSize;
+	}
+
+	/**
+	 * Sets the largest chunk to send in one load command. This can be any size.
+	 *
+	 * @param chunkSize the chunk size in bytes
+	 */
+	public void setChunkSize(int chunkSize) {
+		if(chunkSize <= 0) {
+			throw new IllegalArgumentException("chunk size is invalid: " + chunkSize);
+		}
+		this.chunkSize = chunkSize;
+	}
+
+	/**
+	 * Gets the chunk start alignment.
+	 *
+	 * @return the alignment in bytes
+	 */
+	public int getAlignment() {
+		return alignment;
+	}
+
+	/**
+	 * Sets the chunk start alignment. Chunks start at multiples of the alignment.
+	 *
+	 * @param alignment the alignment in bytes
+	 */
+	public void setAlignment(int alignment) {
+		if(alignment <= 0) {
+			throw new IllegalArgumentException("alignment is invalid: " + alignment);
+		}
+		this.alignment = alignment;
+	}
+
+	/**
+	 * Gets the flash row size that chunks may not cross.
+	 *
+	 * @return the row size in bytes, or 0 if chunks may cross rows
+	 */
+	public int getRowSize() {
+		return rowSize;
+	}
+
+	/**
+	 * Sets the flash row size that chunks may not cross.
+	 *
+	 * @param rowSize the row size in bytes, or 0 if chunks may cross rows
+	 */
+	public void setRowSize(int rowSize) {
+		if(rowSize < 0) {
+			throw new IllegalArgumentException("row size is invalid: " + rowSize);
+		}
+		this.rowSize = rowSize;
+	}
+
+	/**
+	 * Gets the smallest unit the target can program. Split chunks are a multiple of this.
+	 *
+	 * @return the word size in bytes
+	 */
+	public int getWordSize() {
+		return wordSize;
+	}
+
+	/**
+	 * Sets the smallest unit the target can program.
+	 *
+	 * @param wordSize the word size in bytes
+	 */
+	public void setWordSize(int wordSize) {
+		if(wordSize <= 0) {
+			throw new IllegalArgumentException("word size is invalid: " + wordSize);
+		}
+		this.wordSize = wordSize;
+	}
+
+	/**
+	 * Gets the lowest programmable address.
+	 *
+	 * @return the address as an unsigned value
+	 */
+	public long getMinAddr() {
+		return minAddr;
+	}
+
+	/**
+	 * Gets the highest programmable address.
+	 *
+	 * @return the address as an unsigned value
+	 */
+	public long getMaxAddr() {
+		return maxAddr;
+	}
+
+	/**
+	 * Sets the programmable address range. Data outside the range is not sent.
+	 *
+	 * @param minAddr the lowest address
+	 * @param maxAddr the highest address (inclusive)
+	 */
+	public void setAddrRange(long minAddr, long maxAddr) {
+		this.minAddr = minAddr;
+		this.maxAddr = maxAddr;
+	}
+
+	/**
+	 * Checks if the target is bulk erased before loading.
+	 *
+	 * @return true if erased chunks do not need to be sent
+	 */
+	public boolean isErasedBeforeLoad() {
+		return erasedBeforeLoad;
+	}
+
+	/**
+	 * Sets if the target is bulk erased before loading.
+	 *
+	 * @param erasedBeforeLoad true if erased chunks do not need to be sent
+	 */
+	public void setErasedBeforeLoad(boolean erasedBeforeLoad) {
+		this.erasedBeforeLoad = erasedBeforeLoad;
+	}
+
+	/**
+	 * Gets the largest SYSEX message the MIDI interface can carry.
+	 *
+	 * @return the length in bytes, or 0 for no limit
+	 */
+	public int getMaxSysexLen() {
+		return maxSysexLen;
+	}
+
+	/**
+	 * Sets the largest SYSEX message the MIDI interface can carry.
+	 *
+	 * @param maxSysexLen the length in bytes, or 0 for no limit
+	 */
+	public void setMaxSysexLen(int maxSysexLen) {
+		if(maxSysexLen < 0) {
+			throw new IllegalArgumentException("SYSEX length is invalid: " + maxSysexLen);
+		}
+		this.maxSysexLen = maxSysexLen;
+	}
+
+	/**
+	 * Gets the number of chunks that can be in flight before waiting for an
+	 * acknowledgement. Bootloaders that cannot buffer chunks need a window of 1.
+	 *
+	 * @return the window size
+	 */
+	public int getWindowSize() {
+		return windowSize;
+	}
+
+	/**
+	 * Sets the number of chunks that can be in flight before waiting for an
+	 * acknowledgement.
+	 *
+	 * @param windowSize the window size - 1 for stop-and-wait
+	 */
+	public void setWindowSize(int windowSize) {
+		if(windowSize <= 0) {
+			throw new IllegalArgumentException("window size is invalid: " + windowSize);
+		}
+		this.windowSize = windowSize;
+	}
+
+	/**
+	 * Gets the packed chunk load command.
+	 *
+	 * @return the command, or 0 if the target has no packed load command
+	 */
+	public int getPackedLoadCmd() {
+		return packedLoadCmd;
+	}
+
+	/**
+	 * Sets the packed chunk load command. Packed loads are acknowledged with the
+	 * same command as plain loads.
+	 *
+	 * @param packedLoadCmd the command, or 0 if the target has no packed load command
+	 */
+	public void setPackedLoadCmd(int packedLoadCmd) {
+		this.packedLoadCmd = packedLoadCmd;
+	}
+
+	/**
+	 * Checks if packed loads should be negotiated with the bootloader.
+	 *
+	 * @return true if packed loads are used when the bootloader supports them
+	 */
+	public boolean isPackedEnabled() {
+		return packedEnabled && packedLoadCmd != 0;
+	}
+
+	/**
+	 * Sets if packed loads should be negotiated with the bootloader. Older
+	 * bootloaders do not answer the capability query and get plain loads.
+	 *
+	 * @param packedEnabled true to use packed loads when the bootloader supports them
+	 */
+	public void setPackedEnabled(boolean packedEnabled) {
+		this.packedEnabled = packedEnabled;
+	}
+
+	/**
+	 * Gets the compressed chunk load command.
+	 *
+	 * @return the command, or 0 if the target has no compressed load command
+	 */
+	public int getRleLoadCmd() {
+		return rleLoadCmd;
+	}
+
+	/**
+	 * Sets the compressed chunk load command. Compressed loads are acknowledged
+	 * with the same command as plain loads.
+	 *
+	 * @param rleLoadCmd the command, or 0 if the target has no compressed load command
+	 */
+	public void setRleLoadCmd(int rleLoadCmd) {
+		this.rleLoadCmd = rleLoadCmd;
+	}
+
+	/**
+	 * Checks if compressed loads should be negotiated with the bootloader.
+	 *
+	 * @return true if compressed loads are used when the bootloader supports them
+	 */
+	public boolean isRleEnabled() {
+		return rleEnabled && rleLoadCmd != 0;
+	}
+
+	/**
+	 * Sets if compressed loads should be negotiated with the bootloader.
+	 *
+	 * @param rleEnabled true to use compressed loads when the bootloader supports them
+	 */
+	public void setRleEnabled(boolean rleEnabled) {
+		this.rleEnabled = rleEnabled;
+	}
+}
@@ -0,0 +1,268 @@
+package com.kilpatrickaudio.kaUpdate.moduleUpdate;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.BitSet;
+
+import org.apache.log4j.Logger;
+
+/**
+ * This class records which chunks of a transfer have been acknowledged so an
+ * interrupted update can resume where it stopped. The journal is a small memory
+ * mapped file per unit and target holding a hash of the chunk plan and a bit per
+ * chunk. Setting a bit is a single store into the mapping, which survives the
+ * application dying. The mapping is forced to disk every few acknowledgements.
+ *
+ * A journal is only resumed if the target and the plan hash match, so a
+ * different image, chunk layout or delta plan always starts over. The plan can't
+ * tell two units of the same type apart, so a journal is only resumed when a
+ * serial number identifies the unit or the operator asks for a resume. Otherwise
+ * an old journal is removed and the transfer starts over. The journal is removed
+ * once the transfer completes.
+ *
+ * Journals write to the user's home directory so they are off unless enabled:
+ * - kaupdate.journal: true to enable journals (default: false)
+ * - kaupdate.journal.resume: true to resume the journal of a unit keyed by its
+ *   port, when the same unit is still connected (default: false)
+ * - kaupdate.journal.dir: the journal directory (default: ~/.kaupdate/journal)
+ *
+ * @author andrew
+ *
+ */
+public class TransferJournal implements ChunkTransfer.AckListener {
+	static final String SUFFIX = ".kaj";
+	static final int MAGIC = 0x4b414a31;  // KAJ1
+	static final int HASH_LEN = 32;
+	static final int TARGET_LEN = 16;
+	static final int COUNT_POS = 4;
+	static final int HASH_POS = 8;
+	static final int TARGET_POS = HASH_POS + HASH_LEN;
+	static final int BITS_POS = TARGET_POS + TARGET_LEN;
+	static final int FORCE_INTERVAL = 16;  // acks between writes to disk
+	Logger logger;
+	File file;
+	MappedByteBuffer map;
+	int chunkCount;
+	boolean resumed;
+	int acksSinceForce = 0;
+
+	/**
+	 * Opens a journal, creating a new one if there is no matching journal.
+	 *
+	 * @param file the journal file
+	 * @param target the target name
+	 * @param hash the plan hash from hashPlan()
+	 * @param chunkCount the number of chunks in the plan
+	 * @throws IOException if the journal file cannot be mapped
+	 */
+	public TransferJournal(File file, String target, byte hash[], int chunkCount) throws IOException {
+		logger = Logger.getLogger(this.getClass());
+		this.file = file;
+		this.chunkCount = chunkCount;
+		int size = BITS_POS + (chunkCount + 7) / 8;
+		byte targetBytes[] = Arrays.copyOf(target.getBytes("US-ASCII"), TARGET_LEN);
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			boolean sized = raf.length() == size;
+			map = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+			resumed = sized && map.getInt(0) == MAGIC && map.getInt(COUNT_POS) == chunkCount &&
+					matches(HASH_POS, hash) && matches(TARGET_POS, targetBytes);
+		} finally {
+			raf.close();  // the mapping stays valid
+		}
+		if(!resumed) {
+			for(int i = 0; i < size; i ++) {
+				map.put(i, (byte)0);
+			}
+			map.putInt(COUNT_POS, chunkCount);
+			for(int i = 0; i < HASH_LEN; i ++) {
+				map.put(HASH_POS + i, hash[i]);
+			}
+			for(int i = 0; i < TARGET_LEN; i ++) {
+				map.put(TARGET_POS + i, targetBytes[i]);
+			}
+			// the magic goes last so a half written header is never trusted
+			map.force();
+			map.putInt(0, MAGIC);
+			map.force();
+		}
+	}
+
+	/**
+	 * Opens the journal for a unit if journals are enabled. An old journal is only
+	 * resumed if isResumeAllowed() is true for the unit.
+	 *
+	 * @param unitKey the unit key from FlashLedger.getUnitKey()
+	 * @param target the target name
+	 * @param plan the chunk plan
+	 * @return the journal, or null if journals are disabled or it could not be opened
+	 */
+	public static TransferJournal open(String unitKey, String target, ChunkPlan plan) {
+		if(!Boolean.parseBoolean(System.getProperty("kaupdate.journal", "false"))) {
+			return null;
+		}
+		File dir = getJournalDir();
+		if(!dir.isDirectory() && !dir.mkdirs()) {
+			Logger.getLogger(TransferJournal.class).warn("could not create journal dir: " + dir.getAbsolutePath());
+			return null;
+		}
+		File file = getJournalFile(unitKey, target);
+		if(!isResumeAllowed(unitKey) && file.exists() && !file.delete()) {
+			Logger.getLogger(TransferJournal.class).warn("could not remove old journal - not journaling: " + file.getName());
+			return null;
+		}
+		try {
+			return new TransferJournal(file, target, hashPlan(plan), plan.getChunkCount());
+		} catch (IOException e) {
+			Logger.getLogger(TransferJournal.class).warn("could not open journal: " + e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Checks if a journal can be resumed for a unit. A unit keyed by its port
+	 * could be a different unit of the same type plugged in since the journal was
+	 * written, so it is only resumed if kaupdate.journal.resume is set.
+	 *
+	 * @param unitKey the unit key from FlashLedger.getUnitKey()
+	 * @return true if the unit key identifies the unit or a resume was asked for
+	 */
+	public static boolean isResumeAllowed(String unitKey) {
+		return FlashLedger.isSerialKey(unitKey) ||
+				Boolean.parseBoolean(System.getProperty("kaupdate.journal.resume", "false"));
+	}
+
+	/**
+	 * Removes any journal for a unit. This is used by targets that must start over.
+	 *
+	 * @param unitKey the unit key from FlashLedger.getUnitKey()
+	 * @param target the target name
+	 */
+	public static void discard(String unitKey, String target) {
+		File file = getJournalFile(unitKey, target);
+		if(file.exists() && !file.delete()) {
+			Logger.getLogger(TransferJournal.class).warn("could not remove journal: " + file.getName());
+		}
+	}
+
+	/**
+	 * Gets the journal directory.
+	 *
+	 * @return the directory
+	 */
+	static File getJournalDir() {
+		return new File(System.getProperty("kaupdate.journal.dir",
+				System.getProperty("user.home") + File.separator + ".kaupdate" + File.separator + "journal"));
+	}
+
+	/**
+	 * Gets the journal file for a unit and target.
+	 *
+	 * @param unitKey the unit key
+	 * @param target the target name
+	 * @return the journal file
+	 */
+	static File getJournalFile(String unitKey, String target) {
+		return new File(getJournalDir(), FlashLedger.getSafeName(unitKey) + "-" + target + SUFFIX);
+	}
+
+	/**
+	 * Hashes a chunk plan. The hash covers the address, length and data of every
+	 * chunk so any change to what would be sent gives a different hash.
+	 *
+	 * @param plan the chunk plan
+	 * @return the SHA-256 hash
+	 */
+	public static byte[] hashPlan(ChunkPlan plan) {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		ByteBuffer header = ByteBuffer.allocate(8);
+		for(int i = 0; i < plan.getChunkCount(); i ++) {
+			header.clear();
+			header.putInt(plan.getChunkAddr(i));
+			header.putInt(plan.getChunkLength(i));
+			header.flip();
+			digest.update(header);
+			digest.update(plan.getChunkBuffer(i));
+		}
+		return digest.digest();
+	}
+
+	/**
+	 * Checks if the journal was resumed from an earlier transfer.
+	 *
+	 * @return true if the acknowledged chunks were kept
+	 */
+	public boolean isResumed() {
+		return resumed;
+	}
+
+	/**
+	 * Gets the acknowledged chunks.
+	 *
+	 * @return the indexes of acknowledged chunks
+	 */
+	public synchronized BitSet getAcked() {
+		BitSet acked = new BitSet(chunkCount);
+		for(int i = 0; i < chunkCount; i ++) {
+			if((map.get(BITS_POS + i / 8) & (1 << (i % 8))) != 0) {
+				acked.set(i);
+			}
+		}
+		return acked;
+	}
+
+	/**
+	 * Records an acknowledged chunk.
+	 *
+	 * @param index the chunk index in the plan
+	 */
+	@Override
+	public synchronized void chunkAcknowledged(int index) {
+		int pos = BITS_POS + index / 8;
+		map.put(pos, (byte)(map.get(pos) | (1 << (index % 8))));
+		if(++ acksSinceForce >= FORCE_INTERVAL) {
+			map.force();
+			acksSinceForce = 0;
+		}
+	}
+
+	/**
+	 * Removes the journal once the transfer is complete. The header is cleared
+	 * first in case the file cannot be deleted while it is still mapped.
+	 */
+	public synchronized void complete() {
+		map.putInt(0, 0);
+		map.force();
+		if(!file.delete()) {
+			logger.debug("journal is cleared but could not be removed: " + file.getName());
+		}
+	}
+
+	/**
+	 * Compares bytes in the journal.
+	 *
+	 * @param pos the position in the journal
+	 * @param data the expected bytes
+	 * @return true if they match
+	 */
+	boolean matches(int pos, byte data[]) {
+		for(int i = 0; i < data.length; i ++) {
+			if(map.get(pos + i) != data[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
@@ -1,18 +1,25 @@
 package com.kilpatrickaudio.kaUpdate.moduleUpdatePIC18;
 
-import java.io.File;
-import java.util.Iterator;
-import java.util.LinkedHashMap;
+import java.util.BitSet;
 
 import javax.sound.midi.InvalidMidiDataException;
 import javax.sound.midi.MidiUnavailableException;
 
 import com.kilpatrickaudio.kaUpdate.main.ProgressIndicator;
 import com.kilpatrickaudio.kaUpdate.midi.MIDIHandler;
-import com.kilpatrickaudio.kaUpdate.moduleUpdate.FlashChunk;
-import com.kilpatrickaudio.kaUpdate.moduleUpdate.HexParser;
+import com.kilpatrickaudio.kaUpdate.moduleUpdate.BootloaderProtocol;
+import com.kilpatrickaudio.kaUpdate.moduleUpdate.ChunkPlan;
+import com.kilpatrickaudio.kaUpdate.moduleUpdate.ChunkTransfer;
+import com.kilpatrickaudio.kaUpdate.moduleUpdate.FirmwareSource;
+import com.kilpatrickaudio.kaUpdate.moduleUpdate.FlashImage;
+import com.kilpatrickaudio.kaUpdate.moduleUpdate.FlashImageLoader;
+import com.kilpatrickaudio.kaUpdate.moduleUpdate.FlashLedger;
 import com.kilpatrickaudio.kaUpdate.moduleUpdate.ModuleUpdateException;
 import com.kilpatrickaudio.kaUpdate.moduleUpdate.ModuleUpdater;
+import com.kilpatrickaudio.kaUpdate.moduleUpdate.SysexDecoder;
+import com.kilpatrickaudio.kaUpdate.moduleUpdate.SysexEncoder;
+import com.kilpatrickaudio.kaUpdate.moduleUpdate.TargetProfile;
+import com.kilpatrickaudio.kaUpdate.moduleUpdate.TransferJournal;
 
 import org.apache.log4j.Logger;
 
@@ -30,14 +37,33 @@ public class ModuleUpdatePIC18 implements ModuleUpdater {
 	String outDevName;
 	String hexFilename;
 	int devID;
+	TargetProfile profile;
+	FlashImage image = null;  // preloaded image shared with other updates
+	boolean online = false;  // the ports are open and the device is in its bootloader
+	static final int BIN_BASE_ADDR = 0x800;  // load address for raw binary files
 	
+	/**
+	 * Checks that an image can be loaded by the PIC18 bootloader, which lives at
+	 * the bottom of flash.
+	 * 
+	 * @param image the flash image
+	 * @throws ModuleUpdateException if the image would overwrite the bootloader
+	 */
+	public static void checkImage(FlashImage image) throws ModuleUpdateException {
+		for(int i = 0; i < image.getPageCount(); i ++) {
+			if(image.getPageAddr(i) == 0x00) {
+				throw new ModuleUpdateException("application code starts at 0x0000! - cannot program");
+			}
+		}
+	}
+
 	/**
 	 * Updates a PIC18 module.
 	 * 
 	 * @param midi the MIDI subsystem
 	 * @param inDev the MIDI input port dev number
 	 * @param outDev the MIDI output port dev number
-	 * @param hexFilename the hex filename
+	 * @param hexFilename the hex filename - zip archive entries are named as archive!entry
 	 * @param devID the device ID to use for restart command
 	 */
 	public ModuleUpdatePIC18(MIDIHandler midi, String inDevName, String outDevName, String hexFilename, int devID) {
@@ -47,6 +73,37 @@ public class ModuleUpdatePIC18 implements ModuleUpdater {
 		this.outDevName = outDevName;
 		this.hexFilename = hexFilename;
 		this.devID = devID;
+		profile = TargetProfile.getPIC18();
+	}
+
+	/**
+	 * Sets the target profile used to plan and send chunks.
+	 * 
+	 * @param profile the target profile
+	 */
+	public void setTargetProfile(TargetProfile profile) {
+		this.profile = profile;
+	}
+
+	/**
+	 * Sets an image that is already loaded so the update file is not read again.
+	 * The image is only read so it can be shared by updates running in parallel.
+	 * 
+	 * @param image the flash image with a 64 byte page size, or null to load the update file
+	 */
+	public void setFlashImage(FlashImage image) {
+		this.image = image;
+	}
+
+	/**
+	 * Sets whether the MIDI ports of the handler are already open and the device
+	 * was already reset into its bootloader, such as by a probe. The update then
+	 * starts without another reset.
+	 * 
+	 * @param online true if the device is already online
+	 */
+	public void setOnline(boolean online) {
+		this.online = online;
 	}
 
 	/**
@@ -58,39 +115,113 @@ public class ModuleUpdatePIC18 implements ModuleUpdater {
 	public void updateModule(ProgressIndicator pi) throws ModuleUpdateException {
 		pi.setPercentComplete(0);
 		
+		FlashImage image = this.image;
+		if(image == null) {
+			image = loadImage(hexFilename);
+		}
+		int chunksTotal = image.getPageCount();
+		logger.info("chunks - total: " + chunksTotal);
+		checkImage(image);
+		
+		// delta flashing - only send the chunks that differ from the last image flashed to the unit
+		FlashLedger ledger = FlashLedger.getDefault();
+		String unitKey = FlashLedger.getUnitKey(devID, outDevName);
+		FlashImage flashed = null;  // the contents of the unit once the update completes
+		ChunkPlan plan;
+		if(ledger != null) {
+			FlashImage previous = FlashLedger.isFullSendForced() ? null : ledger.get(unitKey, 64);
+			flashed = new FlashImage(64);
+			if(previous == null) {
+				logger.info("no flash ledger entry for unit: " + unitKey + " - sending full image");
+				plan = new ChunkPlan(image, profile);
+			}
+			else {
+				plan = new ChunkPlan(image, profile, previous);
+				logger.info("delta update for unit: " + unitKey + " - unchanged chunks: " + 
+						plan.getSkippedCount() + " - saved: " + plan.getSkippedWireBytes() + " bytes");
+				for(int i = 0; i < previous.getPageCount(); i ++) {
+					flashed.write(previous.getPageAddr(i), previous.getPageBuffer(i));
+				}
+			}
+			// the unit contents are unknown until the update completes
+			if(!ledger.invalidate(unitKey)) {
+				throw new ModuleUpdateException("could not remove flash ledger entry for unit: " + unitKey);
+			}
+		}
+		else {
+			plan = new ChunkPlan(image, profile);
+		}
+		chunksTotal = plan.getChunkCount();
+		if(plan.getOutOfRangeCount() > 0) {
+			logger.warn("pages out of range (probably config data) - skipping: " + plan.getOutOfRangeCount());
+		}
+		
+		// program the chunks over MIDI
+		if(online) {
+			logger.info("device already online");
+		}
+		else {
+			resetDevice();
+		}
+
+		// resume an interrupted update - flash is not erased so loaded chunks are still there
+		TransferJournal journal = TransferJournal.open(unitKey, profile.getName(), plan);
+		BitSet done = null;
+		if(journal != null && journal.isResumed()) {
+			done = journal.getAcked();
+			logger.info("resuming interrupted update - chunks already loaded: " + done.cardinality());
+		}
+
+		// load each chunk
+		ChunkTransfer transfer = new ChunkTransfer(midi, profile);
+		transfer.setAckListener(journal);
+		transfer.run(plan, pi, done);
+		if(journal != null) {
+			journal.complete();
+		}
+		if(flashed != null) {
+			for(int chunkNum = 0; chunkNum < chunksTotal; chunkNum ++) {
+				flashed.write(plan.getChunkAddr(chunkNum), plan.getChunkBuffer(chunkNum));
+			}
+		}
+		midi.closeMIDIPorts();
+		if(ledger != null) {
+			ledger.put(unitKey, flashed);
+		}
+		logger.info("update complete.");
+	}
+
+	/**
+	 * Loads the image from an update file.
+	 * 
+	 * @param hexFilename the update filename - zip archive entries are named as archive!entry
+	 * @return the flash image with a 64 byte page size
+	 * @throws ModuleUpdateException if the file can't be read or parsed
+	 */
+	public static FlashImage loadImage(String hexFilename) throws ModuleUpdateException {
 		// open and parse the HEX file
-		File hexFile = new File(hexFilename);
+		FirmwareSource hexFile = FirmwareSource.fromFilename(hexFilename);
 		if(hexFile.canRead()) {
-			logger.info("hex file: " + hexFile.getAbsolutePath());
+			Logger.getLogger(ModuleUpdatePIC18.class).info("hex file: " + hexFile);
 		}
 		else {
-			throw new ModuleUpdateException("hex file is not readable: " + hexFile.getAbsolutePath());
+			throw new ModuleUpdateException("hex file is not readable: " + hexFile);
 		}
-		int prog[] = HexParser.parseHexRecords(hexFile);
-		if(prog == null) {
+		// parse the data into chunks
+		FlashImage image = FlashImageLoader.load(hexFile, FlashImageLoader.getFormat(hexFile.getName()), 64,
+				FlashImageLoader.getBinBaseAddr(BIN_BASE_ADDR));
+		if(image == null) {
 			throw new ModuleUpdateException("hex file parse error");
 		}
+		return image;
+	}
 
-		// convert the data into chunks
-		LinkedHashMap<Integer,FlashChunk> flashMap = HexParser.creatChunkyData(prog, 64);
-		int chunksTotal = flashMap.size();
-		int chunksCompleted = 0;
-		logger.info("chunks - total: " + chunksTotal);
-		// check chunk addresses
-		Iterator<Integer> iter = flashMap.keySet().iterator();
-		int chunkCount = 0;
-		while(iter.hasNext()) {
-			Integer key = iter.next();
-			FlashChunk chunk = flashMap.get(key);
-			int addr = chunk.getStartAddr();
-			if(addr == 0x00) {
-				throw new ModuleUpdateException("application code starts at 0x0000! - cannot program");
-			}
-			logger.debug("chunk " + chunkCount + " - addr: " + Integer.toHexString(addr));
-			chunkCount ++;
-		}
-		
-		// program the chunks over MIDI
+	/**
+	 * Opens the MIDI ports and resets the device into its bootloader.
+	 * 
+	 * @throws ModuleUpdateException if the device did not come online
+	 */
+	void resetDevice() throws ModuleUpdateException {
 		try {
 			midi.openMIDIPorts(inDevName, outDevName);
 		} catch (MidiUnavailableException e1) {
@@ -98,120 +229,32 @@ public class ModuleUpdatePIC18 implements ModuleUpdater {
 		}
 		
 		logger.info("sending reset packet to device");
-		int resetBuf[] = new int[11];
-		resetBuf[0] = 0xf0;
-		resetBuf[1] = 0x00;
-		resetBuf[2] = 0x01;
-		resetBuf[3] = 0x72;
-		resetBuf[4] = 0x7e;
-		resetBuf[5] = devID;
-		resetBuf[6] = 0x4b;
-		resetBuf[7] = 0x49;
-		resetBuf[8] = 0x4c;
-		resetBuf[9] = 0x4c;
-		resetBuf[10] = 0xf7;
+		SysexEncoder encoder = new SysexEncoder(BootloaderProtocol.RESET_LEN);
+		SysexDecoder decoder = new SysexDecoder();
+		encoder.encodeReset(devID);
 		try {
-			midi.sendSysexMessage(resetBuf, resetBuf.length);
+			midi.sendSysex(encoder.getBuffer(), encoder.getLength());
 		} catch (InvalidMidiDataException e1) {
 			throw new ModuleUpdateException(e1.getMessage());			
 		}
 		
 		logger.info("waiting for device to come online...");		
-		try {
-			int waitCount = 0;
-			int retMsg[];
-			while((retMsg = midi.waitForSysexMessage(1000)) == null) {
-				if(waitCount > 10) {
-					throw new ModuleUpdateException("device did not come online");
-				}
-				waitCount ++;
-			}
-			if(retMsg.length != 6) {
-				throw new ModuleUpdateException("device alive message was incorrect length: " + retMsg.length);
+		int waitCount = 0;
+		while(decoder.wrap(midi.waitForSysex(1000)).getLength() == 0) {
+			if(waitCount > 10) {
+				throw new ModuleUpdateException("device did not come online");
 			}
-			if(retMsg[0] == 0xf0 && retMsg[1] == 0x00 && retMsg[2] == 0x01 &&
-					retMsg[3] == 0x72 && retMsg[4] == 0x7f && retMsg[5] == 0xf7) {
-				logger.debug("device alive msg is correct");
-			}
-			else {
-				throw new ModuleUpdateException("device online message is incorrect");
-			}
-		} catch (InvalidMidiDataException e) {
-			throw new ModuleUpdateException(e.getMessage());
+			waitCount ++;
 		}
-		logger.info("device detected");
-
-		// load each chunk
-		logger.info("loading chunks: " + flashMap.size() + " total");
-		iter = flashMap.keySet().iterator();
-		while(iter.hasNext()) {
-			Integer key = iter.next();
-			FlashChunk chunk = flashMap.get(key);
-			int addr = chunk.getStartAddr();
-			if(addr < 0x800 || addr > 0x7fff) {
-				logger.warn("address out of range (probably config data) - skipping...");
-				continue;
-			}
-			logger.info("loading chunk addr: 0x" + Integer.toHexString(addr) + " -> to device");
-			int data[] = chunk.getData();
-			
-			// format data and address for sending over MIDI (4 bits per word)
-			int sendData[] = new int[(4 + 64) * 2];
-			int sendLen = 0;
-			sendData[sendLen ++] = (addr >> 28) & 0x0f;
-			sendData[sendLen ++] = (addr >> 24) & 0x0f;
-			sendData[sendLen ++] = (addr >> 20) & 0x0f;
-			sendData[sendLen ++] = (addr >> 16) & 0x0f;
-			sendData[sendLen ++] = (addr >> 12) & 0x0f;
-			sendData[sendLen ++] = (addr >> 8) & 0x0f;
-			sendData[sendLen ++] = (addr >> 4) & 0x0f;
-			sendData[sendLen ++] = addr & 0x0f;
-			for(int i = 0; i < data.length; i ++) {
-				sendData[sendLen ++] = (data[i] >> 4) & 0x0f;
-				sendData[sendLen ++] = data[i] & 0x0f;
-			}
-			// create and send the MIDI message
-			int msg[] = new int[sendData.length + 6];
-			int msgLen = 0;
-			msg[msgLen ++] = 0xf0;
-			msg[msgLen ++] = 0x00;
-			msg[msgLen ++] = 0x01;
-			msg[msgLen ++] = 0x72;
-			msg[msgLen ++] = 0x04;
-			for(int i = 0; i < sendData.length; i ++) {
-				msg[msgLen ++] = sendData[i];
-			}
-			msg[msgLen ++] = 0xf7;	
-			int retData[] = null;
-			try {
-				retData = midi.sendSysexMessageRxResponse(msg, msgLen, 1000);
-			} catch (InvalidMidiDataException e) {
-				throw new ModuleUpdateException(e.getMessage());
-			}
-			int chksum = 0;
-			for(int i = 0; i < data.length; i ++) {
-				chksum += data[i];
-			}
-			chksum = (chksum & 0x7f);
-			if(retData != null && retData[4] == 0x05) {
-				if(retData[5] != chksum) {
-					throw new ModuleUpdateException("flashed chunk addr: 0x" + 
-							Integer.toHexString(addr) + 
-							" BAD CHECKSUM: " + Integer.toHexString(retData[5]) + 
-							" vs. " + Integer.toHexString(chksum) + " - FAILED!");
-				}
-				else {
-					logger.info("flashed chunk addr: 0x" + 
-							Integer.toHexString(addr) + " CHECKSUM OK");
-					chunksCompleted ++;
-					pi.setPercentComplete((int)((double)chunksCompleted / (double)chunksTotal * 100));
-				}
-			}
-			else {
-				throw new ModuleUpdateException("flashed chunk addr: 0x" + Integer.toHexString(addr) + " NO RESPONSE - FAILED!");
-			}
+		if(decoder.getLength() != BootloaderProtocol.COMMAND_LEN) {
+			throw new ModuleUpdateException("device alive message was incorrect length: " + decoder.getLength());
 		}
-		midi.closeMIDIPorts();
-		logger.info("update complete.");
+		if(decoder.isCommand(BootloaderProtocol.CMD_ALIVE)) {
+			logger.debug("device alive msg is correct");
+		}
+		else {
+			throw new ModuleUpdateException("device online message is incorrect");
+		}
+		logger.info("device detected");
 	}
 }
@@ -1,18 +1,23 @@
 package com.kilpatrickaudio.kaUpdate.moduleUpdatePIC32;
 
-import java.io.File;
-import java.util.Iterator;
-import java.util.LinkedHashMap;
-
 import javax.sound.midi.InvalidMidiDataException;
 import javax.sound.midi.MidiUnavailableException;
 
 import com.kilpatrickaudio.kaUpdate.main.ProgressIndicator;
 import com.kilpatrickaudio.kaUpdate.midi.MIDIHandler;
-import com.kilpatrickaudio.kaUpdate.moduleUpdate.FlashChunk;
-import com.kilpatrickaudio.kaUpdate.moduleUpdate.HexParser;
+import com.kilpatrickaudio.kaUpdate.moduleUpdate.BootloaderProtocol;
+import com.kilpatrickaudio.kaUpdate.moduleUpdate.ChunkPlan;
+import com.kilpatrickaudio.kaUpdate.moduleUpdate.ChunkTransfer;
+import com.kilpatrickaudio.kaUpdate.moduleUpdate.FirmwareSource;
+import com.kilpatrickaudio.kaUpdate.moduleUpdate.FlashImage;
+import com.kilpatrickaudio.kaUpdate.moduleUpdate.FlashImageLoader;
+import com.kilpatrickaudio.kaUpdate.moduleUpdate.FlashLedger;
 import com.kilpatrickaudio.kaUpdate.moduleUpdate.ModuleUpdateException;
 import com.kilpatrickaudio.kaUpdate.moduleUpdate.ModuleUpdater;
+import com.kilpatrickaudio.kaUpdate.moduleUpdate.SysexDecoder;
+import com.kilpatrickaudio.kaUpdate.moduleUpdate.SysexEncoder;
+import com.kilpatrickaudio.kaUpdate.moduleUpdate.TargetProfile;
+import com.kilpatrickaudio.kaUpdate.moduleUpdate.TransferJournal;
 
 import org.apache.log4j.Logger;
 
@@ -30,6 +35,10 @@ public class ModuleUpdatePIC32 implements ModuleUpdater {
 	String outDevName;
 	String hexFilename;
 	int devID;
+	TargetProfile profile;
+	FlashImage image = null;  // preloaded image shared with other updates
+	boolean online = false;  // the ports are open and the device is in its bootloader
+	static final int BIN_BASE_ADDR = 0x1d000000;  // load address for raw binary files
 
 	/**
 	 * Creates an object to update a PIC32 device.
@@ -37,7 +46,7 @@ public class ModuleUpdatePIC32 implements ModuleUpdater {
 	 * @param midi the MIDI subsystem
 	 * @param inDev the MIDI input port dev number
 	 * @param outDev the MIDI output port dev number
-	 * @param hexFilename the hex filename
+	 * @param hexFilename the hex filename - zip archive entries are named as archive!entry
 	 * @param devID the device ID to use for restart command
 	 */
 	public ModuleUpdatePIC32(MIDIHandler midi, String inDevName, String outDevName, String hexFilename, int devID) {
@@ -47,6 +56,37 @@ public class ModuleUpdatePIC32 implements ModuleUpdater {
 		this.outDevName = outDevName;
 		this.hexFilename = hexFilename;
 		this.devID = devID;
+		profile = TargetProfile.getPIC32();
+	}
+
+	/**
+	 * Sets the target profile used to plan and send chunks.
+	 * 
+	 * @param profile the target profile
+	 */
+	public void setTargetProfile(TargetProfile profile) {
+		this.profile = profile;
+	}
+
+	/**
+	 * Sets an image that is already loaded so the update file is not read again.
+	 * The image is only read so it can be shared by updates running in parallel.
+	 * 
+	 * @param image the flash image with a 64 byte page size, or null to load the update file
+	 */
+	public void setFlashImage(FlashImage image) {
+		this.image = image;
+	}
+
+	/**
+	 * Sets whether the MIDI ports of the handler are already open and the device
+	 * was already reset into its bootloader, such as by a probe. The update then
+	 * starts without another reset.
+	 * 
+	 * @param online true if the device is already online
+	 */
+	public void setOnline(boolean online) {
+		this.online = online;
 	}
 	
 	
@@ -59,127 +99,59 @@ public class ModuleUpdatePIC32 implements ModuleUpdater {
 	public void updateModule(ProgressIndicator pi) throws ModuleUpdateException {
 		pi.setPercentComplete(0);
 		
-		// open and parse the HEX file
-		File hexFile = new File(hexFilename);
-		if(hexFile.canRead()) {
-			logger.info("hex file: " + hexFile.getAbsolutePath());
-		}
-		else {
-			throw new ModuleUpdateException("hex file is not readable: " + hexFile.getAbsolutePath());
-		}
-		int prog[] = HexParser.parseHexRecords(hexFile);
-		if(prog == null) {
-			throw new ModuleUpdateException("hex file parse error");
+		FlashImage image = this.image;
+		if(image == null) {
+			image = loadImage(hexFilename);
 		}
-		
-		// convert the data into chunks
-		LinkedHashMap<Integer,FlashChunk> flashMap = HexParser.creatChunkyData(prog, 64);
-		int chunksTotal = flashMap.size();
-		int chunksCompleted = 0;
+		int chunksTotal = image.getPageCount();
 		logger.info("chunks - total: " + chunksTotal);
 		// check chunk addresses
-		Iterator<Integer> iter = flashMap.keySet().iterator();
-		int chunkCount = 0;
-		while(iter.hasNext()) {
-			Integer key = iter.next();
-			FlashChunk chunk = flashMap.get(key);
-			int addr = chunk.getStartAddr();
+		for(int chunkCount = 0; chunkCount < chunksTotal; chunkCount ++) {
+			int addr = image.getPageAddr(chunkCount);
 			logger.debug("chunk " + chunkCount + " - addr: " + Integer.toHexString(addr));
-			chunkCount ++;
-		}	
-		
-		// program the chunks over MIDI
-		try {
-			midi.openMIDIPorts(inDevName, outDevName);
-		} catch (MidiUnavailableException e1) {
-			throw new ModuleUpdateException(e1.getMessage());
 		}
 		
-		logger.info("sending reset packet to device");
-		int resetBuf[] = new int[11];
-		resetBuf[0] = 0xf0;
-		resetBuf[1] = 0x00;
-		resetBuf[2] = 0x01;
-		resetBuf[3] = 0x72;
-		resetBuf[4] = 0x7e;
-		resetBuf[5] = devID;
-		resetBuf[6] = 0x4b;
-		resetBuf[7] = 0x49;
-		resetBuf[8] = 0x4c;
-		resetBuf[9] = 0x4c;
-		resetBuf[10] = 0xf7;
-		try {
-			midi.sendSysexMessage(resetBuf, resetBuf.length);
-		} catch (InvalidMidiDataException e1) {
-			throw new ModuleUpdateException(e1.getMessage());			
+		// program the chunks over MIDI
+		if(online) {
+			logger.info("device already online");
 		}
-		
-		logger.info("waiting for device to come online...");
-		try {
-			int waitCount = 0;
-			int retMsg[];
-			while((retMsg = midi.waitForSysexMessage(1000)) == null) {
-				if(waitCount > 10) {
-					throw new ModuleUpdateException("device did not come online");
-				}
-				waitCount ++;
-			}
-			if(retMsg.length != 6) {
-				throw new ModuleUpdateException("device alive message was incorrect length: " + retMsg.length);
-			}
-			if(retMsg[0] == 0xf0 && retMsg[1] == 0x00 && retMsg[2] == 0x01 &&
-					retMsg[3] == 0x72 && retMsg[4] == 0x7f && retMsg[5] == 0xf7) {
-				logger.debug("device alive msg is correct");
-			}
-			else {
-				throw new ModuleUpdateException("device online message is incorrect");
-			}
-		} catch (InvalidMidiDataException e) {
-			throw new ModuleUpdateException(e.getMessage());
+		else {
+			resetDevice();
 		}
-		logger.info("device detected");
 
+		// progmem is blanked so an interrupted update always starts over
+		TransferJournal.discard(FlashLedger.getUnitKey(devID, outDevName), profile.getName());
 		logger.info("sending program memory blanking command");
-		int blankBuf[] = new int[6];
-		blankBuf[0] = 0xf0;
-		blankBuf[1] = 0x00;
-		blankBuf[2] = 0x01;
-		blankBuf[3] = 0x72;
-		blankBuf[4] = 0x08;
-		blankBuf[5] = 0xf7;
+		SysexEncoder encoder = new SysexEncoder(BootloaderProtocol.RESET_LEN);
+		SysexDecoder decoder = new SysexDecoder();
+		encoder.encodeCommand(BootloaderProtocol.CMD_BLANK);
 		try {
-			midi.sendSysexMessage(blankBuf, blankBuf.length);
+			midi.sendSysex(encoder.getBuffer(), encoder.getLength());
 		} catch (InvalidMidiDataException e1) {
 			throw new ModuleUpdateException(e1.getMessage());			
 		}
 		
 		logger.info("waiting for device to blank progmem...");
 		long blankTime = System.currentTimeMillis();
-		try {
-			int waitCount = 0;
-			int retMsg[];
-			while((retMsg = midi.waitForSysexMessage(1000)) == null) {
-				if(waitCount > 10) {
-					throw new ModuleUpdateException("device did not respond");
-				}
-				waitCount ++;
-			}
-			if(retMsg.length != 6) {
-				throw new ModuleUpdateException("blanked msg was incorrect length: " + retMsg.length);
+		int waitCount = 0;
+		while(decoder.wrap(midi.waitForSysex(1000)).getLength() == 0) {
+			if(waitCount > 10) {
+				throw new ModuleUpdateException("device did not respond");
 			}
-			if(retMsg[0] == 0xf0 && retMsg[1] == 0x00 && retMsg[2] == 0x01 &&
-					retMsg[3] == 0x72 && retMsg[4] == 0x09 && retMsg[5] == 0xf7) {
-				logger.debug("blanked msg is correct");				
+			waitCount ++;
+		}
+		if(decoder.getLength() != BootloaderProtocol.COMMAND_LEN) {
+			throw new ModuleUpdateException("blanked msg was incorrect length: " + decoder.getLength());
+		}
+		if(decoder.isCommand(BootloaderProtocol.CMD_BLANK_OK)) {
+			logger.debug("blanked msg is correct");				
+		}
+		else {
+			for(int i = 0; i < decoder.getLength(); i ++) {					
+				logger.debug("retMsg[" + i + "]: " + Integer.toHexString(decoder.get(i)));
 			}
-			else {
-				for(int i = 0; i < retMsg.length; i ++) {					
-					logger.debug("retMsg[" + i + "]: " + Integer.toHexString((retMsg[i] & 0xff)));
-				}
 
-				throw new ModuleUpdateException("blanked msg is incorrect");
-			}
-		} catch (InvalidMidiDataException e) {
-			throw new ModuleUpdateException(e.getMessage());
+			throw new ModuleUpdateException("blanked msg is incorrect");
 		}
 		blankTime = System.currentTimeMillis() - blankTime;
 		logger.info("device has blanked progmem - took: " + blankTime + " ms");
@@ -199,90 +171,81 @@ public class ModuleUpdatePIC32 implements ModuleUpdater {
 		}
 		
 		
+		// progmem is blank so erased chunks don't need to be sent
+		ChunkPlan plan = new ChunkPlan(image, profile);
+		logger.info("skipping erased chunks: " + plan.getSkippedCount() +
+				" - saved: " + plan.getSkippedWireBytes() + " bytes");
+		
 		// load each chunk
-		logger.info("loading chunks: " + flashMap.size() + " total");
-		iter = flashMap.keySet().iterator();
-		while(iter.hasNext()) {
-			Integer key = iter.next();
-			FlashChunk chunk = flashMap.get(key);
-			int addr = chunk.getStartAddr();
-			logger.info("loading chunk addr: 0x" + Integer.toHexString(addr) + " -> to device");
-			int data[] = chunk.getData();
-			
-			// format data and address for sending over MIDI (4 bits per word)
-			int sendData[] = new int[(4 + 64) * 2];
-			int sendLen = 0;
-			sendData[sendLen ++] = (addr >> 28) & 0x0f;
-			sendData[sendLen ++] = (addr >> 24) & 0x0f;
-			sendData[sendLen ++] = (addr >> 20) & 0x0f;
-			sendData[sendLen ++] = (addr >> 16) & 0x0f;
-			sendData[sendLen ++] = (addr >> 12) & 0x0f;
-			sendData[sendLen ++] = (addr >> 8) & 0x0f;
-			sendData[sendLen ++] = (addr >> 4) & 0x0f;
-			sendData[sendLen ++] = addr & 0x0f;
-			for(int i = 0; i < data.length; i ++) {
-				sendData[sendLen ++] = (data[i] >> 4) & 0x0f;
-				sendData[sendLen ++] = data[i] & 0x0f;
-			}
-			// create and send the MIDI message
-			int msg[] = new int[sendData.length + 6];
-			int msgLen = 0;
-			msg[msgLen ++] = 0xf0;
-			msg[msgLen ++] = 0x00;
-			msg[msgLen ++] = 0x01;
-			msg[msgLen ++] = 0x72;
-			msg[msgLen ++] = 0x06;
-			for(int i = 0; i < sendData.length; i ++) {
-				msg[msgLen ++] = sendData[i];
-			}
-			msg[msgLen ++] = 0xf7;	
-			
-			int retData[] = null;
-			try {
-				retData = midi.sendSysexMessageRxResponse(msg, msgLen, 1000);
-			} catch (InvalidMidiDataException e) {
-				throw new ModuleUpdateException(e.getMessage());
-			}
-			int chksum = 0;
-			for(int i = 0; i < data.length; i ++) {
-				chksum = (chksum + data[i]) & 0x7f;
-			}
+		new ChunkTransfer(midi, profile).run(plan, pi);
+		midi.closeMIDIPorts();
+		logger.info("update complete.");
+	}
 
-			// no response
-			if(retData == null) {
-				throw new ModuleUpdateException("flashed chunk addr: 0x" + Integer.toHexString(addr) + " NO RESPONSE - FAILED!");
-				
-			}
-			// got the right message type
-			else if(retData[4] == 0x07) {
-				// compare checksum
-				if(retData[5] != chksum) {
-					throw new ModuleUpdateException("flashed chunk addr: 0x" + 
-						Integer.toHexString(addr) + 
-						" BAD CHECKSUM: " + Integer.toHexString(retData[5]) + 
-						" vs. " + Integer.toHexString(chksum) + " - FAILED!");
-				}
-				// checksum OK!
-				else {
-					logger.info("flashed chunk addr: 0x" + 
-							Integer.toHexString(addr) + " CHECKSUM OK");
-					chunksCompleted ++;
-					pi.setPercentComplete((int)((double)chunksCompleted / (double)chunksTotal * 100));
-				}				
-			}
-			// got wrong message type
-			else {
-				// if we got some sort of data print it out
-				if(retData != null && retData.length > 0) {
-					logger.error("rx message:");
-					for(int i = 0; i < retData.length; i ++) {
-						logger.error("rx[" + i + "]: " + Integer.toHexString(retData[i]));
-					}
-				}
-				throw new ModuleUpdateException("flashed chunk addr: 0x" + Integer.toHexString(addr) + " INVALID RESPONSE - FAILED!");
+	/**
+	 * Loads the image from an update file.
+	 * 
+	 * @param hexFilename the update filename - zip archive entries are named as archive!entry
+	 * @return the flash image with a 64 byte page size
+	 * @throws ModuleUpdateException if the file can't be read or parsed
+	 */
+	public static FlashImage loadImage(String hexFilename) throws ModuleUpdateException {
+		// open and parse the HEX file
+		FirmwareSource hexFile = FirmwareSource.fromFilename(hexFilename);
+		if(hexFile.canRead()) {
+			Logger.getLogger(ModuleUpdatePIC32.class).info("hex file: " + hexFile);
+		}
+		else {
+			throw new ModuleUpdateException("hex file is not readable: " + hexFile);
+		}
+		// parse the data into chunks
+		FlashImage image = FlashImageLoader.load(hexFile, FlashImageLoader.getFormat(hexFile.getName()), 64,
+				FlashImageLoader.getBinBaseAddr(BIN_BASE_ADDR));
+		if(image == null) {
+			throw new ModuleUpdateException("hex file parse error");
+		}
+		return image;
+	}
+
+	/**
+	 * Opens the MIDI ports and resets the device into its bootloader.
+	 * 
+	 * @throws ModuleUpdateException if the device did not come online
+	 */
+	void resetDevice() throws ModuleUpdateException {
+		try {
+			midi.openMIDIPorts(inDevName, outDevName);
+		} catch (MidiUnavailableException e1) {
+			throw new ModuleUpdateException(e1.getMessage());
+		}
+		
+		logger.info("sending reset packet to device");
+		SysexEncoder encoder = new SysexEncoder(BootloaderProtocol.RESET_LEN);
+		SysexDecoder decoder = new SysexDecoder();
+		encoder.encodeReset(devID);
+		try {
+			midi.sendSysex(encoder.getBuffer(), encoder.getLength());
+		} catch (InvalidMidiDataException e1) {
+			throw new ModuleUpdateException(e1.getMessage());			
+		}
+		
+		logger.info("waiting for device to come online...");
+		int waitCount = 0;
+		while(decoder.wrap(midi.waitForSysex(1000)).getLength() == 0) {
+			if(waitCount > 10) {
+				throw new ModuleUpdateException("device did not come online");
 			}
+			waitCount ++;
 		}
-		midi.closeMIDIPorts();
-		logger.info("update complete.");
+		if(decoder.getLength() != BootloaderProtocol.COMMAND_LEN) {
+			throw new ModuleUpdateException("device alive message was incorrect length: " + decoder.getLength());
+		}
+		if(decoder.isCommand(BootloaderProtocol.CMD_ALIVE)) {
+			logger.debug("device alive msg is correct");
+		}
+		else {
+			throw new ModuleUpdateException("device online message is incorrect");
+		}
+		logger.info("device detected");
 	}
 }
@@ -0,0 +1,247 @@
+package com.kilpatrickaudio.kaUpdate.station;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MidiUnavailableException;
+
+import com.kilpatrickaudio.kaUpdate.main.ProgressIndicator;
+import com.kilpatrickaudio.kaUpdate.midi.MIDIHandler;
+import com.kilpatrickaudio.kaUpdate.moduleUpdate.BootloaderProtocol;
+import com.kilpatrickaudio.kaUpdate.moduleUpdate.BroadcastTransfer;
+import com.kilpatrickaudio.kaUpdate.moduleUpdate.ChunkPlan;
+import com.kilpatrickaudio.kaUpdate.moduleUpdate.FlashImage;
+import com.kilpatrickaudio.kaUpdate.moduleUpdate.FlashLedger;
+import com.kilpatrickaudio.kaUpdate.moduleUpdate.ModuleUpdateException;
+import com.kilpatrickaudio.kaUpdate.moduleUpdate.SysexDecoder;
+import com.kilpatrickaudio.kaUpdate.moduleUpdate.SysexEncoder;
+import com.kilpatrickaudio.kaUpdate.moduleUpdate.TargetProfile;
+import com.kilpatrickaudio.kaUpdate.moduleUpdate.TransferJournal;
+
+import org.apache.log4j.Logger;
+
+/**
+ * This class flashes identical modules that share one MIDI output, such as
+ * modules on a thru chain or splitter. Every module sees each message once and
+ * answers on its own MIDI input port. The reset, blank and chunk loads are sent
+ * once for all of them and the replies are checked per module, so a module that
+ * does not come online or drops out of the transfer fails without failing the
+ * others.
+ *
+ * The modules can't be told apart on the shared output, so the full image is
+ * always sent and the flash ledger entry for the output port is cleared.
+ *
+ * @author andrew
+ *
+ */
+public class BroadcastUpdate {
+	static final int RESPONSE_WAIT = 1000;  // ms per wait for the reset and blank replies
+	static final int RESPONSE_WAITS = 11;
+	Logger logger;
+	UpdateTarget target;
+	String outDevName;
+	List<String> inDevNames;
+	FlashImage image;
+	MIDIHandler out = null;
+	List<MIDIHandler> inputs = new ArrayList<MIDIHandler>();
+	String errors[];
+
+	/**
+	 * Creates a new broadcast update.
+	 *
+	 * @param target the update target
+	 * @param outDevName the shared MIDI output port name
+	 * @param inDevNames the MIDI input port name of each module
+	 * @param image the read-only image, or null to load the update file
+	 */
+	public BroadcastUpdate(UpdateTarget target, String outDevName, List<String> inDevNames, FlashImage image) {
+		logger = Logger.getLogger(this.getClass());
+		this.target = target;
+		this.outDevName = outDevName;
+		this.inDevNames = inDevNames;
+		this.image = image;
+		errors = new String[inDevNames.size()];
+	}
+
+	/**
+	 * Updates the modules. Modules that fail are recorded and can be checked
+	 * with getError().
+	 *
+	 * @param pi the progress indicator to send updates to
+	 * @return the number of modules updated
+	 * @throws ModuleUpdateException if no module could be updated
+	 */
+	public int updateModules(ProgressIndicator pi) throws ModuleUpdateException {
+		pi.setPercentComplete(0);
+		if(image == null) {
+			image = target.loadImage();
+		}
+		target.checkImage(image);
+		TargetProfile profile = target.createProfile();
+		// the ledger and journal can't describe more than one unit on the port
+		String unitKey = FlashLedger.getUnitKey(target.getDevID(), outDevName);
+		FlashLedger ledger = FlashLedger.getDefault();
+		if(ledger != null && !ledger.invalidate(unitKey)) {
+			throw new ModuleUpdateException("could not remove flash ledger entry for unit: " + unitKey);
+		}
+		TransferJournal.discard(unitKey, profile.getName());
+
+		try {
+			openPorts();
+			logger.info("sending reset packet to devices: " + inDevNames.size());
+			SysexEncoder encoder = new SysexEncoder(BootloaderProtocol.RESET_LEN);
+			encoder.encodeReset(target.getDevID());
+			send(encoder);
+			waitForAll(BootloaderProtocol.CMD_ALIVE, "device did not come online");
+
+			if(target.isPIC32()) {
+				logger.info("sending program memory blanking command");
+				encoder.encodeCommand(BootloaderProtocol.CMD_BLANK);
+				send(encoder);
+				waitForAll(BootloaderProtocol.CMD_BLANK_OK, "device did not blank progmem");
+				// close and reopen MIDI ports
+				try {
+					logger.info("closing MIDI ports");
+					closePorts();
+					Thread.sleep(1000);
+					logger.info("reopening MIDI ports");
+					openPorts();
+					Thread.sleep(1000);
+				} catch (InterruptedException e) {
+					throw new ModuleUpdateException(e.getMessage());
+				}
+			}
+
+			// only the modules that answered take part in the transfer
+			List<MIDIHandler> online = new ArrayList<MIDIHandler>();
+			List<String> names = new ArrayList<String>();
+			List<Integer> index = new ArrayList<Integer>();
+			for(int i = 0; i < inDevNames.size(); i ++) {
+				if(errors[i] == null) {
+					online.add(inputs.get(i));
+					names.add(inDevNames.get(i));
+					index.add(i);
+				}
+			}
+			if(online.isEmpty()) {
+				throw new ModuleUpdateException("no device came online");
+			}
+			// PIC32 progmem is blank and PIC18 units may differ so the full image is sent
+			ChunkPlan plan = new ChunkPlan(image, profile);
+			if(plan.getOutOfRangeCount() > 0) {
+				logger.warn("pages out of range (probably config data) - skipping: " + plan.getOutOfRangeCount());
+			}
+			BroadcastTransfer transfer = new BroadcastTransfer(out, online, names, profile);
+			try {
+				transfer.run(plan, pi);
+			} finally {
+				for(int i = 0; i < online.size(); i ++) {
+					errors[index.get(i)] = transfer.getError(i);
+				}
+			}
+		} finally {
+			closePorts();
+		}
+		int updated = 0;
+		for(int i = 0; i < errors.length; i ++) {
+			if(errors[i] == null) {
+				updated ++;
+			}
+			else {
+				logger.error("update FAILED on: " + inDevNames.get(i) + " - " + errors[i]);
+			}
+		}
+		logger.info("broadcast update complete - modules updated: " + updated + " of " + errors.length);
+		return updated;
+	}
+
+	/**
+	 * Gets the reason a module failed.
+	 *
+	 * @param module the module index in the input port list
+	 * @return the error message, or null if the module was updated
+	 */
+	public String getError(int module) {
+		return errors[module];
+	}
+
+	/**
+	 * Opens the shared output port and the input port of each module.
+	 *
+	 * @throws ModuleUpdateException if a port can't be opened
+	 */
+	void openPorts() throws ModuleUpdateException {
+		try {
+			if(out == null) {
+				out = new MIDIHandler();
+			}
+			out.openMIDIPorts("", outDevName);
+			for(int i = 0; i < inDevNames.size(); i ++) {
+				if(inputs.size() <= i) {
+					inputs.add(new MIDIHandler());
+				}
+				inputs.get(i).openMIDIPorts(inDevNames.get(i), "");
+			}
+		} catch (MidiUnavailableException e) {
+			closePorts();
+			throw new ModuleUpdateException(e.getMessage());
+		}
+	}
+
+	/**
+	 * Closes all ports.
+	 */
+	void closePorts() {
+		if(out != null) {
+			out.closeMIDIPorts();
+		}
+		for(MIDIHandler in : inputs) {
+			in.closeMIDIPorts();
+		}
+	}
+
+	/**
+	 * Sends a message on the shared output.
+	 *
+	 * @param encoder the encoded message
+	 * @throws ModuleUpdateException if the message could not be sent
+	 */
+	void send(SysexEncoder encoder) throws ModuleUpdateException {
+		try {
+			out.sendSysex(encoder.getBuffer(), encoder.getLength());
+		} catch (InvalidMidiDataException e) {
+			throw new ModuleUpdateException(e.getMessage());
+		}
+	}
+
+	/**
+	 * Waits for each module that has not failed to answer with a command. The
+	 * modules answer on their own ports at about the same time so the total
+	 * wait is about the same as for one module.
+	 *
+	 * @param cmd the command to wait for
+	 * @param error the error recorded for modules that don't answer
+	 */
+	void waitForAll(int cmd, String error) {
+		SysexDecoder decoder = new SysexDecoder();
+		long deadline = System.currentTimeMillis() + RESPONSE_WAIT * RESPONSE_WAITS;
+		for(int i = 0; i < inputs.size(); i ++) {
+			if(errors[i] != null) {
+				continue;
+			}
+			decoder.wrap(inputs.get(i).waitForSysex((int)Math.max(1, deadline - System.currentTimeMillis())));
+			if(decoder.getLength() == 0) {
+				errors[i] = error;
+			}
+			else if(!decoder.isCommand(cmd)) {
+				errors[i] = "unexpected reply - cmd: 0x" + Integer.toHexString(decoder.getCommand());
+			}
+			else {
+				logger.info("device replied on: " + inDevNames.get(i));
+				continue;
+			}
+			logger.error("device on: " + inDevNames.get(i) + " - " + errors[i]);
+		}
+	}
+}
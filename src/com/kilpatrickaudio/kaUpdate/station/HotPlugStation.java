@@ -0,0 +1,302 @@
+package com.kilpatrickaudio.kaUpdate.station;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MidiUnavailableException;
+
+import com.kilpatrickaudio.kaUpdate.midi.MIDIHandler;
+import com.kilpatrickaudio.kaUpdate.moduleUpdate.BootloaderProtocol;
+import com.kilpatrickaudio.kaUpdate.moduleUpdate.FlashImage;
+import com.kilpatrickaudio.kaUpdate.moduleUpdate.FlashLedger;
+import com.kilpatrickaudio.kaUpdate.moduleUpdate.ModuleUpdateException;
+import com.kilpatrickaudio.kaUpdate.moduleUpdate.TransferJournal;
+import com.kilpatrickaudio.kaUpdate.moduleUpdate.SysexDecoder;
+import com.kilpatrickaudio.kaUpdate.moduleUpdate.SysexEncoder;
+
+import org.apache.log4j.Logger;
+
+/**
+ * This class runs an unattended flashing station. It watches for MIDI
+ * interfaces being attached and, for each one, sends a reset for each configured
+ * device ID until a module comes online. The module is then flashed with the
+ * update file for its device ID on the ports the probe opened, without another
+ * reset, and the result is appended to a results file. An interface is flashed
+ * once each time it is attached. A unit plugged in is never the unit flashed
+ * before it on the same interface, so any flash ledger entry or transfer journal
+ * for the interface is removed and every unit gets the full image.
+ *
+ * The station is configured with system properties:
+ * - kaupdate.station.poll: the time between device list checks in ms (default: 500)
+ * - kaupdate.station.probe: the time to wait for a module to come online after
+ *   a reset for each device ID in ms (default: 2000)
+ * - kaupdate.station.results: the results file
+ *   (default: ~/.kaupdate/station-results.csv)
+ * - kaupdate.station.threads: the number of modules flashed at the same time
+ *
+ * @author andrew
+ *
+ */
+public class HotPlugStation implements Runnable {
+	static final int DEFAULT_POLL = 500;  // ms
+	static final int DEFAULT_PROBE_TIMEOUT = 2000;  // ms
+	Logger logger;
+	UpdateStation station;
+	PortWatcher watcher;
+	Map<Integer, UpdateTarget> targets = new LinkedHashMap<Integer, UpdateTarget>();
+	Map<Integer, FlashImage> images = new LinkedHashMap<Integer, FlashImage>();
+	Set<String> busy = Collections.synchronizedSet(new HashSet<String>());
+	int pollInterval;
+	int probeTimeout;
+	File resultsFile;
+	volatile boolean running = true;
+	long start;
+	int passed = 0;
+	int failed = 0;
+
+	/**
+	 * Creates a new hot-plug station. The update files are loaded once and
+	 * shared by all updates.
+	 *
+	 * @param updateFilenames the update files - each for a different device ID
+	 * @param station the station that runs the updates
+	 * @param watcher the watcher for attached interfaces
+	 * @throws ModuleUpdateException if an update file can't be used
+	 */
+	public HotPlugStation(List<String> updateFilenames, UpdateStation station, PortWatcher watcher)
+			throws ModuleUpdateException {
+		logger = Logger.getLogger(this.getClass());
+		if(FlashLedger.hasSerial()) {
+			throw new ModuleUpdateException("kaupdate.serial names one unit - it can't be used by a hot-plug station");
+		}
+		this.station = station;
+		this.watcher = watcher;
+		for(String filename : updateFilenames) {
+			UpdateTarget target = new UpdateTarget(filename);
+			if(targets.containsKey(target.getDevID())) {
+				throw new ModuleUpdateException("more than one update file for deviceID: " +
+						Integer.toHexString(target.getDevID()));
+			}
+			targets.put(target.getDevID(), target);
+			images.put(target.getDevID(), target.loadImage());
+			logger.info("station target - deviceID: " + Integer.toHexString(target.getDevID()) +
+					" - file: " + filename);
+		}
+		pollInterval = Integer.parseInt(System.getProperty("kaupdate.station.poll",
+				Integer.toString(DEFAULT_POLL)).trim());
+		probeTimeout = Integer.parseInt(System.getProperty("kaupdate.station.probe",
+				Integer.toString(DEFAULT_PROBE_TIMEOUT)).trim());
+		resultsFile = new File(System.getProperty("kaupdate.station.results",
+				System.getProperty("user.home") + File.separator + ".kaupdate" + File.separator + "station-results.csv"));
+	}
+
+	/**
+	 * Watches for interfaces and flashes modules until stop() is called.
+	 */
+	@Override
+	public void run() {
+		start = System.currentTimeMillis();
+		logger.info("station waiting for modules - results: " + resultsFile.getAbsolutePath());
+		while(running) {
+			try {
+				if(watcher.poll()) {
+					for(String portName : watcher.getAdded()) {
+						attached(portName);
+					}
+				}
+			} catch (MidiUnavailableException e) {
+				logger.error("could not read MIDI devices: " + e.getMessage());
+			}
+			try {
+				Thread.sleep(pollInterval);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+		logger.info("station stopped");
+	}
+
+	/**
+	 * Stops the station after the current poll. Running updates are not interrupted.
+	 */
+	public void stop() {
+		running = false;
+	}
+
+	/**
+	 * Starts flashing a module on an interface that was attached.
+	 *
+	 * @param portName the interface port name
+	 */
+	void attached(final String portName) {
+		if(!busy.add(portName)) {
+			logger.warn("interface is still being flashed - ignoring: " + portName);
+			return;
+		}
+		station.submit(new Callable<UpdateSession>() {
+			public UpdateSession call() {
+				try {
+					return flash(portName);
+				} finally {
+					busy.remove(portName);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Finds the module on an interface and flashes it.
+	 *
+	 * @param portName the interface port name
+	 * @return the finished session, or null if no module was found
+	 */
+	UpdateSession flash(String portName) {
+		MIDIHandler midi;
+		UpdateTarget target;
+		try {
+			midi = new MIDIHandler();
+		} catch (MidiUnavailableException e) {
+			record(portName, -1, UpdateSession.State.FAILED, 0, e.getMessage());
+			return null;
+		}
+		try {
+			target = probe(midi, portName);
+		} catch (ModuleUpdateException e) {
+			midi.closeMIDIPorts();
+			record(portName, -1, UpdateSession.State.FAILED, 0, e.getMessage());
+			return null;
+		}
+		if(target == null) {
+			midi.closeMIDIPorts();
+			record(portName, -1, UpdateSession.State.FAILED, 0, "no configured module came online");
+			return null;
+		}
+		// the ledger and journal describe the last unit on this interface
+		String unitKey = FlashLedger.getUnitKey(target.getDevID(), portName);
+		FlashLedger ledger = FlashLedger.getDefault();
+		if(ledger != null && !ledger.invalidate(unitKey)) {
+			midi.closeMIDIPorts();
+			record(portName, target.getDevID(), UpdateSession.State.FAILED, 0,
+					"could not remove flash ledger entry for unit: " + unitKey);
+			return null;
+		}
+		TransferJournal.discard(unitKey, target.createProfile().getName());
+		// the session closes the ports
+		UpdateSession session = new UpdateSession(target, portName, portName, images.get(target.getDevID()), null);
+		session.setOnlineHandler(midi);
+		session.call();
+		record(portName, target.getDevID(), session.getState(), session.getElapsed(), session.getError());
+		return session;
+	}
+
+	/**
+	 * Sends a reset for each configured device ID until a module comes online.
+	 * The ports are left open so the module can be flashed without another reset.
+	 *
+	 * @param midi the MIDI handler to open the ports with
+	 * @param portName the interface port name
+	 * @return the target of the module, or null if none came online
+	 * @throws ModuleUpdateException if the ports could not be used
+	 */
+	UpdateTarget probe(MIDIHandler midi, String portName) throws ModuleUpdateException {
+		try {
+			midi.openMIDIPorts(portName, portName);
+			SysexEncoder encoder = new SysexEncoder(BootloaderProtocol.RESET_LEN);
+			SysexDecoder decoder = new SysexDecoder();
+			for(UpdateTarget target : targets.values()) {
+				encoder.encodeReset(target.getDevID());
+				midi.sendSysex(encoder.getBuffer(), encoder.getLength());
+				long deadline = System.currentTimeMillis() + probeTimeout;
+				long remaining;
+				while((remaining = deadline - System.currentTimeMillis()) > 0) {
+					if(decoder.wrap(midi.waitForSysex((int)remaining)).isCommand(BootloaderProtocol.CMD_ALIVE)) {
+						logger.info("module online on: " + portName + " - deviceID: " +
+								Integer.toHexString(target.getDevID()));
+						return target;
+					}
+				}
+			}
+			return null;
+		} catch (MidiUnavailableException e) {
+			throw new ModuleUpdateException(e.getMessage());
+		} catch (InvalidMidiDataException e) {
+			throw new ModuleUpdateException(e.getMessage());
+		}
+	}
+
+	/**
+	 * Records the result of a unit.
+	 *
+	 * @param portName the interface port name
+	 * @param devID the device ID, or -1 if it is unknown
+	 * @param state the final session state
+	 * @param elapsed the update time in ms
+	 * @param error the error message, or null if the update worked
+	 */
+	synchronized void record(String portName, int devID, UpdateSession.State state, long elapsed, String error) {
+		if(state == UpdateSession.State.DONE) {
+			passed ++;
+		}
+		else {
+			failed ++;
+		}
+		double hours = (System.currentTimeMillis() - start) / 3600000.0;
+		logger.info("unit " + state + " on: " + portName + (error != null ? " - " + error : "") +
+				" - passed: " + passed + " - failed: " + failed +
+				String.format(" - units/hour: %.1f", (passed + failed) / Math.max(hours, 1.0 / 3600)));
+		String line = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date()) + "," +
+				portName.replace(',', ' ') + "," + (devID < 0 ? "" : Integer.toHexString(devID)) + "," +
+				state + "," + elapsed + "," + (error != null ? error.replace(',', ' ') : "") + "\n";
+		File dir = resultsFile.getAbsoluteFile().getParentFile();
+		if(dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+			logger.warn("could not create results dir: " + dir.getAbsolutePath());
+			return;
+		}
+		Writer out = null;
+		try {
+			out = new FileWriter(resultsFile, true);
+			out.write(line);
+		} catch (IOException e) {
+			logger.warn("could not write results file: " + e.getMessage());
+		} finally {
+			if(out != null) {
+				try {
+					out.close();
+				} catch (IOException e) {
+					logger.warn("could not close results file: " + e.getMessage());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Gets the number of units flashed.
+	 *
+	 * @return the passed unit count
+	 */
+	public synchronized int getPassedCount() {
+		return passed;
+	}
+
+	/**
+	 * Gets the number of units that failed.
+	 *
+	 * @return the failed unit count
+	 */
+	public synchronized int getFailedCount() {
+		return failed;
+	}
+}
@@ -0,0 +1,413 @@
+package com.kilpatrickaudio.kaUpdate.station;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MidiUnavailableException;
+
+import com.kilpatrickaudio.kaUpdate.main.ProgressIndicator;
+import com.kilpatrickaudio.kaUpdate.midi.MIDIHandler;
+import com.kilpatrickaudio.kaUpdate.midi.MIDIReceiveHandler;
+import com.kilpatrickaudio.kaUpdate.moduleUpdate.BootloaderProtocol;
+import com.kilpatrickaudio.kaUpdate.moduleUpdate.FlashImage;
+import com.kilpatrickaudio.kaUpdate.moduleUpdate.ModuleUpdateException;
+import com.kilpatrickaudio.kaUpdate.moduleUpdate.SysexDecoder;
+import com.kilpatrickaudio.kaUpdate.moduleUpdate.SysexEncoder;
+
+import org.apache.log4j.Logger;
+
+/**
+ * This class finds the MIDI port pair a module is connected to. Every input and
+ * output port is opened at the same time and a reset is sent on all outputs at
+ * once. The first input that answers with the alive message is the module
+ * input. Its output is found by trying the output with the same name first and
+ * then halving the remaining outputs until one is left. The module is already
+ * in its bootloader by then so each of these steps only needs a short wait.
+ * Once all ports are closed, the pair that was found is opened on its own and
+ * confirmed with one more handshake. Discovery takes one handshake plus a few
+ * short steps no matter how many ports there are. The confirmed pair is handed
+ * to the update session still open, so the module is not reset again.
+ *
+ * The waits can be set with system properties:
+ * - kaupdate.discover.timeout: the wait for the first alive message in ms,
+ *   which includes the module restarting into its bootloader (default: 2000)
+ * - kaupdate.discover.step: the wait for each step that finds the output in ms
+ *   (default: 250)
+ *
+ * @author andrew
+ *
+ */
+public class PortDiscovery {
+	static final int DEFAULT_TIMEOUT = 2000;  // ms
+	static final int DEFAULT_STEP_TIMEOUT = 250;  // ms
+	static final ThreadFactory DAEMON_THREADS = new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "port-discovery");
+			t.setDaemon(true);
+			return t;
+		}
+	};
+	Logger logger;
+	List<String> inDevNames;
+	List<String> outDevNames;
+	int timeout;
+	int stepTimeout;
+	MIDIHandler inputs[];
+	MIDIHandler outputs[];
+	LinkedBlockingQueue<Integer> alive = new LinkedBlockingQueue<Integer>();  // inputs that got an alive message
+
+	/**
+	 * Creates a new port discovery.
+	 *
+	 * @param inDevNames the candidate MIDI input port names
+	 * @param outDevNames the candidate MIDI output port names
+	 */
+	public PortDiscovery(List<String> inDevNames, List<String> outDevNames) {
+		logger = Logger.getLogger(this.getClass());
+		this.inDevNames = inDevNames;
+		this.outDevNames = outDevNames;
+		timeout = Integer.parseInt(System.getProperty("kaupdate.discover.timeout",
+				Integer.toString(DEFAULT_TIMEOUT)).trim());
+		stepTimeout = Integer.parseInt(System.getProperty("kaupdate.discover.step",
+				Integer.toString(DEFAULT_STEP_TIMEOUT)).trim());
+	}
+
+	/**
+	 * Creates a port discovery for all MIDI ports.
+	 *
+	 * @return the port discovery
+	 * @throws MidiUnavailableException if the MIDI ports can't be listed
+	 */
+	public static PortDiscovery forAllPorts() throws MidiUnavailableException {
+		return new PortDiscovery(MIDIHandler.getInputDeviceNames(), MIDIHandler.getOutputDeviceNames());
+	}
+
+	/**
+	 * Finds the module for an update target and returns a session to update it.
+	 *
+	 * @param target the update target
+	 * @param image the shared read-only image, or null to load the update file
+	 * @param progress the progress indicator to send updates to, or null for none
+	 * @return the session, ready to be run with the ports open and the module in
+	 *   its bootloader - the session closes the ports
+	 * @throws ModuleUpdateException if the module could not be found
+	 */
+	public UpdateSession discover(UpdateTarget target, FlashImage image, ProgressIndicator progress)
+			throws ModuleUpdateException {
+		String ports[] = new String[2];
+		MIDIHandler midi = connect(target.getDevID(), ports);
+		if(midi == null) {
+			throw new ModuleUpdateException("no module with deviceID: " + Integer.toHexString(target.getDevID()) +
+					" found on " + inDevNames.size() + " inputs and " + outDevNames.size() + " outputs");
+		}
+		UpdateSession session = new UpdateSession(target, ports[0], ports[1], image, progress);
+		session.setOnlineHandler(midi);
+		return session;
+	}
+
+	/**
+	 * Finds the port pair a module is connected to. The ports are closed again
+	 * before this returns.
+	 *
+	 * @param devID the device ID of the module
+	 * @return the input and output port names, or null if no module answered
+	 * @throws ModuleUpdateException if the discovery was interrupted
+	 */
+	public String[] findPorts(int devID) throws ModuleUpdateException {
+		String ports[] = new String[2];
+		MIDIHandler midi = connect(devID, ports);
+		if(midi == null) {
+			return null;
+		}
+		midi.closeMIDIPorts();
+		return ports;
+	}
+
+	/**
+	 * Finds the port pair a module is connected to and opens it with the module
+	 * in its bootloader.
+	 *
+	 * @param devID the device ID of the module
+	 * @param ports returns the input and output port names
+	 * @return the MIDI handler with the pair open, or null if no module was confirmed
+	 * @throws ModuleUpdateException if the discovery was interrupted
+	 */
+	MIDIHandler connect(int devID, String ports[]) throws ModuleUpdateException {
+		long start = System.currentTimeMillis();
+		if(search(devID, ports) < 0) {
+			logger.info("discovery found no module - took: " + (System.currentTimeMillis() - start) + " ms");
+			return null;
+		}
+		MIDIHandler midi = confirm(devID, ports[0], ports[1]);
+		if(midi == null) {
+			logger.warn("module did not answer on - in: " + ports[0] + " - out: " + ports[1]);
+			return null;
+		}
+		logger.info("discovered module - in: " + ports[0] + " - out: " + ports[1] +
+				" - took: " + (System.currentTimeMillis() - start) + " ms");
+		return midi;
+	}
+
+	/**
+	 * Searches all ports for the pair a module is connected to. The ports are
+	 * closed again before this returns.
+	 *
+	 * @param devID the device ID of the module
+	 * @param ports returns the input and output port names
+	 * @return the number of steps after the first handshake, or -1 if no module answered
+	 * @throws ModuleUpdateException if the discovery was interrupted
+	 */
+	int search(int devID, String ports[]) throws ModuleUpdateException {
+		try {
+			openAll();
+			List<Integer> outs = new ArrayList<Integer>();
+			for(int i = 0; i < outputs.length; i ++) {
+				if(outputs[i] != null) {
+					outs.add(i);
+				}
+			}
+			int in = handshake(outs, devID, -1, timeout);
+			if(in < 0) {
+				return -1;
+			}
+			logger.info("module answered on input: " + inDevNames.get(in));
+			int steps = 0;
+			// interfaces usually use the same name for both ports
+			int sameName = outDevNames.indexOf(inDevNames.get(in));
+			if(sameName >= 0 && outs.contains(sameName) && outs.size() > 1) {
+				steps ++;
+				List<Integer> one = new ArrayList<Integer>();
+				one.add(sameName);
+				if(handshake(one, devID, in, stepTimeout) == in) {
+					outs = one;
+				}
+				else {
+					outs.remove(Integer.valueOf(sameName));
+				}
+			}
+			while(outs.size() > 1) {
+				steps ++;
+				List<Integer> half = new ArrayList<Integer>(outs.subList(0, outs.size() / 2));
+				if(handshake(half, devID, in, stepTimeout) == in) {
+					outs = half;
+				}
+				else {
+					outs = new ArrayList<Integer>(outs.subList(outs.size() / 2, outs.size()));
+				}
+			}
+			ports[0] = inDevNames.get(in);
+			ports[1] = outDevNames.get(outs.get(0));
+			logger.debug("search found - in: " + ports[0] + " - out: " + ports[1] + " - steps: " + steps);
+			return steps;
+		} finally {
+			closeAll();
+		}
+	}
+
+	/**
+	 * Opens a port pair and checks that the module answers a reset on it.
+	 *
+	 * @param devID the device ID of the module
+	 * @param inDevName the input port name
+	 * @param outDevName the output port name
+	 * @return the MIDI handler with the pair open, or null if the module did not answer
+	 * @throws ModuleUpdateException if the pair could not be used
+	 */
+	MIDIHandler confirm(int devID, String inDevName, String outDevName) throws ModuleUpdateException {
+		MIDIHandler midi;
+		try {
+			midi = openPort(inDevName, outDevName);
+		} catch (MidiUnavailableException e) {
+			throw new ModuleUpdateException(e.getMessage());
+		}
+		SysexEncoder encoder = new SysexEncoder(BootloaderProtocol.RESET_LEN);
+		SysexDecoder decoder = new SysexDecoder();
+		encoder.encodeReset(devID);
+		try {
+			midi.sendSysex(encoder.getBuffer(), encoder.getLength());
+			long deadline = System.currentTimeMillis() + stepTimeout;
+			long remaining;
+			while((remaining = deadline - System.currentTimeMillis()) > 0) {
+				if(decoder.wrap(midi.waitForSysex((int)remaining)).isCommand(BootloaderProtocol.CMD_ALIVE)) {
+					return midi;
+				}
+			}
+		} catch (InvalidMidiDataException e) {
+			logger.debug("could not send reset on: " + outDevName + " - " + e.getMessage());
+		}
+		midi.closeMIDIPorts();
+		return null;
+	}
+
+	/**
+	 * Sends a reset on some outputs and waits for an alive message.
+	 *
+	 * @param outs the indexes of the outputs to send on
+	 * @param devID the device ID of the module
+	 * @param in the index of the input to wait on, or -1 for any input
+	 * @param wait the time to wait in ms
+	 * @return the index of the input that answered, or -1 if none did
+	 * @throws ModuleUpdateException if the discovery was interrupted
+	 */
+	int handshake(List<Integer> outs, int devID, int in, int wait) throws ModuleUpdateException {
+		alive.clear();
+		SysexEncoder encoder = new SysexEncoder(BootloaderProtocol.RESET_LEN);
+		encoder.encodeReset(devID);
+		for(int i : outs) {
+			try {
+				outputs[i].sendSysex(encoder.getBuffer(), encoder.getLength());
+			} catch (InvalidMidiDataException e) {
+				logger.debug("could not send reset on: " + outDevNames.get(i) + " - " + e.getMessage());
+			}
+		}
+		long deadline = System.currentTimeMillis() + wait;
+		long remaining;
+		try {
+			while((remaining = deadline - System.currentTimeMillis()) > 0) {
+				Integer answered = alive.poll(remaining, TimeUnit.MILLISECONDS);
+				if(answered == null) {
+					break;
+				}
+				if(in < 0 || answered == in) {
+					return answered;
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ModuleUpdateException("discovery interrupted");
+		}
+		return -1;
+	}
+
+	/**
+	 * Opens all ports at the same time. Ports that can't be opened are skipped.
+	 *
+	 * @throws ModuleUpdateException if the discovery was interrupted
+	 */
+	void openAll() throws ModuleUpdateException {
+		inputs = new MIDIHandler[inDevNames.size()];
+		outputs = new MIDIHandler[outDevNames.size()];
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, inputs.length + outputs.length),
+				DAEMON_THREADS);
+		List<Future<MIDIHandler>> opened = new ArrayList<Future<MIDIHandler>>();
+		for(int i = 0; i < inputs.length; i ++) {
+			opened.add(executor.submit(opener(i, inDevNames.get(i), "")));
+		}
+		for(int i = 0; i < outputs.length; i ++) {
+			opened.add(executor.submit(opener(-1, "", outDevNames.get(i))));
+		}
+		try {
+			for(int i = 0; i < opened.size(); i ++) {
+				MIDIHandler midi;
+				try {
+					midi = opened.get(i).get();
+				} catch (ExecutionException e) {
+					String name = i < inputs.length ? inDevNames.get(i) : outDevNames.get(i - inputs.length);
+					logger.debug("skipping port: " + name + " - " + e.getCause().getMessage());
+					continue;
+				}
+				if(i < inputs.length) {
+					inputs[i] = midi;
+				}
+				else {
+					outputs[i - inputs.length] = midi;
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ModuleUpdateException("discovery interrupted");
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 * Creates a task that opens a port.
+	 *
+	 * @param index the input index for alive messages, or -1 for an output
+	 * @param inDevName the input port name, or "" for none
+	 * @param outDevName the output port name, or "" for none
+	 * @return the task
+	 */
+	Callable<MIDIHandler> opener(final int index, final String inDevName, final String outDevName) {
+		return new Callable<MIDIHandler>() {
+			public MIDIHandler call() throws MidiUnavailableException {
+				MIDIHandler midi = openPort(inDevName, outDevName);
+				if(index >= 0) {
+					midi.setReceiveHandler(new AliveHandler(index));
+				}
+				return midi;
+			}
+		};
+	}
+
+	/**
+	 * Opens a port.
+	 *
+	 * @param inDevName the input port name, or "" for none
+	 * @param outDevName the output port name, or "" for none
+	 * @return the MIDI handler with the port open
+	 * @throws MidiUnavailableException if the port can't be opened
+	 */
+	protected MIDIHandler openPort(String inDevName, String outDevName) throws MidiUnavailableException {
+		MIDIHandler midi = new MIDIHandler();
+		midi.openMIDIPorts(inDevName, outDevName);
+		return midi;
+	}
+
+	/**
+	 * Closes all ports.
+	 */
+	void closeAll() {
+		for(MIDIHandler midi : inputs) {
+			if(midi != null) {
+				midi.setReceiveHandler(null);
+				midi.closeMIDIPorts();
+			}
+		}
+		for(MIDIHandler midi : outputs) {
+			if(midi != null) {
+				midi.closeMIDIPorts();
+			}
+		}
+	}
+
+	/**
+	 * Records which input an alive message arrived on.
+	 */
+	class AliveHandler implements MIDIReceiveHandler {
+		int index;
+
+		AliveHandler(int index) {
+			this.index = index;
+		}
+
+		@Override
+		public void sysexMessageReceived(int data[]) {
+			if(data.length == BootloaderProtocol.COMMAND_LEN &&
+					data[1] == BootloaderProtocol.MANUFACTURER_ID_0 &&
+					data[2] == BootloaderProtocol.MANUFACTURER_ID_1 &&
+					data[3] == BootloaderProtocol.MANUFACTURER_ID_2 &&
+					data[BootloaderProtocol.CMD_POS] == BootloaderProtocol.CMD_ALIVE) {
+				alive.offer(index);
+			}
+		}
+
+		@Override
+		public void messageReceived(int data[]) {
+		}
+
+		@Override
+		public void debugTextReceived(String text) {
+		}
+	}
+}
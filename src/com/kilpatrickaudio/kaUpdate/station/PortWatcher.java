@@ -0,0 +1,206 @@
+package com.kilpatrickaudio.kaUpdate.station;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.sound.midi.MidiDevice;
+import javax.sound.midi.MidiSystem;
+import javax.sound.midi.MidiUnavailableException;
+
+import uk.co.xfactorylibrarians.coremidi4j.CoreMidiDeviceProvider;
+import uk.co.xfactorylibrarians.coremidi4j.CoreMidiException;
+import uk.co.xfactorylibrarians.coremidi4j.CoreMidiNotification;
+
+import org.apache.log4j.Logger;
+
+/**
+ * This class watches the MIDI device list for interfaces being attached and
+ * removed. An interface is a port name that has both an input and an output.
+ *
+ * When CoreMIDI notifies changes to the MIDI setup, the device list is only
+ * fetched after a notification and an unchanged setup costs nothing to poll.
+ * Otherwise each poll fetches the device info list and stops there if it has the
+ * same devices as the last one. Devices are opened to find out if they are
+ * inputs or outputs the first time they are seen.
+ *
+ * @author andrew
+ *
+ */
+public class PortWatcher {
+	static final int IN = 1;
+	static final int OUT = 2;
+	Logger logger;
+	Map<MidiDevice.Info, Integer> known = new HashMap<MidiDevice.Info, Integer>();
+	Set<String> ready = new LinkedHashSet<String>();
+	List<String> added = new ArrayList<String>();
+	List<String> removed = new ArrayList<String>();
+	MidiDevice.Info lastInfos[] = null;  // the device list of the last poll
+	boolean notified = false;  // true if device changes are notified
+	volatile boolean changed = true;  // set when a change is notified
+
+	/**
+	 * Creates a new port watcher. Interfaces that are already attached are
+	 * reported as added by the first poll.
+	 */
+	public PortWatcher() {
+		logger = Logger.getLogger(this.getClass());
+		notified = watchDevices();
+	}
+
+	/**
+	 * Checks the device list for changes since the last poll.
+	 *
+	 * @return true if an interface was added or removed
+	 * @throws MidiUnavailableException if the device list can't be read
+	 */
+	public boolean poll() throws MidiUnavailableException {
+		added.clear();
+		removed.clear();
+		if(notified && !changed) {
+			return false;
+		}
+		// cleared first so a change during the listing is seen by the next poll
+		changed = false;
+		MidiDevice.Info infos[] = listDevices();
+		if(Arrays.equals(infos, lastInfos)) {
+			return false;
+		}
+		lastInfos = infos;
+		Map<MidiDevice.Info, Integer> current = new LinkedHashMap<MidiDevice.Info, Integer>();
+		Map<String, Integer> names = new HashMap<String, Integer>();
+		for(MidiDevice.Info info : infos) {
+			Integer dirs = known.get(info);
+			if(dirs == null) {
+				dirs = getDirections(info);
+			}
+			current.put(info, dirs);
+			String name = info.getName().trim();
+			Integer nameDirs = names.get(name);
+			names.put(name, (nameDirs == null ? 0 : nameDirs) | dirs);
+		}
+		known = current;
+		Set<String> nowReady = new LinkedHashSet<String>();
+		for(Map.Entry<String, Integer> e : names.entrySet()) {
+			if(e.getValue() == (IN | OUT)) {
+				nowReady.add(e.getKey());
+			}
+		}
+		for(String name : nowReady) {
+			if(!ready.contains(name)) {
+				added.add(name);
+				logger.info("MIDI interface attached: " + name);
+			}
+		}
+		for(String name : ready) {
+			if(!nowReady.contains(name)) {
+				removed.add(name);
+				logger.info("MIDI interface removed: " + name);
+			}
+		}
+		ready = nowReady;
+		return !added.isEmpty() || !removed.isEmpty();
+	}
+
+	/**
+	 * Gets the interfaces attached since the previous poll.
+	 *
+	 * @return the port names
+	 */
+	public List<String> getAdded() {
+		return added;
+	}
+
+	/**
+	 * Gets the interfaces removed since the previous poll.
+	 *
+	 * @return the port names
+	 */
+	public List<String> getRemoved() {
+		return removed;
+	}
+
+	/**
+	 * Gets the MIDI input port names seen by the last poll.
+	 *
+	 * @return the port names
+	 */
+	public List<String> getInputNames() {
+		return getNames(IN);
+	}
+
+	/**
+	 * Gets the MIDI output port names seen by the last poll.
+	 *
+	 * @return the port names
+	 */
+	public List<String> getOutputNames() {
+		return getNames(OUT);
+	}
+
+	/**
+	 * Gets the port names seen by the last poll in one direction.
+	 *
+	 * @param dir IN or OUT
+	 * @return the port names
+	 */
+	List<String> getNames(int dir) {
+		Set<String> names = new LinkedHashSet<String>();
+		for(Map.Entry<MidiDevice.Info, Integer> e : known.entrySet()) {
+			if((e.getValue() & dir) != 0) {
+				names.add(e.getKey().getName().trim());
+			}
+		}
+		return new ArrayList<String>(names);
+	}
+
+	/**
+	 * Asks to be notified of changes to the MIDI setup.
+	 *
+	 * @return true if changes will be notified, false if the list has to be polled
+	 */
+	protected boolean watchDevices() {
+		if(!CoreMidiDeviceProvider.isLibraryLoaded()) {
+			return false;
+		}
+		try {
+			CoreMidiDeviceProvider.addNotificationListener(new CoreMidiNotification() {
+				public void midiSystemUpdated() {
+					changed = true;
+				}
+			});
+			return true;
+		} catch (CoreMidiException e) {
+			logger.warn("could not watch MIDI setup changes - polling the device list: " + e.getMessage());
+			return false;
+		}
+	}
+
+	/**
+	 * Gets the device list.
+	 *
+	 * @return the device infos
+	 * @throws MidiUnavailableException if the device list can't be read
+	 */
+	protected MidiDevice.Info[] listDevices() throws MidiUnavailableException {
+		return CoreMidiDeviceProvider.getMidiDeviceInfo();
+	}
+
+	/**
+	 * Finds out if a device is an input, an output or both.
+	 *
+	 * @param info the device info
+	 * @return IN and OUT bits
+	 * @throws MidiUnavailableException if the device can't be queried
+	 */
+	protected int getDirections(MidiDevice.Info info) throws MidiUnavailableException {
+		MidiDevice dev = MidiSystem.getMidiDevice(info);
+		// -1 = unlimited number of ports
+		return (dev.getMaxTransmitters() != 0 ? IN : 0) | (dev.getMaxReceivers() != 0 ? OUT : 0);
+	}
+}
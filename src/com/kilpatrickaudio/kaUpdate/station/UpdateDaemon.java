@@ -0,0 +1,722 @@
+package com.kilpatrickaudio.kaUpdate.station;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URLDecoder;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import javax.sound.midi.MidiUnavailableException;
+
+import com.kilpatrickaudio.kaUpdate.moduleUpdate.FirmwareSource;
+import com.kilpatrickaudio.kaUpdate.moduleUpdate.FlashImage;
+import com.kilpatrickaudio.kaUpdate.moduleUpdate.FlashLedger;
+import com.kilpatrickaudio.kaUpdate.moduleUpdate.ModuleUpdateException;
+import com.kilpatrickaudio.kaUpdate.moduleUpdate.TransferJournal;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.apache.log4j.Logger;
+
+/**
+ * This class runs KAUpdate as a long running daemon that takes flash jobs over
+ * a local HTTP API. The most recently used parsed images are kept between jobs
+ * so a job does not parse its update file again. Each job opens its own ports
+ * and resets the module, and any transfer journal for the port is discarded
+ * since the module on it may have been swapped. Jobs run on the station pool in
+ * order of priority. Two jobs never use the same port at the same time.
+ *
+ * The API only listens on the loopback address. Each request must send the
+ * token from the token file in the X-KAUpdate-Token header. The file is created
+ * with a random token the first time the daemon starts and is only readable by
+ * its owner. Browsers can't send the header to another site without asking first,
+ * so web pages can't submit jobs. Requests with an Origin header that is not a
+ * local address are also refused.
+ * - POST /jobs with file, in, out and optional priority (default: 0) as query
+ *   or form parameters - queues a job and returns it
+ * - GET /jobs - lists the jobs
+ * - GET /jobs/ID - gets a job
+ * - GET /jobs/ID/progress - streams the job as one JSON line per change until
+ *   it finishes
+ * - DELETE /jobs/ID - cancels a queued job
+ * - GET /ports - lists the MIDI input and output ports
+ *
+ * The daemon is configured with system properties:
+ * - kaupdate.daemon.port: the HTTP port (default: 7231)
+ * - kaupdate.daemon.workers: the number of jobs that can run at the same time
+ *   (default: 4)
+ * - kaupdate.daemon.token: the token file
+ *   (default: ~/.kaupdate/daemon-token)
+ *
+ * @author andrew
+ *
+ */
+public class UpdateDaemon {
+	static final int DEFAULT_PORT = 7231;
+	static final int DEFAULT_WORKERS = 4;
+	static final int MAX_HISTORY = 1000;  // finished jobs kept for status requests
+	static final int KEEPALIVE = 15000;  // ms between progress lines for an idle job
+	static final int MAX_IMAGES = 16;  // parsed images kept between jobs
+	static final String TOKEN_HEADER = "X-KAUpdate-Token";
+	Logger logger;
+	int port;
+	int workers;
+	HttpServer server;
+	ExecutorService httpExecutor;
+	UpdateStation station;
+	PortWatcher watcher;
+	TreeSet<UpdateJob> queue = new TreeSet<UpdateJob>();
+	Map<Integer, UpdateJob> jobs = new LinkedHashMap<Integer, UpdateJob>();
+	Set<String> busyPorts = new HashSet<String>();
+	File tokenFile;
+	byte token[];
+	// least recently used images are dropped first
+	Map<String, WarmImage> images = new LinkedHashMap<String, WarmImage>(MAX_IMAGES, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, WarmImage> eldest) {
+			return size() > MAX_IMAGES;
+		}
+	};
+	int nextId = 1;
+	int running = 0;
+	CountDownLatch stopped = new CountDownLatch(1);
+
+	/**
+	 * A parsed update file. Jobs that want the same file wait on it while it
+	 * is parsed.
+	 */
+	static class WarmImage {
+		UpdateTarget target;
+		FlashImage image;
+		long modified;
+		boolean loaded = false;
+	}
+
+	/**
+	 * Creates a new update daemon.
+	 *
+	 * @param port the HTTP port
+	 * @param workers the number of jobs that can run at the same time
+	 */
+	public UpdateDaemon(int port, int workers) {
+		logger = Logger.getLogger(this.getClass());
+		this.port = port;
+		this.workers = workers;
+		station = new UpdateStation(workers);
+		watcher = new PortWatcher();
+		tokenFile = new File(System.getProperty("kaupdate.daemon.token",
+				System.getProperty("user.home") + File.separator + ".kaupdate" + File.separator + "daemon-token"));
+	}
+
+	/**
+	 * Creates an update daemon configured by system properties.
+	 *
+	 * @return the daemon
+	 */
+	public static UpdateDaemon fromSystemProperties() {
+		return new UpdateDaemon(Integer.parseInt(System.getProperty("kaupdate.daemon.port",
+				Integer.toString(DEFAULT_PORT)).trim()),
+				Integer.parseInt(System.getProperty("kaupdate.daemon.workers",
+				Integer.toString(DEFAULT_WORKERS)).trim()));
+	}
+
+	/**
+	 * Starts the HTTP API.
+	 *
+	 * @throws IOException if the port or the token file can't be opened
+	 */
+	public void start() throws IOException {
+		token = loadToken().getBytes("UTF-8");
+		server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		// progress streams hold a thread each so the pool grows as needed
+		httpExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "daemon-http");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		server.setExecutor(httpExecutor);
+		server.createContext("/jobs", new JobsHandler());
+		server.createContext("/ports", new PortsHandler());
+		server.start();
+		logger.info("update daemon listening on: http://" + server.getAddress().getHostString() + ":" +
+				server.getAddress().getPort() + " - workers: " + workers +
+				" - token file: " + tokenFile.getAbsolutePath());
+	}
+
+	/**
+	 * Reads the API token, creating the token file if there is none.
+	 *
+	 * @return the token
+	 * @throws IOException if the token file can't be read or created
+	 */
+	String loadToken() throws IOException {
+		if(tokenFile.isFile()) {
+			BufferedReader in = new BufferedReader(new FileReader(tokenFile));
+			try {
+				String line = in.readLine();
+				if(line != null && line.trim().length() > 0) {
+					return line.trim();
+				}
+			} finally {
+				in.close();
+			}
+		}
+		byte random[] = new byte[24];
+		new SecureRandom().nextBytes(random);
+		StringBuilder sb = new StringBuilder();
+		for(byte b : random) {
+			sb.append(String.format("%02x", b & 0xff));
+		}
+		File dir = tokenFile.getAbsoluteFile().getParentFile();
+		if(dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("could not create token dir: " + dir.getAbsolutePath());
+		}
+		// owner only before the token is written
+		tokenFile.createNewFile();
+		tokenFile.setReadable(false, false);
+		tokenFile.setWritable(false, false);
+		tokenFile.setReadable(true, true);
+		tokenFile.setWritable(true, true);
+		Writer out = new FileWriter(tokenFile);
+		try {
+			out.write(sb.toString() + "\n");
+		} finally {
+			out.close();
+		}
+		logger.info("created daemon token file: " + tokenFile.getAbsolutePath());
+		return sb.toString();
+	}
+
+	/**
+	 * Checks that a request comes from a local client that has the token.
+	 * Refused requests are answered here.
+	 *
+	 * @param exchange the request
+	 * @return true if the request can be handled
+	 * @throws IOException if the response can't be sent
+	 */
+	boolean authorize(HttpExchange exchange) throws IOException {
+		String origin = exchange.getRequestHeaders().getFirst("Origin");
+		if(origin != null && !isLocalOrigin(origin)) {
+			logger.warn("refused request from origin: " + origin);
+			respond(exchange, 403, error("origin not allowed: " + origin));
+			return false;
+		}
+		String sent = exchange.getRequestHeaders().getFirst(TOKEN_HEADER);
+		if(sent == null || !MessageDigest.isEqual(sent.trim().getBytes("UTF-8"), token)) {
+			respond(exchange, 401, error("missing or wrong " + TOKEN_HEADER + " header"));
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Checks if a request origin is a page served from this machine.
+	 *
+	 * @param origin the Origin header
+	 * @return true if the origin host is a loopback name or address
+	 */
+	static boolean isLocalOrigin(String origin) {
+		String host;
+		try {
+			host = new URI(origin.trim()).getHost();
+		} catch (URISyntaxException e) {
+			return false;
+		}
+		if(host == null) {
+			return false;  // includes the "null" origin of sandboxed pages and files
+		}
+		host = host.toLowerCase();
+		return host.equals("localhost") || host.equals("[::1]") || host.equals("::1") || host.startsWith("127.");
+	}
+
+	/**
+	 * Stops the HTTP API. Running jobs finish and queued jobs are cancelled.
+	 */
+	public void stop() {
+		if(server != null) {
+			server.stop(0);
+			httpExecutor.shutdown();
+		}
+		synchronized(this) {
+			for(UpdateJob job : queue) {
+				job.finish(UpdateJob.State.CANCELLED, "daemon stopped");
+			}
+			queue.clear();
+		}
+		station.shutdown();
+		stopped.countDown();
+		logger.info("update daemon stopped");
+	}
+
+	/**
+	 * Waits until the daemon is stopped.
+	 *
+	 * @throws InterruptedException if the thread is interrupted
+	 */
+	public void join() throws InterruptedException {
+		stopped.await();
+	}
+
+	/**
+	 * Gets the port the API is listening on.
+	 *
+	 * @return the port
+	 */
+	public int getPort() {
+		return server != null ? server.getAddress().getPort() : port;
+	}
+
+	/**
+	 * Queues a job. The update file is parsed now so a bad file is reported
+	 * to the caller straight away.
+	 *
+	 * @param updateFilename the update filename - zip archive entries are named as archive!entry
+	 * @param inDevName the MIDI input port name
+	 * @param outDevName the MIDI output port name
+	 * @param priority the priority - higher runs first
+	 * @return the job
+	 * @throws ModuleUpdateException if the update file can't be used
+	 */
+	public UpdateJob submit(String updateFilename, String inDevName, String outDevName, int priority)
+			throws ModuleUpdateException {
+		getImage(updateFilename);
+		UpdateJob job;
+		synchronized(this) {
+			job = new UpdateJob(nextId ++, updateFilename, inDevName, outDevName, priority);
+			jobs.put(job.getId(), job);
+			queue.add(job);
+			trimHistory();
+		}
+		logger.info("job " + job.getId() + " queued - file: " + updateFilename + " - in: " + inDevName +
+				" - out: " + outDevName + " - priority: " + priority);
+		dispatch();
+		return job;
+	}
+
+	/**
+	 * Cancels a queued job.
+	 *
+	 * @param id the job ID
+	 * @return true if the job was cancelled, false if it already started
+	 */
+	public synchronized boolean cancel(int id) {
+		UpdateJob job = jobs.get(id);
+		if(job == null || !queue.remove(job)) {
+			return false;
+		}
+		job.finish(UpdateJob.State.CANCELLED, null);
+		logger.info("job " + id + " cancelled");
+		return true;
+	}
+
+	/**
+	 * Gets a job.
+	 *
+	 * @param id the job ID
+	 * @return the job, or null if there is no such job
+	 */
+	public synchronized UpdateJob getJob(int id) {
+		return jobs.get(id);
+	}
+
+	/**
+	 * Starts the highest priority jobs whose ports are free while there are
+	 * free workers.
+	 */
+	synchronized void dispatch() {
+		while(running < workers) {
+			UpdateJob next = null;
+			for(UpdateJob job : queue) {
+				if(!busyPorts.contains(job.inDevName) && !busyPorts.contains(job.outDevName)) {
+					next = job;
+					break;
+				}
+			}
+			if(next == null) {
+				return;
+			}
+			final UpdateJob job = next;
+			queue.remove(job);
+			busyPorts.add(job.inDevName);
+			busyPorts.add(job.outDevName);
+			running ++;
+			job.start();
+			station.submit(new Callable<UpdateJob>() {
+				public UpdateJob call() {
+					try {
+						run(job);
+					} finally {
+						synchronized(UpdateDaemon.this) {
+							busyPorts.remove(job.inDevName);
+							busyPorts.remove(job.outDevName);
+							running --;
+						}
+						dispatch();
+					}
+					return job;
+				}
+			});
+		}
+	}
+
+	/**
+	 * Runs a job.
+	 *
+	 * @param job the job
+	 */
+	void run(UpdateJob job) {
+		try {
+			WarmImage warm = getImage(job.updateFilename);
+			TransferJournal.discard(FlashLedger.getUnitKey(warm.target.getDevID(), job.outDevName),
+					warm.target.createProfile().getName());
+			UpdateSession session = new UpdateSession(warm.target, job.inDevName, job.outDevName, warm.image, job);
+			session.call();
+			if(session.getState() == UpdateSession.State.DONE) {
+				job.finish(UpdateJob.State.DONE, null);
+			}
+			else {
+				job.finish(UpdateJob.State.FAILED, session.getError());
+			}
+		} catch (ModuleUpdateException e) {
+			job.finish(UpdateJob.State.FAILED, e.getMessage());
+		} catch (RuntimeException e) {
+			job.finish(UpdateJob.State.FAILED, e.toString());
+		}
+		logger.info("job " + job.getId() + " " + job.getState() +
+				(job.getError() != null ? " - " + job.getError() : ""));
+	}
+
+	/**
+	 * Gets the parsed image for an update file, parsing it again if the file
+	 * changed.
+	 *
+	 * @param updateFilename the update filename
+	 * @return the target and read-only image
+	 * @throws ModuleUpdateException if the update file can't be used
+	 */
+	WarmImage getImage(String updateFilename) throws ModuleUpdateException {
+		long modified = FirmwareSource.fromFilename(updateFilename).getFile().lastModified();
+		WarmImage warm;
+		synchronized(images) {
+			warm = images.get(updateFilename);
+			if(warm == null || (warm.loaded && warm.modified != modified)) {
+				warm = new WarmImage();
+				images.put(updateFilename, warm);
+			}
+		}
+		// parse outside the map lock so jobs for other files are not held up
+		synchronized(warm) {
+			if(!warm.loaded) {
+				warm.target = new UpdateTarget(updateFilename);
+				warm.image = warm.target.loadImage();
+				warm.modified = modified;
+				warm.loaded = true;
+			}
+		}
+		return warm;
+	}
+
+	/**
+	 * Drops the oldest finished jobs once there are too many.
+	 */
+	void trimHistory() {
+		Iterator<UpdateJob> it = jobs.values().iterator();
+		int excess = jobs.size() - MAX_HISTORY;
+		while(excess > 0 && it.hasNext()) {
+			if(it.next().isFinished()) {
+				it.remove();
+				excess --;
+			}
+		}
+	}
+
+	/**
+	 * Handles the job requests.
+	 */
+	class JobsHandler implements HttpHandler {
+		@Override
+		public void handle(HttpExchange exchange) throws IOException {
+			try {
+				if(!authorize(exchange)) {
+					return;
+				}
+				String method = exchange.getRequestMethod().toUpperCase();
+				String parts[] = exchange.getRequestURI().getPath().split("/");
+				// parts: "", "jobs", ID, "progress"
+				if(parts.length <= 2) {
+					if(method.equals("POST")) {
+						submitJob(exchange);
+					}
+					else if(method.equals("GET")) {
+						listJobs(exchange);
+					}
+					else {
+						respond(exchange, 405, error("method not allowed: " + method));
+					}
+					return;
+				}
+				UpdateJob job;
+				try {
+					job = getJob(Integer.parseInt(parts[2]));
+				} catch (NumberFormatException e) {
+					job = null;
+				}
+				if(job == null || parts.length > 4 || (parts.length == 4 && !parts[3].equals("progress"))) {
+					respond(exchange, 404, error("not found: " + exchange.getRequestURI().getPath()));
+				}
+				else if(parts.length == 4 && method.equals("GET")) {
+					streamProgress(exchange, job);
+				}
+				else if(parts.length == 3 && method.equals("GET")) {
+					respond(exchange, 200, job.toJson());
+				}
+				else if(parts.length == 3 && method.equals("DELETE")) {
+					if(cancel(job.getId())) {
+						respond(exchange, 200, job.toJson());
+					}
+					else {
+						respond(exchange, 409, error("job is not queued: " + job.getId()));
+					}
+				}
+				else {
+					respond(exchange, 405, error("method not allowed: " + method));
+				}
+			} finally {
+				exchange.close();
+			}
+		}
+
+		/**
+		 * Queues a job from the request parameters.
+		 *
+		 * @param exchange the request
+		 * @throws IOException if the response can't be sent
+		 */
+		void submitJob(HttpExchange exchange) throws IOException {
+			Map<String, String> params = getParams(exchange);
+			String file = params.get("file");
+			String in = params.get("in");
+			String out = params.get("out");
+			if(file == null || in == null || out == null) {
+				respond(exchange, 400, error("file, in and out are required"));
+				return;
+			}
+			int priority;
+			try {
+				priority = params.containsKey("priority") ? Integer.parseInt(params.get("priority").trim()) : 0;
+			} catch (NumberFormatException e) {
+				respond(exchange, 400, error("priority is invalid: " + params.get("priority")));
+				return;
+			}
+			try {
+				respond(exchange, 201, submit(file, in, out, priority).toJson());
+			} catch (ModuleUpdateException e) {
+				respond(exchange, 400, error(e.getMessage()));
+			}
+		}
+
+		/**
+		 * Lists all jobs.
+		 *
+		 * @param exchange the request
+		 * @throws IOException if the response can't be sent
+		 */
+		void listJobs(HttpExchange exchange) throws IOException {
+			List<UpdateJob> list;
+			synchronized(UpdateDaemon.this) {
+				list = new ArrayList<UpdateJob>(jobs.values());
+			}
+			StringBuilder sb = new StringBuilder("[");
+			for(UpdateJob job : list) {
+				sb.append(sb.length() == 1 ? "" : ",\n").append(job.toJson());
+			}
+			respond(exchange, 200, sb.append("]").toString());
+		}
+
+		/**
+		 * Streams a job as it changes until it finishes. A line is also sent
+		 * every so often while nothing changes so dead clients are noticed.
+		 *
+		 * @param exchange the request
+		 * @param job the job
+		 * @throws IOException if the client went away
+		 */
+		void streamProgress(HttpExchange exchange, UpdateJob job) throws IOException {
+			exchange.getResponseHeaders().set("Content-Type", "application/x-ndjson");
+			exchange.sendResponseHeaders(200, 0);  // chunked
+			OutputStream os = exchange.getResponseBody();
+			try {
+				while(true) {
+					int percent;
+					UpdateJob.State state;
+					String line;
+					synchronized(job) {
+						percent = job.getPercentComplete();
+						state = job.getState();
+						line = job.toJson() + "\n";
+					}
+					os.write(line.getBytes("UTF-8"));
+					os.flush();
+					if(job.isFinished()) {
+						break;
+					}
+					job.awaitChange(percent, state, KEEPALIVE);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} finally {
+				os.close();
+			}
+		}
+	}
+
+	/**
+	 * Handles the port list request.
+	 */
+	class PortsHandler implements HttpHandler {
+		@Override
+		public void handle(HttpExchange exchange) throws IOException {
+			try {
+				if(!authorize(exchange)) {
+					return;
+				}
+				if(!exchange.getRequestMethod().equalsIgnoreCase("GET")) {
+					respond(exchange, 405, error("method not allowed: " + exchange.getRequestMethod()));
+					return;
+				}
+				List<String> inputs;
+				List<String> outputs;
+				synchronized(watcher) {
+					try {
+						watcher.poll();
+					} catch (MidiUnavailableException e) {
+						respond(exchange, 500, error(e.getMessage()));
+						return;
+					}
+					inputs = watcher.getInputNames();
+					outputs = watcher.getOutputNames();
+				}
+				respond(exchange, 200, "{\"inputs\":" + toJson(inputs) + ",\"outputs\":" + toJson(outputs) + "}");
+			} finally {
+				exchange.close();
+			}
+		}
+	}
+
+	/**
+	 * Sends a JSON response.
+	 *
+	 * @param exchange the request
+	 * @param code the HTTP status code
+	 * @param body the JSON body
+	 * @throws IOException if the response can't be sent
+	 */
+	static void respond(HttpExchange exchange, int code, String body) throws IOException {
+		byte data[] = (body + "\n").getBytes("UTF-8");
+		exchange.getResponseHeaders().set("Content-Type", "application/json");
+		exchange.sendResponseHeaders(code, data.length);
+		OutputStream os = exchange.getResponseBody();
+		os.write(data);
+		os.close();
+	}
+
+	/**
+	 * Creates a JSON error body.
+	 *
+	 * @param msg the error message
+	 * @return the JSON text
+	 */
+	static String error(String msg) {
+		return "{\"error\":" + UpdateJob.quote(msg) + "}";
+	}
+
+	/**
+	 * Converts a list of strings to a JSON array.
+	 *
+	 * @param list the strings
+	 * @return the JSON text
+	 */
+	static String toJson(List<String> list) {
+		StringBuilder sb = new StringBuilder("[");
+		for(String s : list) {
+			sb.append(sb.length() == 1 ? "" : ",").append(UpdateJob.quote(s));
+		}
+		return sb.append("]").toString();
+	}
+
+	/**
+	 * Gets the query and form parameters of a request.
+	 *
+	 * @param exchange the request
+	 * @return the parameters - form parameters replace query parameters
+	 * @throws IOException if the request body can't be read
+	 */
+	static Map<String, String> getParams(HttpExchange exchange) throws IOException {
+		Map<String, String> params = new HashMap<String, String>();
+		parseParams(exchange.getRequestURI().getRawQuery(), params);
+		String type = exchange.getRequestHeaders().getFirst("Content-Type");
+		if(type != null && type.startsWith("application/x-www-form-urlencoded")) {
+			InputStream is = exchange.getRequestBody();
+			ByteArrayOutputStream body = new ByteArrayOutputStream();
+			byte buf[] = new byte[1024];
+			int len;
+			while((len = is.read(buf)) > 0) {
+				body.write(buf, 0, len);
+			}
+			parseParams(body.toString("UTF-8"), params);
+		}
+		return params;
+	}
+
+	/**
+	 * Parses URL encoded parameters.
+	 *
+	 * @param query the encoded parameters, or null
+	 * @param params the map to add the parameters to
+	 * @throws UnsupportedEncodingException if UTF-8 is not supported
+	 */
+	static void parseParams(String query, Map<String, String> params) throws UnsupportedEncodingException {
+		if(query == null || query.length() == 0) {
+			return;
+		}
+		for(String pair : query.split("&")) {
+			int eq = pair.indexOf('=');
+			if(eq > 0) {
+				params.put(URLDecoder.decode(pair.substring(0, eq), "UTF-8"),
+						URLDecoder.decode(pair.substring(eq + 1), "UTF-8"));
+			}
+		}
+	}
+}
@@ -0,0 +1,200 @@
+package com.kilpatrickaudio.kaUpdate.station;
+
+import com.kilpatrickaudio.kaUpdate.main.ProgressIndicator;
+
+/**
+ * This class is a flash job submitted to the update daemon. Jobs run in order of
+ * priority, then in the order they were submitted. Threads streaming the job
+ * progress wait on the job for changes.
+ *
+ * @author andrew
+ *
+ */
+public class UpdateJob implements ProgressIndicator, Comparable<UpdateJob> {
+	public enum State {
+		QUEUED,
+		RUNNING,
+		DONE,
+		FAILED,
+		CANCELLED
+	};
+	int id;
+	String updateFilename;
+	String inDevName;
+	String outDevName;
+	int priority;
+	long submitted;
+	long started = 0;
+	long finished = 0;
+	State state = State.QUEUED;
+	int percentComplete = 0;
+	String error = null;
+
+	/**
+	 * Creates a new job.
+	 *
+	 * @param id the job ID - later jobs have higher IDs
+	 * @param updateFilename the update filename - zip archive entries are named as archive!entry
+	 * @param inDevName the MIDI input port name
+	 * @param outDevName the MIDI output port name
+	 * @param priority the priority - higher runs first
+	 */
+	public UpdateJob(int id, String updateFilename, String inDevName, String outDevName, int priority) {
+		this.id = id;
+		this.updateFilename = updateFilename;
+		this.inDevName = inDevName;
+		this.outDevName = outDevName;
+		this.priority = priority;
+		submitted = System.currentTimeMillis();
+	}
+
+	/**
+	 * Orders jobs by priority and then by ID.
+	 */
+	@Override
+	public int compareTo(UpdateJob other) {
+		if(priority != other.priority) {
+			return priority > other.priority ? -1 : 1;
+		}
+		return id < other.id ? -1 : (id == other.id ? 0 : 1);
+	}
+
+	/**
+	 * Receives progress from the update.
+	 */
+	@Override
+	public synchronized void setPercentComplete(int percent) {
+		if(percent != percentComplete) {
+			percentComplete = percent;
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Marks the job as started.
+	 */
+	synchronized void start() {
+		state = State.RUNNING;
+		started = System.currentTimeMillis();
+		notifyAll();
+	}
+
+	/**
+	 * Marks the job as finished.
+	 *
+	 * @param state the final state
+	 * @param error the error message, or null if the job did not fail
+	 */
+	synchronized void finish(State state, String error) {
+		this.state = state;
+		this.error = error;
+		if(state == State.DONE) {
+			percentComplete = 100;
+		}
+		finished = System.currentTimeMillis();
+		notifyAll();
+	}
+
+	/**
+	 * Waits until the progress or state differs from what the caller last saw.
+	 *
+	 * @param percent the last percent complete seen
+	 * @param state the last state seen
+	 * @param timeout the longest time to wait in ms
+	 * @throws InterruptedException if the thread is interrupted
+	 */
+	synchronized void awaitChange(int percent, State state, long timeout) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeout;
+		long remaining;
+		while(percentComplete == percent && this.state == state &&
+				(remaining = deadline - System.currentTimeMillis()) > 0) {
+			wait(remaining);
+		}
+	}
+
+	/**
+	 * Checks if the job has finished.
+	 *
+	 * @return true if the job is done, failed or was cancelled
+	 */
+	public synchronized boolean isFinished() {
+		return state == State.DONE || state == State.FAILED || state == State.CANCELLED;
+	}
+
+	/**
+	 * Gets the job ID.
+	 *
+	 * @return the ID
+	 */
+	public int getId() {
+		return id;
+	}
+
+	/**
+	 * Gets the job state.
+	 *
+	 * @return the state
+	 */
+	public synchronized State getState() {
+		return state;
+	}
+
+	/**
+	 * Gets the job progress.
+	 *
+	 * @return the percent complete
+	 */
+	public synchronized int getPercentComplete() {
+		return percentComplete;
+	}
+
+	/**
+	 * Gets the error that failed the job.
+	 *
+	 * @return the error message, or null if the job did not fail
+	 */
+	public synchronized String getError() {
+		return error;
+	}
+
+	/**
+	 * Describes the job as a JSON object.
+	 *
+	 * @return the JSON text
+	 */
+	public synchronized String toJson() {
+		return "{\"id\":" + id +
+				",\"file\":" + quote(updateFilename) +
+				",\"in\":" + quote(inDevName) +
+				",\"out\":" + quote(outDevName) +
+				",\"priority\":" + priority +
+				",\"state\":\"" + state + "\"" +
+				",\"percent\":" + percentComplete +
+				",\"queuedMs\":" + ((started != 0 ? started : (finished != 0 ? finished : System.currentTimeMillis())) - submitted) +
+				",\"runMs\":" + (started == 0 ? 0 : (finished != 0 ? finished : System.currentTimeMillis()) - started) +
+				",\"error\":" + (error == null ? "null" : quote(error)) + "}";
+	}
+
+	/**
+	 * Quotes a string for JSON.
+	 *
+	 * @param s the string
+	 * @return the quoted string
+	 */
+	static String quote(String s) {
+		StringBuilder sb = new StringBuilder("\"");
+		for(int i = 0; i < s.length(); i ++) {
+			char c = s.charAt(i);
+			if(c == '"' || c == '\\') {
+				sb.append('\\').append(c);
+			}
+			else if(c < 0x20) {
+				sb.append(String.format("\\u%04x", (int)c));
+			}
+			else {
+				sb.append(c);
+			}
+		}
+		return sb.append('"').toString();
+	}
+}
@@ -0,0 +1,188 @@
+package com.kilpatrickaudio.kaUpdate.station;
+
+import java.util.concurrent.Callable;
+
+import javax.sound.midi.MidiUnavailableException;
+
+import com.kilpatrickaudio.kaUpdate.main.ProgressIndicator;
+import com.kilpatrickaudio.kaUpdate.midi.MIDIHandler;
+import com.kilpatrickaudio.kaUpdate.moduleUpdate.FlashImage;
+import com.kilpatrickaudio.kaUpdate.moduleUpdate.ModuleUpdateException;
+import com.kilpatrickaudio.kaUpdate.moduleUpdate.ModuleUpdater;
+
+import org.apache.log4j.Logger;
+
+/**
+ * This class is one module update on its own MIDI port pair. Each session has
+ * its own MIDI handler, so its own ports and response queue, and reports to its
+ * own progress indicator. Sessions only share the read-only flash image so any
+ * number of them can run at the same time.
+ * 
+ * @author andrew
+ *
+ */
+public class UpdateSession implements Callable<UpdateSession>, ProgressIndicator {
+	public enum State {
+		WAITING,
+		RUNNING,
+		DONE,
+		FAILED
+	};
+	Logger logger;
+	UpdateTarget target;
+	String inDevName;
+	String outDevName;
+	FlashImage image;
+	ProgressIndicator progress;
+	MIDIHandler midi = null;  // a handler handed over by a probe
+	boolean online = false;  // the handler ports are open and the module is in its bootloader
+	volatile State state = State.WAITING;
+	volatile int percentComplete = 0;
+	volatile String error = null;
+	volatile long elapsed = 0;
+
+	/**
+	 * Creates a new update session.
+	 * 
+	 * @param target the update target
+	 * @param inDevName the MIDI input port name
+	 * @param outDevName the MIDI output port name
+	 * @param image the shared read-only image, or null to load the update file
+	 * @param progress the progress indicator to send updates to, or null for none
+	 */
+	public UpdateSession(UpdateTarget target, String inDevName, String outDevName, FlashImage image,
+			ProgressIndicator progress) {
+		logger = Logger.getLogger(this.getClass());
+		this.target = target;
+		this.inDevName = inDevName;
+		this.outDevName = outDevName;
+		this.image = image;
+		this.progress = progress;
+	}
+
+	/**
+	 * Hands over a MIDI handler with its ports open and the module already reset
+	 * into its bootloader, such as by a probe. The update starts without another
+	 * reset and the session closes the ports when it is done.
+	 * 
+	 * @param midi the MIDI handler
+	 */
+	public void setOnlineHandler(MIDIHandler midi) {
+		this.midi = midi;
+		online = true;
+	}
+
+	/**
+	 * Runs the update. Errors are recorded in the session instead of being thrown.
+	 * 
+	 * @return this session
+	 */
+	@Override
+	public UpdateSession call() {
+		String threadName = Thread.currentThread().getName();
+		Thread.currentThread().setName("update-" + outDevName);
+		long start = System.currentTimeMillis();
+		state = State.RUNNING;
+		MIDIHandler midi = this.midi;
+		try {
+			if(midi == null) {
+				midi = new MIDIHandler();
+			}
+			ModuleUpdater mu = target.createUpdater(midi, inDevName, outDevName, image);
+			mu.setOnline(online);
+			mu.updateModule(this);
+			state = State.DONE;
+			logger.info("update complete on: " + outDevName);
+		} catch (ModuleUpdateException e) {
+			fail(e.getMessage());
+		} catch (MidiUnavailableException e) {
+			fail(e.getMessage());
+		} catch (RuntimeException e) {
+			fail(e.toString());
+		} finally {
+			if(midi != null) {
+				midi.closeMIDIPorts();
+			}
+			elapsed = System.currentTimeMillis() - start;
+			Thread.currentThread().setName(threadName);
+		}
+		return this;
+	}
+
+	/**
+	 * Records a failed update.
+	 * 
+	 * @param msg the error message
+	 */
+	void fail(String msg) {
+		error = msg;
+		state = State.FAILED;
+		logger.error("update FAILED on: " + outDevName + " - " + msg);
+		setPercentComplete(0);
+	}
+
+	/**
+	 * Receives progress from the updater.
+	 */
+	@Override
+	public void setPercentComplete(int percent) {
+		percentComplete = percent;
+		if(progress != null) {
+			progress.setPercentComplete(percent);
+		}
+	}
+
+	/**
+	 * Gets the MIDI input port name.
+	 * 
+	 * @return the port name
+	 */
+	public String getInDevName() {
+		return inDevName;
+	}
+
+	/**
+	 * Gets the MIDI output port name.
+	 * 
+	 * @return the port name
+	 */
+	public String getOutDevName() {
+		return outDevName;
+	}
+
+	/**
+	 * Gets the session state.
+	 * 
+	 * @return the state
+	 */
+	public State getState() {
+		return state;
+	}
+
+	/**
+	 * Gets the update progress.
+	 * 
+	 * @return the percent complete
+	 */
+	public int getPercentComplete() {
+		return percentComplete;
+	}
+
+	/**
+	 * Gets the error that failed the update.
+	 * 
+	 * @return the error message, or null if the update did not fail
+	 */
+	public String getError() {
+		return error;
+	}
+
+	/**
+	 * Gets how long the update took.
+	 * 
+	 * @return the time in ms
+	 */
+	public long getElapsed() {
+		return elapsed;
+	}
+}
@@ -0,0 +1,152 @@
+package com.kilpatrickaudio.kaUpdate.station;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.kilpatrickaudio.kaUpdate.main.ProgressIndicator;
+import com.kilpatrickaudio.kaUpdate.moduleUpdate.FlashImage;
+import com.kilpatrickaudio.kaUpdate.moduleUpdate.FlashLedger;
+import com.kilpatrickaudio.kaUpdate.moduleUpdate.ModuleUpdateException;
+
+import org.apache.log4j.Logger;
+
+/**
+ * This class flashes modules on several MIDI port pairs at the same time. The
+ * update file is loaded once and shared read-only by all sessions, which run on
+ * a fixed size thread pool. The pool size can be set with the
+ * kaupdate.station.threads system property (default: one thread per port pair,
+ * up to 16). The kaupdate.serial property names a single unit, so it is refused
+ * with more than one port pair.
+ * 
+ * @author andrew
+ *
+ */
+public class UpdateStation {
+	static final int MAX_DEFAULT_THREADS = 16;
+	Logger logger;
+	ExecutorService executor;
+	int threads;
+
+	/**
+	 * Creates a new update station.
+	 * 
+	 * @param threads the number of updates that can run at the same time
+	 */
+	public UpdateStation(int threads) {
+		if(threads <= 0) {
+			throw new IllegalArgumentException("thread count is invalid: " + threads);
+		}
+		logger = Logger.getLogger(this.getClass());
+		this.threads = threads;
+		final AtomicInteger count = new AtomicInteger(0);
+		executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "station-" + count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Creates an update station sized by system properties.
+	 * 
+	 * @param portPairs the number of port pairs that will be used
+	 * @return the station
+	 */
+	public static UpdateStation fromSystemProperties(int portPairs) {
+		String threads = System.getProperty("kaupdate.station.threads");
+		if(threads != null) {
+			return new UpdateStation(Integer.parseInt(threads.trim()));
+		}
+		return new UpdateStation(Math.max(1, Math.min(portPairs, MAX_DEFAULT_THREADS)));
+	}
+
+	/**
+	 * Starts a session or other station task.
+	 * 
+	 * @param task the task, such as an UpdateSession
+	 * @return the future result once it is done
+	 */
+	public <T> Future<T> submit(Callable<T> task) {
+		return executor.submit(task);
+	}
+
+	/**
+	 * Flashes one update file on several port pairs and waits for all of them.
+	 * 
+	 * @param updateFilename the update filename - zip archive entries are named as archive!entry
+	 * @param inDevNames the MIDI input port names
+	 * @param outDevNames the MIDI output port names in the same order
+	 * @param progress the progress indicator for the whole station, or null for none
+	 * @return the finished sessions in port order
+	 * @throws ModuleUpdateException if the update file can't be used
+	 */
+	public List<UpdateSession> flash(String updateFilename, List<String> inDevNames, List<String> outDevNames,
+			final ProgressIndicator progress) throws ModuleUpdateException {
+		if(inDevNames.size() != outDevNames.size()) {
+			throw new IllegalArgumentException("MIDI in and out port counts differ");
+		}
+		// the sessions would share one ledger entry and journal
+		if(FlashLedger.hasSerial() && outDevNames.size() > 1) {
+			throw new ModuleUpdateException("kaupdate.serial names one unit - it can't be used with " +
+					outDevNames.size() + " port pairs");
+		}
+		UpdateTarget target = new UpdateTarget(updateFilename);
+		FlashImage image = target.loadImage();
+		long start = System.currentTimeMillis();
+		final List<UpdateSession> sessions = new ArrayList<UpdateSession>();
+		// the station progress is the average of the sessions
+		ProgressIndicator sessionProgress = progress == null ? null : new ProgressIndicator() {
+			public void setPercentComplete(int percent) {
+				int sum = 0;
+				for(UpdateSession s : sessions) {
+					sum += s.getPercentComplete();
+				}
+				progress.setPercentComplete(sum / sessions.size());
+			}
+		};
+		for(int i = 0; i < outDevNames.size(); i ++) {
+			sessions.add(new UpdateSession(target, inDevNames.get(i), outDevNames.get(i), image, sessionProgress));
+		}
+		List<Future<UpdateSession>> futures = new ArrayList<Future<UpdateSession>>();
+		for(UpdateSession s : sessions) {
+			futures.add(submit(s));
+		}
+		for(Future<UpdateSession> f : futures) {
+			try {
+				f.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new ModuleUpdateException("station interrupted");
+			} catch (ExecutionException e) {
+				logger.error("session error: " + e.getCause());
+			}
+		}
+		int failed = 0;
+		for(UpdateSession s : sessions) {
+			if(s.getState() != UpdateSession.State.DONE) {
+				failed ++;
+			}
+			logger.info("session: " + s.getOutDevName() + " - " + s.getState() + " - took: " + s.getElapsed() + " ms" +
+					(s.getError() != null ? " - " + s.getError() : ""));
+		}
+		logger.info("station done - modules: " + sessions.size() + " - failed: " + failed +
+				" - threads: " + threads + " - took: " + (System.currentTimeMillis() - start) + " ms");
+		return sessions;
+	}
+
+	/**
+	 * Stops the station threads. Running sessions are not interrupted.
+	 */
+	public void shutdown() {
+		executor.shutdown();
+	}
+}
@@ -0,0 +1,153 @@
+package com.kilpatrickaudio.kaUpdate.station;
+
+import com.kilpatrickaudio.kaUpdate.midi.MIDIHandler;
+import com.kilpatrickaudio.kaUpdate.moduleUpdate.FirmwareSource;
+import com.kilpatrickaudio.kaUpdate.moduleUpdate.FlashImage;
+import com.kilpatrickaudio.kaUpdate.moduleUpdate.FlashImageLoader;
+import com.kilpatrickaudio.kaUpdate.moduleUpdate.ModuleUpdateException;
+import com.kilpatrickaudio.kaUpdate.moduleUpdate.ModuleUpdater;
+import com.kilpatrickaudio.kaUpdate.moduleUpdate.TargetProfile;
+import com.kilpatrickaudio.kaUpdate.moduleUpdatePIC18.ModuleUpdatePIC18;
+import com.kilpatrickaudio.kaUpdate.moduleUpdatePIC32.ModuleUpdatePIC32;
+
+/**
+ * This class describes the module an update file is for. The last 6 characters
+ * of the file name are the format, the device ID in hex and the chip type: A
+ * for PIC18 modules and B or C for PIC32 modules. This is the one place update
+ * filenames are parsed.
+ * 
+ * @author andrew
+ *
+ */
+public class UpdateTarget {
+	String updateFilename;
+	int devID;
+	String chipType;
+
+	/**
+	 * Creates the target for an update file.
+	 * 
+	 * @param updateFilename the update filename - zip archive entries are named as archive!entry
+	 * @throws ModuleUpdateException if the filename does not describe a target
+	 */
+	public UpdateTarget(String updateFilename) throws ModuleUpdateException {
+		this.updateFilename = updateFilename;
+		// the suffix is taken from the archive entry name and ignores any .gz suffix
+		String name = FirmwareSource.fromFilename(updateFilename).getName();
+		if(name.length() < 6) {
+			throw new ModuleUpdateException("hex filename is invalid: " + updateFilename);
+		}
+		String suffix = name.substring(name.length() - 6, name.length()).toUpperCase();
+		if(!FlashImageLoader.isSupportedFormat(suffix.substring(0, 3))) {
+			throw new ModuleUpdateException("update filename is invalid: " + updateFilename);
+		}
+		try {
+			devID = Integer.parseInt(suffix.substring(3, 5), 16);
+		} catch (NumberFormatException e) {
+			throw new ModuleUpdateException("update filename device ID is invalid: " + updateFilename);
+		}
+		chipType = suffix.substring(5, 6);
+		if(!isPIC18() && !isPIC32()) {
+			throw new ModuleUpdateException("unknown chip type: " + chipType);
+		}
+	}
+
+	/**
+	 * Gets the update filename.
+	 * 
+	 * @return the filename
+	 */
+	public String getUpdateFilename() {
+		return updateFilename;
+	}
+
+	/**
+	 * Gets the device ID.
+	 * 
+	 * @return the device ID
+	 */
+	public int getDevID() {
+		return devID;
+	}
+
+	/**
+	 * Checks if the target is a PIC18 module.
+	 * 
+	 * @return true for PIC18 modules
+	 */
+	public boolean isPIC18() {
+		return chipType.equals("A");
+	}
+
+	/**
+	 * Checks if the target is a PIC32 module.
+	 * 
+	 * @return true for PIC32 modules
+	 */
+	public boolean isPIC32() {
+		return chipType.equals("B") || chipType.equals("C");
+	}
+
+	/**
+	 * Gets the chip name for log messages.
+	 * 
+	 * @return the chip name
+	 */
+	public String getChipName() {
+		return isPIC18() ? "PIC18F4520" : "PIC32MX";
+	}
+
+	/**
+	 * Creates the target profile for the chip.
+	 * 
+	 * @return the target profile
+	 */
+	public TargetProfile createProfile() {
+		return isPIC18() ? TargetProfile.getPIC18() : TargetProfile.getPIC32();
+	}
+
+	/**
+	 * Checks that an image can be loaded into the chip.
+	 * 
+	 * @param image the flash image
+	 * @throws ModuleUpdateException if the image can't be loaded
+	 */
+	public void checkImage(FlashImage image) throws ModuleUpdateException {
+		if(isPIC18()) {
+			ModuleUpdatePIC18.checkImage(image);
+		}
+	}
+
+	/**
+	 * Loads the update file into a read-only image that updates can share.
+	 * 
+	 * @return the flash image
+	 * @throws ModuleUpdateException if the file can't be read or parsed
+	 */
+	public FlashImage loadImage() throws ModuleUpdateException {
+		FlashImage image = isPIC18() ? ModuleUpdatePIC18.loadImage(updateFilename) :
+			ModuleUpdatePIC32.loadImage(updateFilename);
+		image.setReadOnly();
+		return image;
+	}
+
+	/**
+	 * Creates an updater for the target.
+	 * 
+	 * @param midi the MIDI handler for the update
+	 * @param inDevName the MIDI input port name
+	 * @param outDevName the MIDI output port name
+	 * @param image the shared image, or null to load the update file
+	 * @return the updater
+	 */
+	public ModuleUpdater createUpdater(MIDIHandler midi, String inDevName, String outDevName, FlashImage image) {
+		if(isPIC18()) {
+			ModuleUpdatePIC18 mu = new ModuleUpdatePIC18(midi, inDevName, outDevName, updateFilename, devID);
+			mu.setFlashImage(image);
+			return mu;
+		}
+		ModuleUpdatePIC32 mu = new ModuleUpdatePIC32(midi, inDevName, outDevName, updateFilename, devID);
+		mu.setFlashImage(image);
+		return mu;
+	}
+}